@@ -0,0 +1,355 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import no.difi.sdp.client.domain.exceptions.CircuitBreakerOpenException;
+import no.difi.sdp.client.domain.exceptions.SendException;
+import no.difi.sdp.client.domain.exceptions.SendIOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.SERVER;
+
+/**
+ * Slutter å sende forespørsler til meldingsformidler når den har feilet et gitt antall ganger på rad, slik at
+ * forsendelser ikke pakkes og krypteres bare for å feile. Etter en pause slippes et fåtall forespørsler gjennom for
+ * å prøve om meldingsformidler svarer igjen. Lykkes de, sendes det som normalt igjen.
+ *
+ * Mens sendingen er stanset feiler forespørsler med {@link CircuitBreakerOpenException}, eventuelt etter å ha ventet
+ * en gitt tid på at sendingen gjenopptas.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        /** Forespørsler sendes som normalt. */
+        CLOSED,
+        /** Forespørsler avvises. */
+        OPEN,
+        /** Et fåtall forespørsler slippes gjennom for å prøve om meldingsformidler svarer igjen. */
+        HALF_OPEN
+    }
+
+    /**
+     * Kalles ved hver overgang, mens circuit breakeren er låst. Må derfor ikke gjøre noe tidkrevende.
+     */
+    public interface Listener {
+        void stateChanged(State from, State to);
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private int failureThreshold;
+    private long openNanos;
+    private int halfOpenTrials = 1;
+    private long maxWaitNanos = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition stateChanged = lock.newCondition();
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt;
+    private int trialsInFlight = 0;
+    private int trialSuccesses = 0;
+    /**
+     * Økes ved hver overgang, slik at prøveforespørsler fra en tidligere runde i HALF_OPEN ikke telles i en senere.
+     */
+    private long generation = 0;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLongArray transitions = new AtomicLongArray(State.values().length);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private CircuitBreaker() {}
+
+    /**
+     * @param failureThreshold Antall feil på rad før sendingen stanses.
+     * @param openDuration Hvor lenge sendingen stanses før det prøves igjen.
+     */
+    public static Builder builder(int failureThreshold, long openDuration, TimeUnit timeUnit) {
+        return new Builder(failureThreshold, timeUnit.toNanos(openDuration));
+    }
+
+    /**
+     * Nettverksfeil og feil som {@link ExceptionMapper} antar skyldes meldingsformidler tyder på at meldingsformidler
+     * ikke fungerer. Andre feil viser at meldingsformidler svarer, og regnes som vellykkede forespørsler.
+     */
+    private static boolean isFailure(SendException e) {
+        return e instanceof SendIOException || e.getAntattSkyldig() == SERVER;
+    }
+
+    /**
+     * Feiler dersom en forespørsel ikke ville blitt sluppet gjennom nå, uten å reservere plass. Brukes før
+     * forsendelsen pakkes.
+     *
+     * @throws CircuitBreakerOpenException dersom sendingen er stanset.
+     */
+    public void checkPermitted() {
+        lock.lock();
+        try {
+            awaitPermitted();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Slipper gjennom en forespørsel, og returnerer en tillatelse som resultatet av forespørselen skal meldes til.
+     *
+     * @throws CircuitBreakerOpenException dersom sendingen er stanset.
+     */
+    public Permit acquire() {
+        lock.lock();
+        try {
+            awaitPermitted();
+            if (state == State.HALF_OPEN) {
+                trialsInFlight++;
+                return new Permit(true, generation);
+            }
+            return new Permit(false, generation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitPermitted() {
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (true) {
+            long now = System.nanoTime();
+            if (state == State.OPEN && now - openedAt >= openNanos) {
+                transition(State.HALF_OPEN);
+            }
+            if (state == State.CLOSED || (state == State.HALF_OPEN && trialsInFlight < halfOpenTrials)) {
+                return;
+            }
+            long remaining = deadline - now;
+            if (remaining <= 0) {
+                rejected.incrementAndGet();
+                throw new CircuitBreakerOpenException("Meldingsformidler has failed " + failureThreshold +
+                        " times in a row, not sending until it responds again (state " + state + ")");
+            }
+            if (state == State.OPEN) {
+                remaining = Math.min(remaining, openNanos - (now - openedAt));
+            }
+            try {
+                stateChanged.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected.incrementAndGet();
+                throw new CircuitBreakerOpenException("Interrupted while waiting for meldingsformidler to respond again");
+            }
+        }
+    }
+
+    private boolean isCurrentTrial(boolean trial, long permitGeneration) {
+        return trial && state == State.HALF_OPEN && permitGeneration == generation;
+    }
+
+    private void onSuccess(boolean trial, long permitGeneration) {
+        lock.lock();
+        try {
+            consecutiveFailures = 0;
+            if (isCurrentTrial(trial, permitGeneration)) {
+                trialsInFlight--;
+                trialSuccesses++;
+                if (trialSuccesses >= halfOpenTrials) {
+                    transition(State.CLOSED);
+                } else {
+                    stateChanged.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onFailure(boolean trial, long permitGeneration) {
+        lock.lock();
+        try {
+            consecutiveFailures++;
+            if (isCurrentTrial(trial, permitGeneration)) {
+                trialsInFlight--;
+                transition(State.OPEN);
+            } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+                transition(State.OPEN);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onRelease(boolean trial, long permitGeneration) {
+        lock.lock();
+        try {
+            if (isCurrentTrial(trial, permitGeneration)) {
+                trialsInFlight--;
+                stateChanged.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void transition(State to) {
+        State from = state;
+        state = to;
+        generation++;
+        if (to == State.OPEN) {
+            openedAt = System.nanoTime();
+        }
+        trialsInFlight = 0;
+        trialSuccesses = 0;
+        transitions.incrementAndGet(to.ordinal());
+        stateChanged.signalAll();
+        if (to == State.OPEN) {
+            log.warn("Circuit breaker " + from + " -> " + to + " after " + consecutiveFailures + " consecutive failures");
+        } else {
+            log.info("Circuit breaker " + from + " -> " + to);
+        }
+        for (Listener listener : listeners) {
+            listener.stateChanged(from, to);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public State getState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antall forespørsler som er avvist fordi sendingen var stanset.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return Antall ganger circuit breakeren har gått over til gitt tilstand.
+     */
+    public long getTransitions(State to) {
+        return transitions.get(to.ordinal());
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker{state=" + getState() + ", rejected=" + getRejected() + ", opened=" + getTransitions(State.OPEN) +
+                ", halfOpened=" + getTransitions(State.HALF_OPEN) + ", closed=" + getTransitions(State.CLOSED) + "}";
+    }
+
+    /**
+     * Tillatelse for én forespørsel, se {@link #acquire()}. Resultatet meldes med {@link #succeeded()} eller
+     * {@link #failed(SendException)}, og tillatelsen skal alltid frigis med {@link #release()}.
+     */
+    public final class Permit {
+
+        private final boolean trial;
+        private final long generation;
+        private boolean completed = false;
+
+        private Permit(boolean trial, long generation) {
+            this.trial = trial;
+            this.generation = generation;
+        }
+
+        public void succeeded() {
+            if (!completed) {
+                completed = true;
+                onSuccess(trial, generation);
+            }
+        }
+
+        public void failed(SendException e) {
+            if (!completed) {
+                completed = true;
+                if (isFailure(e)) {
+                    onFailure(trial, generation);
+                } else {
+                    onSuccess(trial, generation);
+                }
+            }
+        }
+
+        /**
+         * Frigir tillatelsen uten å telle forespørselen, dersom resultatet ikke er meldt.
+         */
+        public void release() {
+            if (!completed) {
+                completed = true;
+                onRelease(trial, generation);
+            }
+        }
+    }
+
+    public static class Builder {
+
+        private final CircuitBreaker target;
+
+        private Builder(int failureThreshold, long openNanos) {
+            if (failureThreshold < 1) {
+                throw new IllegalArgumentException("failureThreshold må være minst 1, var " + failureThreshold);
+            }
+            if (openNanos < 0) {
+                throw new IllegalArgumentException("openDuration kan ikke være negativ, var " + openNanos + " ns");
+            }
+            target = new CircuitBreaker();
+            target.failureThreshold = failureThreshold;
+            target.openNanos = openNanos;
+        }
+
+        /**
+         * Antall forespørsler som slippes gjennom for å prøve om meldingsformidler svarer igjen. Alle må lykkes før
+         * sendingen gjenopptas. Standard er 1.
+         */
+        public Builder halfOpenTrials(int halfOpenTrials) {
+            if (halfOpenTrials < 1) {
+                throw new IllegalArgumentException("halfOpenTrials må være minst 1, var " + halfOpenTrials);
+            }
+            target.halfOpenTrials = halfOpenTrials;
+            return this;
+        }
+
+        /**
+         * Vent inntil gitt tid på at sendingen gjenopptas før forespørsler avvises. Standard er å avvise med en gang.
+         */
+        public Builder blockFor(long maxWait, TimeUnit timeUnit) {
+            if (maxWait < 0) {
+                throw new IllegalArgumentException("maxWait kan ikke være negativ, var " + maxWait);
+            }
+            target.maxWaitNanos = timeUnit.toNanos(maxWait);
+            return this;
+        }
+
+        public CircuitBreaker build() {
+            return target;
+        }
+    }
+
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import no.difi.sdp.client.domain.exceptions.SendException;
+import no.difi.sdp.client.domain.exceptions.SendIOException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.SERVER;
+
+/**
+ * Begrenser antall forsendelser som lastes opp til meldingsformidler samtidig, og justerer grensen etter hvor raskt
+ * meldingsformidler svarer (AIMD). Grensen økes med 1 for hver gang like mange forsendelser som grensen er sendt
+ * innenfor en gitt svartid, og ganges ned med en faktor når en forsendelse feiler eller tar lengre tid. Når
+ * meldingsformidler blir treg sendes det da færre forsendelser samtidig, i stedet for at trådene hoper seg opp i
+ * connection pool.
+ *
+ * Grensen senkes høyst én gang per runde: forsendelser som allerede var underveis da grensen ble senket, justerer ikke
+ * grensen når de blir ferdige. En hel bølge av trege svar senker dermed grensen bare én gang.
+ *
+ * Forsendelser som ikke får sendes med en gang venter i kø, høyst like lenge som
+ * {@link KlientKonfigurasjon.Builder#connectionRequestTimeout(int, TimeUnit)}.
+ */
+public class ConcurrencyLimiter {
+
+    private int minLimit;
+    private int maxLimit;
+    private long latencyThresholdNanos;
+    private double backoffRatio = 0.9;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitReleased = lock.newCondition();
+    private double limit;
+    private int inFlight = 0;
+    private int waiting = 0;
+    private long acquired = 0;
+    private long lastAcquiredBeforeDecrease = 0;
+
+    private final AtomicLong increases = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+
+    private ConcurrencyLimiter() {}
+
+    /**
+     * @param initialLimit Antall samtidige forsendelser før grensen er justert.
+     * @param minLimit Grensen går aldri under dette.
+     * @param maxLimit Grensen går aldri over dette. Bør ikke være større enn
+     *                 {@link KlientKonfigurasjon.Builder#maxConnectionPoolSize(int)}.
+     * @param latencyThreshold Forsendelser som tar lengre tid enn dette regnes som tegn på at meldingsformidler er overbelastet.
+     */
+    public static Builder builder(int initialLimit, int minLimit, int maxLimit, long latencyThreshold, TimeUnit timeUnit) {
+        return new Builder(initialLimit, minLimit, maxLimit, timeUnit.toNanos(latencyThreshold));
+    }
+
+    /**
+     * Venter på å få sende en forsendelse.
+     *
+     * @return Plassen, som må frigis med {@link Permit#release(long, SendException)} eller {@link Permit#release()},
+     *         eller {@code null} dersom det ikke ble ledig plass innen gitt tid.
+     */
+    public Permit acquire(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long remaining = timeUnit.toNanos(timeout);
+        lock.lock();
+        try {
+            waiting++;
+            try {
+                while (inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    remaining = permitReleased.awaitNanos(remaining);
+                }
+            } finally {
+                waiting--;
+            }
+            inFlight++;
+            return new Permit(++acquired);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Som {@link #acquire(long, TimeUnit)}, men venter uten tidsavbrudd.
+     */
+    public Permit acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            waiting++;
+            try {
+                while (inFlight >= (int) limit) {
+                    permitReleased.await();
+                }
+            } finally {
+                waiting--;
+            }
+            inFlight++;
+            return new Permit(++acquired);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSample(long sequence, long roundTripNanos, SendException failure) {
+        boolean overloaded = roundTripNanos > latencyThresholdNanos ||
+                (failure != null && (failure instanceof SendIOException || failure.getAntattSkyldig() == SERVER));
+        lock.lock();
+        try {
+            // Sendinger som startet før grensen sist ble senket er allerede tatt hensyn til
+            if (sequence > lastAcquiredBeforeDecrease) {
+                if (overloaded) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    decreases.incrementAndGet();
+                    lastAcquiredBeforeDecrease = acquired;
+                } else if (inFlight * 2 >= limit) {
+                    // Øk bare når grensen faktisk er i bruk, ellers vokser den uten å være prøvd
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                    increases.incrementAndGet();
+                }
+            }
+            inFlight--;
+            permitReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onRelease() {
+        lock.lock();
+        try {
+            inFlight--;
+            permitReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antall forsendelser som kan sendes samtidig nå.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antall forsendelser som venter på å få sendes.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getIncreases() {
+        return increases.get();
+    }
+
+    public long getDecreases() {
+        return decreases.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimiter{limit=" + getLimit() + ", inFlight=" + getInFlight() + ", queueDepth=" + getQueueDepth() +
+                ", increases=" + getIncreases() + ", decreases=" + getDecreases() + "}";
+    }
+
+    /**
+     * Plassen til én forsendelse. Husker når den ble tildelt, slik at svar på forsendelser som startet før grensen sist
+     * ble senket ikke senker den igjen.
+     */
+    public final class Permit {
+
+        private final long sequence;
+        private boolean released = false;
+
+        private Permit(long sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Frigir plassen etter en sendt forsendelse, og justerer grensen.
+         *
+         * @param roundTripNanos Hvor lang tid sendingen tok.
+         * @param failure Feilen sendingen ga, eller {@code null} om den lyktes. Bare nettverksfeil og feil som antas å
+         *                skyldes meldingsformidler senker grensen.
+         */
+        public void release(long roundTripNanos, SendException failure) {
+            if (!released) {
+                released = true;
+                onSample(sequence, roundTripNanos, failure);
+            }
+        }
+
+        /**
+         * Frigir plassen uten å justere grensen, for eksempel når forsendelsen aldri ble sendt.
+         */
+        public void release() {
+            if (!released) {
+                released = true;
+                onRelease();
+            }
+        }
+    }
+
+    public static class Builder {
+
+        private final ConcurrencyLimiter target;
+
+        private Builder(int initialLimit, int minLimit, int maxLimit, long latencyThresholdNanos) {
+            if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+                throw new IllegalArgumentException("Må ha 1 <= minLimit <= initialLimit <= maxLimit, var " + minLimit + ", " + initialLimit + ", " + maxLimit);
+            }
+            target = new ConcurrencyLimiter();
+            target.limit = initialLimit;
+            target.minLimit = minLimit;
+            target.maxLimit = maxLimit;
+            target.latencyThresholdNanos = latencyThresholdNanos;
+        }
+
+        /**
+         * Faktoren grensen ganges med når en forsendelse feiler eller er treg, høyst én gang per runde. Standard er 0.9.
+         */
+        public Builder backoffRatio(double backoffRatio) {
+            if (backoffRatio <= 0 || backoffRatio >= 1) {
+                throw new IllegalArgumentException("backoffRatio må være mellom 0 og 1, var " + backoffRatio);
+            }
+            target.backoffRatio = backoffRatio;
+            return this;
+        }
+
+        public ConcurrencyLimiter build() {
+            return target;
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Lager unike IDer, f.eks. meldingsId for forsendelser.
+ */
+public interface IdGenerator {
+
+    /**
+     * Tilfeldig UUID (versjon 4), tilsvarende {@link UUID#randomUUID()}, men trukket fra et fast sett med generatorer
+     * fordelt på trådene, slik at tråder ikke konkurrerer om samme generator.
+     */
+    IdGenerator RANDOM_UUID = new IdGenerator() {
+        @Override
+        public String generate() {
+            SecureRandom random = StripedSecureRandom.current();
+            long mostSigBits = (random.nextLong() & ~0xF000L) | 0x4000L;
+            long leastSigBits = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+            return new UUID(mostSigBits, leastSigBits).toString();
+        }
+    };
+
+    /**
+     * Tidsordnet UUID (versjon 7): de første 48 bitene er tidspunktet i millisekunder, resten er tilfeldig. IDer laget
+     * senere sorteres etter IDer laget tidligere, som gir bedre lokalitet i indekser og logger.
+     */
+    IdGenerator TIME_ORDERED_UUID = new IdGenerator() {
+        @Override
+        public String generate() {
+            SecureRandom random = StripedSecureRandom.current();
+            long mostSigBits = (System.currentTimeMillis() << 16) | 0x7000L | (random.nextInt() & 0x0FFFL);
+            long leastSigBits = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+            return new UUID(mostSigBits, leastSigBits).toString();
+        }
+    };
+
+    String generate();
+
+}
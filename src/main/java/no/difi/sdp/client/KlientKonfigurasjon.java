@@ -17,9 +17,20 @@ package no.difi.sdp.client;
 
 import static org.apache.commons.lang3.StringUtils.isEmpty;
 
+import java.io.File;
 import java.net.URI;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import no.difi.sdp.client.asice.archive.CompressionPolicy;
+import no.difi.sdp.client.asice.archive.CompressionPool;
+import no.difi.sdp.client.asice.archive.PreparedAttachmentCache;
+import no.difi.sdp.client.domain.exceptions.KonfigurasjonException;
+import no.difi.sdp.client.internal.VirtualThreads;
 import no.digipost.api.representations.Organisasjonsnummer;
 
 import org.apache.http.HttpRequestInterceptor;
@@ -41,6 +52,29 @@ public class KlientKonfigurasjon {
     private ClientInterceptor[] soapInterceptors = new ClientInterceptor[0];
     private HttpRequestInterceptor[] httpRequestInterceptors = new HttpRequestInterceptor[0];
     private HttpResponseInterceptor[] httpResponseInterceptors = new HttpResponseInterceptor[0];
+    private CompressionPolicy compressionPolicy = CompressionPolicy.DEFLATE_ALL;
+    private ExecutorService compressionExecutor;
+    private CompressionPool compressionPool = new CompressionPool();
+    private PreparedAttachmentCache preparedAttachmentCache;
+    private int spillToDiskThresholdInBytes = Integer.MAX_VALUE;
+    private File temporaryDirectory;
+    private ValidationPolicy validationPolicy = ValidationPolicy.always();
+    private int cmsRecipientCacheSize = 64;
+    private Provider contentEncryptionProvider;
+    private SecureRandom secureRandom = new SecureRandom();
+    private IdGenerator meldingsIdGenerator = IdGenerator.RANDOM_UUID;
+    private ExecutorService asyncSendExecutor;
+    private int asyncSendThreads = Runtime.getRuntime().availableProcessors();
+    private int asyncSendQueueCapacity = 100;
+    private RejectedExecutionHandler asyncSendRejectionPolicy = new ThreadPoolExecutor.CallerRunsPolicy();
+    private Integer asyncTransmissionThreads;
+    private Integer asyncTransmissionQueueCapacity;
+    private boolean virtualThreads = false;
+    private RetryPolicy retryPolicy = RetryPolicy.none();
+    private ResendCache resendCache;
+    private CircuitBreaker circuitBreaker;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private RateLimiter rateLimiter;
 
     private KlientKonfigurasjon() {}
 
@@ -100,6 +134,98 @@ public class KlientKonfigurasjon {
         return httpResponseInterceptors;
     }
 
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    public ExecutorService getCompressionExecutor() {
+        return compressionExecutor;
+    }
+
+    public CompressionPool getCompressionPool() {
+        return compressionPool;
+    }
+
+    public PreparedAttachmentCache getPreparedAttachmentCache() {
+        return preparedAttachmentCache;
+    }
+
+    public int getSpillToDiskThresholdInBytes() {
+        return spillToDiskThresholdInBytes;
+    }
+
+    public File getTemporaryDirectory() {
+        return temporaryDirectory;
+    }
+
+    public ValidationPolicy getValidationPolicy() {
+        return validationPolicy;
+    }
+
+    public int getCmsRecipientCacheSize() {
+        return cmsRecipientCacheSize;
+    }
+
+    public Provider getContentEncryptionProvider() {
+        return contentEncryptionProvider;
+    }
+
+    public SecureRandom getSecureRandom() {
+        return secureRandom;
+    }
+
+    public IdGenerator getMeldingsIdGenerator() {
+        return meldingsIdGenerator;
+    }
+
+    public ExecutorService getAsyncSendExecutor() {
+        return asyncSendExecutor;
+    }
+
+    public int getAsyncSendThreads() {
+        return asyncSendThreads;
+    }
+
+    public int getAsyncSendQueueCapacity() {
+        return asyncSendQueueCapacity;
+    }
+
+    public RejectedExecutionHandler getAsyncSendRejectionPolicy() {
+        return asyncSendRejectionPolicy;
+    }
+
+    public int getAsyncTransmissionThreads() {
+        return asyncTransmissionThreads != null ? asyncTransmissionThreads : maxConnectionPoolSize;
+    }
+
+    public int getAsyncTransmissionQueueCapacity() {
+        return asyncTransmissionQueueCapacity != null ? asyncTransmissionQueueCapacity : getAsyncTransmissionThreads();
+    }
+
+    public boolean useVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public ResendCache getResendCache() {
+        return resendCache;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
     public static class Builder {
 
         private final KlientKonfigurasjon target;
@@ -160,6 +286,222 @@ public class KlientKonfigurasjon {
             return this;
         }
 
+        /**
+         * Hvordan filene i dokumentpakken skal komprimeres. Standard er å komprimere alle filer med deflate.
+         *
+         * @see no.difi.sdp.client.asice.archive.ContentAwareCompressionPolicy
+         */
+        public Builder compressionPolicy(final CompressionPolicy compressionPolicy) {
+            target.compressionPolicy = compressionPolicy;
+            return this;
+        }
+
+        /**
+         * Komprimer filene i dokumentpakken parallelt på gitt executor. Nyttig for forsendelser med mange store vedlegg.
+         * Klienten avslutter ikke executoren. Standard er å komprimere sekvensielt i tråden som sender.
+         */
+        public Builder parallelCompression(final ExecutorService compressionExecutor) {
+            target.compressionExecutor = compressionExecutor;
+            return this;
+        }
+
+        /**
+         * Pool av {@link java.util.zip.Deflater}e og buffere som gjenbrukes ved zipping av dokumentpakker. Standard er
+         * en pool med plass til like mange som det er prosessorer. Poolen har tellere for treff og bom.
+         */
+        public Builder compressionPool(final CompressionPool compressionPool) {
+            target.compressionPool = compressionPool;
+            return this;
+        }
+
+        /**
+         * Hurtigbuffer for komprimerte vedlegg, slik at vedlegg som sendes til mange mottakere bare komprimeres én gang.
+         * Gjenbruk samme {@link no.difi.sdp.client.domain.Dokument}-instans for vedlegget på tvers av forsendelser for å også
+         * unngå at innholdet hashes på nytt. Standard er ingen hurtigbuffer.
+         */
+        public Builder preparedAttachmentCache(final PreparedAttachmentCache preparedAttachmentCache) {
+            target.preparedAttachmentCache = preparedAttachmentCache;
+            return this;
+        }
+
+        /**
+         * Dokumentpakker større enn dette skrives til en midlertidig fil i stedet for å holdes i minnet mens de sendes.
+         * Filen slettes når sendingen er ferdig. Standard er å alltid holde dokumentpakken i minnet.
+         */
+        public Builder spillToDisk(final int thresholdInBytes) {
+            target.spillToDiskThresholdInBytes = thresholdInBytes;
+            return this;
+        }
+
+        /**
+         * @param temporaryDirectory Mappe for midlertidige filer. Standard er {@code java.io.tmpdir}.
+         * @see #spillToDisk(int)
+         */
+        public Builder spillToDisk(final int thresholdInBytes, final File temporaryDirectory) {
+            target.spillToDiskThresholdInBytes = thresholdInBytes;
+            target.temporaryDirectory = temporaryDirectory;
+            return this;
+        }
+
+        /**
+         * Hvor ofte generert manifest, signatur og SOAP-request skal valideres mot XSD før sending.
+         * Standard er å validere alt, se {@link ValidationPolicy}.
+         */
+        public Builder validationPolicy(final ValidationPolicy validationPolicy) {
+            target.validationPolicy = validationPolicy;
+            return this;
+        }
+
+        /**
+         * Antall mottakersertifikater som holdes ferdig tolket for kryptering av dokumentpakken, slik at sertifikatet til
+         * en postkasse- eller utskriftsleverandør ikke tolkes på nytt for hver forsendelse. Når bufferet er fullt kastes
+         * det minst nylig brukte sertifikatet ut, og sertifikater som har gått ut brukes ikke. Bufferet tar lite plass,
+         * siden det bare holder offentlige nøkler.
+         *
+         * Standard er 64 sertifikater, som rommer alle leverandørene i praksis. Sett til 0 for å skru av bufferet.
+         */
+        public Builder cmsRecipientCacheSize(final int cmsRecipientCacheSize) {
+            if (cmsRecipientCacheSize < 0) {
+                throw new IllegalArgumentException("cmsRecipientCacheSize kan ikke være negativ, var " + cmsRecipientCacheSize);
+            }
+            target.cmsRecipientCacheSize = cmsRecipientCacheSize;
+            return this;
+        }
+
+        /**
+         * JCE-provider for AES-krypteringen av dokumentpakken. Standard er JDK-ens SunJCE, som bruker maskinvareakselerert
+         * AES der det er tilgjengelig, med BouncyCastle som reserve. CMS-strukturen og nøkkelkrypteringen lages alltid med
+         * BouncyCastle.
+         */
+        public Builder contentEncryptionProvider(final Provider contentEncryptionProvider) {
+            target.contentEncryptionProvider = contentEncryptionProvider;
+            return this;
+        }
+
+        /**
+         * Kilde til tilfeldighet for nøkler og initialiseringsvektorer ved kryptering av dokumentpakken.
+         * Standard er JDK-ens standard {@link SecureRandom}.
+         */
+        public Builder secureRandom(final SecureRandom secureRandom) {
+            target.secureRandom = secureRandom;
+            return this;
+        }
+
+        /**
+         * Lager meldingsId for hver forsendelse. Standard er {@link IdGenerator#RANDOM_UUID}. Bruk
+         * {@link IdGenerator#TIME_ORDERED_UUID} for IDer som sorteres etter tidspunkt.
+         */
+        public Builder meldingsIdGenerator(final IdGenerator meldingsIdGenerator) {
+            target.meldingsIdGenerator = meldingsIdGenerator;
+            return this;
+        }
+
+        /**
+         * Antall tråder og størrelse på køen for å lage dokumentpakker i
+         * {@link SikkerDigitalPostKlient#sendAsync(no.difi.sdp.client.domain.Forsendelse)}. Dette er CPU-krevende, og
+         * standard er derfor én tråd per prosessor og en kø på 100 forsendelser.
+         */
+        public Builder asyncSend(final int threads, final int queueCapacity) {
+            target.asyncSendThreads = threads;
+            target.asyncSendQueueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Antall tråder og størrelse på køen for å sende ferdige dokumentpakker i
+         * {@link SikkerDigitalPostKlient#sendAsync(no.difi.sdp.client.domain.Forsendelse)}. Når køen er full venter
+         * pakketrådene. Standard er like mange tråder og plasser i køen som {@link #maxConnectionPoolSize(int)}.
+         * Med {@link #virtualThreads()} får hver forsendelse sin egen virtuelle tråd, og tråder og kø til sammen er
+         * grensen for hvor mange ferdige dokumentpakker som venter på eller er under overføring.
+         */
+        public Builder asyncTransmission(final int threads, final int queueCapacity) {
+            target.asyncTransmissionThreads = threads;
+            target.asyncTransmissionQueueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Hva som skjer når køen for asynkron sending er full. Standard er {@link ThreadPoolExecutor.CallerRunsPolicy}, som
+         * sender på kallende tråd og dermed bremser den som legger på forsendelser. Bruk {@link ThreadPoolExecutor.AbortPolicy}
+         * for å i stedet få {@link java.util.concurrent.RejectedExecutionException}.
+         */
+        public Builder asyncSendRejectionPolicy(final RejectedExecutionHandler rejectionPolicy) {
+            target.asyncSendRejectionPolicy = rejectionPolicy;
+            return this;
+        }
+
+        /**
+         * Egen executor for å lage dokumentpakker ved asynkron sending. Overstyrer {@link #asyncSend(int, int)} og
+         * {@link #asyncSendRejectionPolicy(RejectedExecutionHandler)}, og må avsluttes av den som oppretter den.
+         */
+        public Builder asyncSendExecutor(final ExecutorService asyncSendExecutor) {
+            target.asyncSendExecutor = asyncSendExecutor;
+            return this;
+        }
+
+        /**
+         * Tilpass klienten til mange samtidige kall til {@code send} og {@code hentKvittering} fra virtuelle tråder (Java 21
+         * og nyere). Overføringen i {@link SikkerDigitalPostKlient#sendAsync(no.difi.sdp.client.domain.Forsendelse)} kjøres
+         * da på en ny virtuell tråd per forsendelse, og bare like mange forespørsler som det er plass til i {@link #maxConnectionPoolSize(int)}
+         * slippes inn i HTTP-klienten om gangen. Resten venter uten å holde på en plattformtråd, og feiler med
+         * {@link no.difi.sdp.client.domain.exceptions.RequestPermitTimeoutException} etter {@link #connectionRequestTimeout(int, TimeUnit)}.
+         *
+         * @throws KonfigurasjonException dersom JVM-en ikke har virtuelle tråder.
+         */
+        public Builder virtualThreads() {
+            if (!VirtualThreads.isAvailable()) {
+                throw new KonfigurasjonException("Virtual threads require Java 21 or newer, running on Java " + System.getProperty("java.version"));
+            }
+            target.virtualThreads = true;
+            return this;
+        }
+
+        /**
+         * Send forsendelser på nytt når sendingen feiler med nettverksfeil eller feil hos meldingsformidler. Forsendelsen
+         * sendes på nytt med samme meldingsId og dokumentpakke. Standard er å ikke prøve igjen.
+         */
+        public Builder retryPolicy(final RetryPolicy retryPolicy) {
+            target.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Behold pakkede forsendelser som fortsatt feiler etter siste forsøk i {@link #retryPolicy(RetryPolicy)}, slik at
+         * de ikke pakkes og krypteres på nytt når samme forsendelse (samme konversasjonsId) sendes igjen. Standard er å
+         * ikke beholde dem.
+         */
+        public Builder resendCache(final ResendCache resendCache) {
+            target.resendCache = resendCache;
+            return this;
+        }
+
+        /**
+         * Stans sendingen midlertidig når meldingsformidler feiler gjentatte ganger, slik at forsendelser ikke pakkes
+         * bare for å feile. Gjelder alle forespørsler fra klienten. Standard er å alltid sende.
+         */
+        public Builder circuitBreaker(final CircuitBreaker circuitBreaker) {
+            target.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        /**
+         * Juster antall forsendelser som lastes opp samtidig etter svartid og feil fra meldingsformidler, i stedet for å
+         * alltid bruke hele {@link #maxConnectionPoolSize(int)}. Standard er å ikke begrense utover connection pool.
+         */
+        public Builder concurrencyLimiter(final ConcurrencyLimiter concurrencyLimiter) {
+            target.concurrencyLimiter = concurrencyLimiter;
+            return this;
+        }
+
+        /**
+         * Begrens hvor mange forsendelser og kvitteringsforespørsler som sendes per tidsenhet, for eksempel når flere
+         * systemer deler samme avtale med meldingsformidler. Standard er å ikke begrense.
+         */
+        public Builder rateLimiter(final RateLimiter rateLimiter) {
+            target.rateLimiter = rateLimiter;
+            return this;
+        }
+
         public KlientKonfigurasjon build() {
             return target;
         }
@@ -0,0 +1,265 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import no.difi.sdp.client.domain.Behandlingsansvarlig;
+import no.difi.sdp.client.domain.Forsendelse;
+import no.difi.sdp.client.domain.Prioritet;
+import no.difi.sdp.client.domain.exceptions.RateLimitExceededException;
+import no.difi.sdp.client.domain.exceptions.SendException;
+import no.difi.sdp.client.domain.kvittering.KvitteringForespoersel;
+import no.difi.sdp.client.internal.TokenBucket;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.UKJENT;
+
+/**
+ * Begrenser hvor mange forsendelser og kvitteringsforespørsler klienten sender per tidsenhet, med egne grenser per
+ * {@link Prioritet}, per mpcId og per {@link Behandlingsansvarlig}. En forespørsel må ha plass innenfor alle grensene
+ * som gjelder for den. Grensene holdes i token buckets uten låser, så tråder som sender samtidig venter ikke på hverandre.
+ *
+ * Som standard venter forespørsler til det er plass. Med {@link Builder#maxWait(long, TimeUnit)} eller
+ * {@link Builder#failFast()} avvises de i stedet med {@link RateLimitExceededException}.
+ */
+public class RateLimiter {
+
+    private final Map<Prioritet, TokenBucket> sendPerPrioritet = new EnumMap<Prioritet, TokenBucket>(Prioritet.class);
+    private final Map<Prioritet, TokenBucket> kvitteringPerPrioritet = new EnumMap<Prioritet, TokenBucket>(Prioritet.class);
+    private final PerKey sendPerMpcId = new PerKey();
+    private final PerKey sendPerBehandlingsansvarlig = new PerKey();
+    private final PerKey kvitteringPerMpcId = new PerKey();
+    private long maxWaitNanos = Long.MAX_VALUE;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private RateLimiter() {}
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Venter til forsendelsen kan sendes innenfor grensene. Klienten kaller denne for hvert forsøk på å sende
+     * forsendelsen, også nye forsøk etter feil, og først når forsendelsen er pakket.
+     *
+     * @throws RateLimitExceededException dersom det må ventes lengre enn {@link Builder#maxWait(long, TimeUnit)}.
+     */
+    public void acquireSend(Forsendelse forsendelse) throws SendException {
+        List<TokenBucket> buckets = new ArrayList<TokenBucket>(3);
+        add(buckets, sendPerPrioritet.get(forsendelse.getPrioritet()));
+        add(buckets, sendPerMpcId.get(forsendelse.getMpcId()));
+        add(buckets, sendPerBehandlingsansvarlig.get(key(forsendelse.getBehandlingsansvarlig())));
+        acquire(buckets, "forsendelse " + forsendelse.getKonversasjonsId());
+    }
+
+    /**
+     * Venter til kvitteringer kan forespørres innenfor grensene.
+     *
+     * @throws RateLimitExceededException dersom det må ventes lengre enn {@link Builder#maxWait(long, TimeUnit)}.
+     */
+    public void acquireKvittering(KvitteringForespoersel kvitteringForespoersel) throws SendException {
+        List<TokenBucket> buckets = new ArrayList<TokenBucket>(2);
+        add(buckets, kvitteringPerPrioritet.get(kvitteringForespoersel.getPrioritet()));
+        add(buckets, kvitteringPerMpcId.get(kvitteringForespoersel.getMpcId()));
+        acquire(buckets, "kvittering with prioritet " + kvitteringForespoersel.getPrioritet());
+    }
+
+    /**
+     * @return Antall forespørsler som er avvist fordi de ville gått over en grense.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private void acquire(List<TokenBucket> buckets, String beskrivelse) {
+        long wait = 0;
+        for (int i = 0; i < buckets.size(); i++) {
+            long bucketWait = buckets.get(i).reserve(maxWaitNanos);
+            if (bucketWait < 0) {
+                // Gi tilbake det som allerede er satt av, ellers teller forespørselen mot grensene uten å sendes
+                refund(buckets.subList(0, i));
+                rejected.incrementAndGet();
+                throw new RateLimitExceededException("Rate limit exceeded for " + beskrivelse);
+            }
+            wait = Math.max(wait, bucketWait);
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                refund(buckets);
+                Thread.currentThread().interrupt();
+                throw new SendException("Interrupted while waiting for rate limit", UKJENT, e);
+            }
+        }
+    }
+
+    private static void refund(List<TokenBucket> buckets) {
+        for (TokenBucket bucket : buckets) {
+            bucket.refund();
+        }
+    }
+
+    private static void add(List<TokenBucket> buckets, TokenBucket bucket) {
+        if (bucket != null) {
+            buckets.add(bucket);
+        }
+    }
+
+    private static String key(Behandlingsansvarlig behandlingsansvarlig) {
+        if (behandlingsansvarlig.getAvsenderIdentifikator() == null) {
+            return behandlingsansvarlig.getOrganisasjonsnummer();
+        }
+        return behandlingsansvarlig.getOrganisasjonsnummer() + "/" + behandlingsansvarlig.getAvsenderIdentifikator();
+    }
+
+    /**
+     * Én token bucket per nøkkel, opprettet første gang nøkkelen brukes. Bøtter som er helt fylt opp igjen fjernes når
+     * antall nøkler har doblet seg siden forrige opprydding, siden en ny bøtte oppfører seg likt. Da vokser ikke kartet
+     * med nøkler som ikke lenger er i bruk.
+     */
+    static class PerKey {
+
+        private static final int MIN_SWEEP_SIZE = 64;
+
+        private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+        private final AtomicInteger sweepAt = new AtomicInteger(MIN_SWEEP_SIZE);
+        private int permits;
+        private long periodNanos;
+
+        TokenBucket get(String key) {
+            if (periodNanos == 0) {
+                return null;
+            }
+            String nonNullKey = key != null ? key : "";
+            TokenBucket bucket = buckets.get(nonNullKey);
+            if (bucket == null) {
+                TokenBucket created = new TokenBucket(permits, periodNanos, TimeUnit.NANOSECONDS);
+                bucket = buckets.putIfAbsent(nonNullKey, created);
+                if (bucket == null) {
+                    bucket = created;
+                    sweepIfGrown();
+                }
+            }
+            return bucket;
+        }
+
+        private void sweepIfGrown() {
+            int threshold = sweepAt.get();
+            if (buckets.size() < threshold || !sweepAt.compareAndSet(threshold, Integer.MAX_VALUE)) {
+                return;
+            }
+            for (Iterator<TokenBucket> iterator = buckets.values().iterator(); iterator.hasNext(); ) {
+                if (iterator.next().isFull()) {
+                    iterator.remove();
+                }
+            }
+            sweepAt.set(Math.max(MIN_SWEEP_SIZE, buckets.size() * 2));
+        }
+
+        int size() {
+            return buckets.size();
+        }
+
+        void limit(int permits, long period, TimeUnit timeUnit) {
+            if (permits < 1) {
+                throw new IllegalArgumentException("permits må være minst 1, var " + permits);
+            }
+            this.permits = permits;
+            this.periodNanos = timeUnit.toNanos(period);
+        }
+    }
+
+    public static class Builder {
+
+        private final RateLimiter target;
+
+        private Builder() {
+            target = new RateLimiter();
+        }
+
+        /**
+         * Høyst {@code permits} forsendelser med gitt prioritet per periode.
+         */
+        public Builder send(Prioritet prioritet, int permits, long period, TimeUnit timeUnit) {
+            target.sendPerPrioritet.put(prioritet, new TokenBucket(permits, period, timeUnit));
+            return this;
+        }
+
+        /**
+         * Høyst {@code permits} forsendelser per periode for hver mpcId. Forsendelser uten mpcId deler én grense.
+         */
+        public Builder sendPerMpcId(int permits, long period, TimeUnit timeUnit) {
+            target.sendPerMpcId.limit(permits, period, timeUnit);
+            return this;
+        }
+
+        /**
+         * Høyst {@code permits} forsendelser per periode for hver behandlingsansvarlig, skilt på organisasjonsnummer og
+         * avsenderidentifikator.
+         */
+        public Builder sendPerBehandlingsansvarlig(int permits, long period, TimeUnit timeUnit) {
+            target.sendPerBehandlingsansvarlig.limit(permits, period, timeUnit);
+            return this;
+        }
+
+        /**
+         * Høyst {@code permits} kvitteringsforespørsler med gitt prioritet per periode.
+         */
+        public Builder kvittering(Prioritet prioritet, int permits, long period, TimeUnit timeUnit) {
+            target.kvitteringPerPrioritet.put(prioritet, new TokenBucket(permits, period, timeUnit));
+            return this;
+        }
+
+        /**
+         * Høyst {@code permits} kvitteringsforespørsler per periode for hver mpcId. Forespørsler uten mpcId deler én grense.
+         */
+        public Builder kvitteringPerMpcId(int permits, long period, TimeUnit timeUnit) {
+            target.kvitteringPerMpcId.limit(permits, period, timeUnit);
+            return this;
+        }
+
+        /**
+         * Vent høyst så lenge på plass innenfor grensene før forespørselen avvises. Standard er å vente så lenge det trengs.
+         */
+        public Builder maxWait(long maxWait, TimeUnit timeUnit) {
+            target.maxWaitNanos = timeUnit.toNanos(maxWait);
+            return this;
+        }
+
+        /**
+         * Avvis forespørsler med en gang dersom det ikke er plass innenfor grensene.
+         */
+        public Builder failFast() {
+            return maxWait(0, TimeUnit.NANOSECONDS);
+        }
+
+        public RateLimiter build() {
+            return target;
+        }
+    }
+
+}
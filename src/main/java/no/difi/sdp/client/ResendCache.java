@@ -0,0 +1,487 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import no.difi.sdp.client.domain.Behandlingsansvarlig;
+import no.difi.sdp.client.domain.Dokument;
+import no.difi.sdp.client.domain.Forsendelse;
+import no.difi.sdp.client.domain.Mottaker;
+import no.difi.sdp.client.domain.TekniskMottaker;
+import no.difi.sdp.client.domain.digital_post.DigitalPost;
+import no.difi.sdp.client.domain.digital_post.Varsel;
+import no.difi.sdp.client.domain.fysisk_post.FysiskPost;
+import no.difi.sdp.client.domain.fysisk_post.KonvoluttAdresse;
+import no.difi.sdp.client.internal.BufferedDokumentpakke;
+import no.digipost.api.representations.EbmsForsendelse;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ferdig pakkede forsendelser som ikke ble akseptert av meldingsformidler, adressert på konversasjonsId. Når samme
+ * forsendelse sendes på nytt hentes den herfra, og sendes med samme meldingsId og samme krypterte dokumentpakke i
+ * stedet for å signeres, zippes og krypteres på nytt.
+ *
+ * Hver pakke lagres sammen med et fingeravtrykk av forsendelsen (mottakers sertifikat, dokumentenes innhold og
+ * metadata), se {@link #fingerprint(Forsendelse)}. Er forsendelsen endret siden den ble pakket, kastes pakken og
+ * forsendelsen pakkes på nytt.
+ *
+ * Bufferet er begrenset av antall forsendelser og hvor lenge de holdes, og kaster ut de eldste først. Når
+ * dokumentpakkene i minnet til sammen blir større enn en grense, flyttes de eldste til midlertidige filer. Forsendelser
+ * som kastes ut slettes, og pakkes på nytt om de sendes igjen. Midlertidige filer slettes når bufferet
+ * {@link #close() lukkes}, og senest når JVM-en avsluttes.
+ */
+public class ResendCache implements Closeable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_MAX_BYTES_IN_MEMORY = 64 * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_IN_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final Logger log = LoggerFactory.getLogger(ResendCache.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int maxEntries;
+    private final long maxBytesInMemory;
+    private final long maxAgeInMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private long bytesInMemory = 0;
+    private Thread shutdownHook;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+
+    public ResendCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES_IN_MEMORY);
+    }
+
+    /**
+     * @param maxEntries Maks antall forsendelser i bufferet.
+     * @param maxBytesInMemory Maks total størrelse på dokumentpakkene som holdes i minnet. Resten ligger på disk.
+     */
+    public ResendCache(int maxEntries, long maxBytesInMemory) {
+        this(maxEntries, maxBytesInMemory, DEFAULT_MAX_AGE_IN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxEntries Maks antall forsendelser i bufferet.
+     * @param maxBytesInMemory Maks total størrelse på dokumentpakkene som holdes i minnet. Resten ligger på disk.
+     * @param maxAge Hvor lenge en pakket forsendelse holdes før den kastes.
+     */
+    public ResendCache(int maxEntries, long maxBytesInMemory, long maxAge, TimeUnit unit) {
+        if (maxAge <= 0) {
+            throw new IllegalArgumentException("maxAge må være større enn 0, var " + maxAge);
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytesInMemory = maxBytesInMemory;
+        this.maxAgeInMillis = unit.toMillis(maxAge);
+    }
+
+    /**
+     * Henter ut og fjerner en pakket forsendelse fra bufferet. Er forsendelsen pakket med et annet fingeravtrykk, eller
+     * har den ligget for lenge, kastes den.
+     *
+     * @param fingerprint Fingeravtrykket til forsendelsen slik den er nå, se {@link #fingerprint(Forsendelse)}.
+     * @return Forsendelsen, eller {@code null} om den ikke finnes i bufferet eller ikke kan gjenbrukes.
+     */
+    public EbmsForsendelse take(String konversasjonsId, String fingerprint) {
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.remove(konversasjonsId);
+            if (entry != null) {
+                bytesInMemory -= entry.bytesInMemory;
+                entry.bytesInMemory = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.isExpired(maxAgeInMillis)) {
+            expirations.incrementAndGet();
+            misses.incrementAndGet();
+            entry.discard();
+            return null;
+        }
+        if (!entry.fingerprint.equals(fingerprint)) {
+            log.info("Forsendelse " + konversasjonsId + " has changed since it was packaged, packaging it again");
+            stale.incrementAndGet();
+            misses.incrementAndGet();
+            entry.discard();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.take();
+    }
+
+    /**
+     * Legger en pakket forsendelse i bufferet. Bufferet tar over ansvaret for å slette dokumentpakken.
+     *
+     * @param fingerprint Fingeravtrykket til forsendelsen pakken ble laget fra, se {@link #fingerprint(Forsendelse)}.
+     */
+    public void put(String konversasjonsId, String fingerprint, EbmsForsendelse ebmsForsendelse) {
+        Entry entry = new Entry(konversasjonsId, fingerprint, ebmsForsendelse);
+        List<Entry> discarded = new ArrayList<Entry>();
+        List<Entry> toSpill = new ArrayList<Entry>();
+        lock.lock();
+        try {
+            // Fjernes først, slik at forsendelsen havner sist i rekkefølgen for utkasting
+            Entry previous = entries.remove(konversasjonsId);
+            if (previous != null) {
+                bytesInMemory -= previous.bytesInMemory;
+                previous.bytesInMemory = 0;
+                if (previous.ebmsForsendelse != ebmsForsendelse) {
+                    discarded.add(previous);
+                }
+            }
+            entries.put(konversasjonsId, entry);
+            entry.bytesInMemory = bytesInMemory(ebmsForsendelse);
+            bytesInMemory += entry.bytesInMemory;
+
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (eldest.hasNext()) {
+                Entry candidate = eldest.next();
+                boolean expired = candidate.isExpired(maxAgeInMillis);
+                if (!expired && entries.size() <= maxEntries) {
+                    break;
+                }
+                eldest.remove();
+                bytesInMemory -= candidate.bytesInMemory;
+                candidate.bytesInMemory = 0;
+                discarded.add(candidate);
+                (expired ? expirations : evictions).incrementAndGet();
+            }
+
+            // Pakkene som skal flyttes til disk trekkes fra nå, så de skrives utenfor låsen
+            Iterator<Entry> oldestInMemory = entries.values().iterator();
+            while (bytesInMemory > maxBytesInMemory && oldestInMemory.hasNext()) {
+                Entry candidate = oldestInMemory.next();
+                if (candidate.bytesInMemory > 0) {
+                    bytesInMemory -= candidate.bytesInMemory;
+                    candidate.spilling = candidate.bytesInMemory;
+                    candidate.bytesInMemory = 0;
+                    toSpill.add(candidate);
+                }
+            }
+            if (!toSpill.isEmpty() && shutdownHook == null) {
+                shutdownHook = new Thread("sdp-resend-cache-cleanup") {
+                    @Override
+                    public void run() {
+                        discardAll();
+                    }
+                };
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (Entry evicted : discarded) {
+            evicted.discard();
+        }
+        for (Entry candidate : toSpill) {
+            spillToDisk(candidate);
+        }
+    }
+
+    private void spillToDisk(Entry entry) {
+        try {
+            if (entry.spillToDisk()) {
+                spills.incrementAndGet();
+            }
+        } catch (IOException e) {
+            // Forsendelsen blir liggende i minnet, og telles med igjen dersom den fortsatt er i bufferet
+            log.warn("Unable to spill dokumentpakke for " + entry.konversasjonsId + " to disk", e);
+            lock.lock();
+            try {
+                if (entries.get(entry.konversasjonsId) == entry) {
+                    entry.bytesInMemory = entry.spilling;
+                    bytesInMemory += entry.spilling;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Sletter alle pakkede forsendelser, også de som er flyttet til midlertidige filer.
+     */
+    @Override
+    public void close() {
+        Thread hook;
+        lock.lock();
+        try {
+            hook = shutdownHook;
+            shutdownHook = null;
+        } finally {
+            lock.unlock();
+        }
+        if (hook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // JVM-en avsluttes allerede, og kroken rydder selv
+            }
+        }
+        discardAll();
+    }
+
+    private void discardAll() {
+        List<Entry> discarded;
+        lock.lock();
+        try {
+            discarded = new ArrayList<Entry>(entries.values());
+            entries.clear();
+            bytesInMemory = 0;
+        } finally {
+            lock.unlock();
+        }
+        for (Entry entry : discarded) {
+            entry.discard();
+        }
+    }
+
+    /**
+     * Fingeravtrykk av alt som inngår i en pakket forsendelse: mottakers sertifikat, dokumentenes innhold og navn, og
+     * metadata for forsendelsen. Innholdet i dokumentene inngår med sin SHA-256, som uansett trengs for signeringen.
+     */
+    public static String fingerprint(Forsendelse forsendelse) {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        TekniskMottaker tekniskMottaker = forsendelse.getTekniskMottaker();
+        update(digest, tekniskMottaker.organisasjonsnummer);
+        digest.update(tekniskMottaker.sertifikat.getEncoded());
+
+        update(digest, forsendelse.type, forsendelse.getPrioritet(), forsendelse.getSpraakkode(), forsendelse.getMpcId());
+        Behandlingsansvarlig behandlingsansvarlig = forsendelse.getBehandlingsansvarlig();
+        update(digest, behandlingsansvarlig.getOrganisasjonsnummer(), behandlingsansvarlig.getAvsenderIdentifikator(),
+                behandlingsansvarlig.getFakturaReferanse());
+
+        DigitalPost digitalPost = forsendelse.getDigitalPost();
+        if (digitalPost != null) {
+            Mottaker mottaker = digitalPost.getMottaker();
+            update(digest, mottaker.getPersonidentifikator(), mottaker.getPostkasseadresse(), digitalPost.getIkkeSensitivTittel(),
+                    digitalPost.getSikkerhetsnivaa(), digitalPost.isAapningskvittering(),
+                    digitalPost.getVirkningsdato() != null ? digitalPost.getVirkningsdato().getTime() : null);
+            update(digest, digitalPost.getEpostVarsel() != null ? digitalPost.getEpostVarsel().getEpostadresse() : null);
+            update(digest, digitalPost.getEpostVarsel());
+            update(digest, digitalPost.getSmsVarsel() != null ? digitalPost.getSmsVarsel().getMobilnummer() : null);
+            update(digest, digitalPost.getSmsVarsel());
+        }
+        FysiskPost fysiskPost = forsendelse.getFysiskPost();
+        if (fysiskPost != null) {
+            update(digest, fysiskPost.getPosttype(), fysiskPost.getUtskriftsfarge(), fysiskPost.getReturhaandtering());
+            update(digest, fysiskPost.getAdresse());
+            update(digest, fysiskPost.getReturadresse());
+        }
+
+        update(digest, forsendelse.getDokumentpakke().getHoveddokument());
+        for (Dokument vedlegg : forsendelse.getDokumentpakke().getVedlegg()) {
+            update(digest, vedlegg);
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, Dokument dokument) {
+        update(digest, dokument.getTittel(), dokument.getFilnavn(), dokument.getMimeType());
+        digest.update(dokument.getDigest().getSha256());
+    }
+
+    private static void update(MessageDigest digest, Varsel varsel) {
+        if (varsel != null) {
+            update(digest, varsel.getVarslingsTekst(), varsel.getDagerEtter());
+        } else {
+            update(digest, (Object) null);
+        }
+    }
+
+    private static void update(MessageDigest digest, KonvoluttAdresse adresse) {
+        if (adresse != null) {
+            update(digest, adresse.getType(), adresse.getNavn(), adresse.getAdresselinjer(), adresse.getPostnummer(),
+                    adresse.getPoststed(), adresse.getLandkode(), adresse.getLand());
+        } else {
+            update(digest, (Object) null);
+        }
+    }
+
+    private static void update(MessageDigest digest, Object... values) {
+        for (Object value : values) {
+            // Skilletegn mellom verdiene, så f.eks. "ab" + "c" og "a" + "bc" gir ulikt avtrykk
+            digest.update(String.valueOf(value).getBytes(UTF_8));
+            digest.update((byte) 0);
+        }
+    }
+
+    private static long bytesInMemory(EbmsForsendelse ebmsForsendelse) {
+        if (ebmsForsendelse.getDokumentpakke() instanceof BufferedDokumentpakke) {
+            BufferedDokumentpakke dokumentpakke = (BufferedDokumentpakke) ebmsForsendelse.getDokumentpakke();
+            return dokumentpakke.isInMemory() ? dokumentpakke.size() : 0;
+        }
+        return 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Antall pakker som ble kastet fordi forsendelsen var endret siden den ble pakket.
+     */
+    public long getStale() {
+        return stale.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public long getSpills() {
+        return spills.get();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytesInMemory() {
+        lock.lock();
+        try {
+            return bytesInMemory;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ResendCache{hits=" + getHits() + ", misses=" + getMisses() + ", stale=" + getStale() + ", evictions=" + getEvictions() +
+                ", expirations=" + getExpirations() + ", spills=" + getSpills() + ", entries=" + size() + ", bytesInMemory=" + getBytesInMemory() + "}";
+    }
+
+    /**
+     * En pakket forsendelse. Flytting til disk, uthenting og sletting synkroniseres på forsendelsen, slik at en pakke
+     * ikke slettes eller leses mens den skrives til fil.
+     */
+    private static final class Entry {
+
+        private final String konversasjonsId;
+        private final String fingerprint;
+        private final EbmsForsendelse ebmsForsendelse;
+        private final long created = DateTimeUtils.currentTimeMillis();
+        private final ReentrantLock lock = new ReentrantLock();
+        private boolean discarded = false;
+
+        /**
+         * Hvor mye av {@link ResendCache#getBytesInMemory()} pakken står for, og hvor mye som er under flytting til disk.
+         * Beskyttes av bufferets lås.
+         */
+        private long bytesInMemory;
+        private long spilling;
+
+        private Entry(String konversasjonsId, String fingerprint, EbmsForsendelse ebmsForsendelse) {
+            this.konversasjonsId = konversasjonsId;
+            this.fingerprint = fingerprint;
+            this.ebmsForsendelse = ebmsForsendelse;
+        }
+
+        private boolean isExpired(long maxAgeInMillis) {
+            return DateTimeUtils.currentTimeMillis() - created > maxAgeInMillis;
+        }
+
+        private boolean spillToDisk() throws IOException {
+            // ReentrantLock i stedet for synchronized, så en virtuell tråd som venter på flyttingen ikke binder bæretråden
+            lock.lock();
+            try {
+                if (discarded || !(ebmsForsendelse.getDokumentpakke() instanceof BufferedDokumentpakke)) {
+                    return false;
+                }
+                BufferedDokumentpakke dokumentpakke = (BufferedDokumentpakke) ebmsForsendelse.getDokumentpakke();
+                if (!dokumentpakke.isInMemory()) {
+                    return false;
+                }
+                dokumentpakke.spillToDisk();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Venter på at en eventuell flytting til disk blir ferdig før pakken gis videre.
+         */
+        private EbmsForsendelse take() {
+            lock.lock();
+            try {
+                discarded = true;
+                return ebmsForsendelse;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void discard() {
+            lock.lock();
+            try {
+                if (discarded) {
+                    return;
+                }
+                discarded = true;
+                if (ebmsForsendelse.getDokumentpakke() instanceof Closeable) {
+                    IOUtils.closeQuietly((Closeable) ebmsForsendelse.getDokumentpakke());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+}
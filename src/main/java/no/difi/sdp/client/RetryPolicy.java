@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import no.difi.sdp.client.domain.exceptions.SendException;
+import no.difi.sdp.client.domain.exceptions.SendIOException;
+import no.difi.sdp.client.domain.exceptions.SoapFaultException;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.SERVER;
+
+/**
+ * Bestemmer om og hvor lenge det skal ventes før en forsendelse sendes på nytt når sendingen feiler. Forsendelsen
+ * sendes da på nytt med samme meldingsId og samme krypterte dokumentpakke, uten å pakkes på nytt.
+ *
+ * Ventetiden dobles for hvert forsøk opp til et tak, og trekkes tilfeldig mellom 0 og dette ("full jitter"), slik at
+ * mange klienter som feiler samtidig ikke prøver igjen samtidig.
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long initialBackoffInMillis;
+    private final long maxBackoffInMillis;
+    private final Random random = new Random();
+
+    protected RetryPolicy(int maxAttempts, long initialBackoffInMillis, long maxBackoffInMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts må være minst 1, var " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffInMillis = initialBackoffInMillis;
+        this.maxBackoffInMillis = maxBackoffInMillis;
+    }
+
+    /**
+     * Send bare én gang. Dette er standard.
+     */
+    public static RetryPolicy none() {
+        return new RetryPolicy(1, 0, 0);
+    }
+
+    /**
+     * @param maxAttempts Maks antall forsøk totalt, inkludert det første.
+     * @param initialBackoff Maks ventetid før andre forsøk.
+     * @param maxBackoff Tak for ventetiden.
+     */
+    public static RetryPolicy exponentialBackoff(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit timeUnit) {
+        return new RetryPolicy(maxAttempts, timeUnit.toMillis(initialBackoff), timeUnit.toMillis(maxBackoff));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return Om sendingen kan forsøkes igjen. Standard er nettverksfeil og SOAP faults som skyldes meldingsformidler.
+     */
+    public boolean isRetryable(SendException e) {
+        return e instanceof SendIOException || (e instanceof SoapFaultException && e.getAntattSkyldig() == SERVER);
+    }
+
+    /**
+     * @param attempt Forsøket som nettopp feilet, fra 1.
+     * @return Hvor lenge det skal ventes før neste forsøk.
+     */
+    public long backoffInMillis(int attempt) {
+        long ceiling = initialBackoffInMillis << Math.min(attempt - 1, 30);
+        if (ceiling < 0 || ceiling > maxBackoffInMillis) {
+            ceiling = maxBackoffInMillis;
+        }
+        return ceiling > 0 ? (long) (random.nextDouble() * (ceiling + 1)) : 0;
+    }
+
+}
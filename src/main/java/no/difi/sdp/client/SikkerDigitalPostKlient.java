@@ -17,24 +17,43 @@ package no.difi.sdp.client;
 
 import no.difi.sdp.client.domain.Forsendelse;
 import no.difi.sdp.client.domain.TekniskAvsender;
+import no.difi.sdp.client.domain.exceptions.CircuitBreakerOpenException;
+import no.difi.sdp.client.domain.exceptions.RateLimitExceededException;
 import no.difi.sdp.client.domain.exceptions.SendException;
 import no.difi.sdp.client.domain.kvittering.ForretningsKvittering;
 import no.difi.sdp.client.domain.kvittering.KvitteringForespoersel;
 import no.difi.sdp.client.internal.DigipostMessageSenderFacade;
 import no.difi.sdp.client.internal.EbmsForsendelseBuilder;
 import no.difi.sdp.client.internal.KvitteringBuilder;
+import no.difi.sdp.client.internal.MeteredExecutor;
+import no.difi.sdp.client.internal.PipelineStage;
+import no.difi.sdp.client.internal.SendPipeline;
+import no.difi.sdp.client.internal.ThreadPerTaskStage;
+import no.difi.sdp.client.internal.VirtualThreads;
 import no.difi.sdp.client.util.CryptoChecker;
 import no.digipost.api.representations.EbmsApplikasjonsKvittering;
 import no.digipost.api.representations.EbmsForsendelse;
 import no.digipost.api.representations.EbmsPullRequest;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 public class SikkerDigitalPostKlient {
 
+    private static final Logger log = LoggerFactory.getLogger(SikkerDigitalPostKlient.class);
+
     private final TekniskAvsender tekniskAvsender;
     private final EbmsForsendelseBuilder ebmsForsendelseBuilder;
     private final KvitteringBuilder kvitteringBuilder;
     private final DigipostMessageSenderFacade digipostMessageSenderFacade;
     private final KlientKonfigurasjon konfigurasjon;
+    private final SendPipeline sendPipeline;
 
     /**
      *
@@ -47,12 +66,33 @@ public class SikkerDigitalPostKlient {
     public SikkerDigitalPostKlient(TekniskAvsender tekniskAvsender, KlientKonfigurasjon konfigurasjon) {
         CryptoChecker.checkCryptoPolicy();
 
-        this.ebmsForsendelseBuilder = new EbmsForsendelseBuilder();
+        this.ebmsForsendelseBuilder = new EbmsForsendelseBuilder(konfigurasjon);
         this.kvitteringBuilder = new KvitteringBuilder();
         this.digipostMessageSenderFacade = new DigipostMessageSenderFacade(tekniskAvsender, konfigurasjon);
 
         this.konfigurasjon = konfigurasjon;
         this.tekniskAvsender = tekniskAvsender;
+        this.sendPipeline = sendPipeline(konfigurasjon);
+    }
+
+    private static SendPipeline sendPipeline(KlientKonfigurasjon konfigurasjon) {
+        ExecutorService packaging = konfigurasjon.getAsyncSendExecutor();
+        if (packaging == null) {
+            packaging = new PipelineStage("sdp-packaging", konfigurasjon.getAsyncSendThreads(), konfigurasjon.getAsyncSendQueueCapacity(),
+                    konfigurasjon.getAsyncSendRejectionPolicy());
+        }
+        MeteredExecutor transmission;
+        if (konfigurasjon.useVirtualThreads()) {
+            // Én virtuell tråd per forsendelse. Samtidigheten mot meldingsformidler begrenses av connection pool-porten i
+            // DigipostMessageSenderFacade, og antall pakker som holdes samtidig av tråder og kø til sammen.
+            transmission = new ThreadPerTaskStage("sdp-transmission",
+                    konfigurasjon.getAsyncTransmissionThreads() + konfigurasjon.getAsyncTransmissionQueueCapacity(),
+                    VirtualThreads.factory("sdp-transmission"));
+        } else {
+            transmission = new PipelineStage("sdp-transmission", konfigurasjon.getAsyncTransmissionThreads(),
+                    konfigurasjon.getAsyncTransmissionQueueCapacity(), PipelineStage.BLOCK);
+        }
+        return new SendPipeline(packaging, transmission);
     }
 
     /**
@@ -60,10 +100,124 @@ public class SikkerDigitalPostKlient {
      *
      * @param forsendelse Et objekt som har all informasjon klar til å kunne sendes (mottakerinformasjon, sertifikater, dokumenter mm),
      *                    enten digitalt eller fyisk.
+     * @see KlientKonfigurasjon.Builder#retryPolicy(RetryPolicy)
+     * @see KlientKonfigurasjon.Builder#rateLimiter(RateLimiter)
      */
     public void send(Forsendelse forsendelse) throws SendException {
-        EbmsForsendelse ebmsForsendelse = ebmsForsendelseBuilder.buildEbmsForsendelse(tekniskAvsender, konfigurasjon.getMeldingsformidlerOrganisasjon(), forsendelse);
-        digipostMessageSenderFacade.send(ebmsForsendelse);
+        transmit(pack(forsendelse));
+    }
+
+    private Pakke pack(Forsendelse forsendelse) {
+        // Ikke bruk tid på å pakke forsendelsen dersom sendingen er stanset
+        if (konfigurasjon.getCircuitBreaker() != null) {
+            konfigurasjon.getCircuitBreaker().checkPermitted();
+        }
+        ResendCache resendCache = konfigurasjon.getResendCache();
+        String fingerprint = null;
+        if (resendCache != null) {
+            fingerprint = ResendCache.fingerprint(forsendelse);
+            EbmsForsendelse pakket = resendCache.take(forsendelse.getKonversasjonsId(), fingerprint);
+            if (pakket != null) {
+                log.info("Resending previously packaged forsendelse " + forsendelse.getKonversasjonsId());
+                return new Pakke(forsendelse, pakket, fingerprint);
+            }
+        }
+        return new Pakke(forsendelse, ebmsForsendelseBuilder.buildEbmsForsendelse(tekniskAvsender, konfigurasjon.getMeldingsformidlerOrganisasjon(), forsendelse), fingerprint);
+    }
+
+    private void transmit(Pakke pakke) {
+        EbmsForsendelse ebmsForsendelse = pakke.ebmsForsendelse;
+        RetryPolicy retryPolicy = konfigurasjon.getRetryPolicy();
+        boolean keep = false;
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    // Hvert forsøk teller mot grensen, også nye forsøk etter feil
+                    if (konfigurasjon.getRateLimiter() != null) {
+                        konfigurasjon.getRateLimiter().acquireSend(pakke.forsendelse);
+                    }
+                    digipostMessageSenderFacade.send(ebmsForsendelse);
+                    return;
+                } catch (CircuitBreakerOpenException e) {
+                    // Sendingen er stanset, så det er ingen vits i å prøve igjen nå, men pakken kan sendes senere
+                    keep = pakke.fingerprint != null;
+                    throw e;
+                } catch (RateLimitExceededException e) {
+                    // Ble ikke sendt fordi grensen er nådd, så pakken kan sendes senere
+                    keep = pakke.fingerprint != null;
+                    throw e;
+                } catch (SendException e) {
+                    if (!retryPolicy.isRetryable(e)) {
+                        throw e;
+                    }
+                    // Forsendelsen kan sendes på nytt senere, så behold pakken dersom vi gir opp nå
+                    if (attempt >= retryPolicy.getMaxAttempts()) {
+                        keep = pakke.fingerprint != null;
+                        throw e;
+                    }
+                    long backoff = retryPolicy.backoffInMillis(attempt);
+                    log.warn("Attempt " + attempt + " of " + retryPolicy.getMaxAttempts() + " to send " + ebmsForsendelse.conversationId +
+                            " failed, retrying in " + backoff + " ms: " + e.getMessage());
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        keep = pakke.fingerprint != null;
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            if (keep) {
+                konfigurasjon.getResendCache().put(ebmsForsendelse.conversationId, pakke.fingerprint, ebmsForsendelse);
+            } else {
+                discard(ebmsForsendelse);
+            }
+        }
+    }
+
+    private static void discard(EbmsForsendelse ebmsForsendelse) {
+        // Rydd bort eventuell midlertidig fil for dokumentpakken
+        if (ebmsForsendelse.getDokumentpakke() instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) ebmsForsendelse.getDokumentpakke());
+        }
+    }
+
+    /**
+     * Sender en forsendelse til meldingsformidler i bakgrunnen, se {@link #send(Forsendelse)}. Dokumentpakken lages av
+     * klientens pakketråder, se {@link KlientKonfigurasjon.Builder#asyncSend(int, int)}, og sendes av egne tråder for
+     * overføring, se {@link KlientKonfigurasjon.Builder#asyncTransmission(int, int)}.
+     *
+     * @return Fullføres når forsendelsen er sendt. Feiler med samme exception som {@link #send(Forsendelse)} ville kastet.
+     * @throws java.util.concurrent.RejectedExecutionException dersom køen er full og
+     *         {@link KlientKonfigurasjon.Builder#asyncSendRejectionPolicy(java.util.concurrent.RejectedExecutionHandler) rejection policy}
+     *         avviser forsendelsen.
+     */
+    public ListenableFuture<Void> sendAsync(final Forsendelse forsendelse) {
+        return sendPipeline.submit(new Callable<Pakke>() {
+            @Override
+            public Pakke call() {
+                return pack(forsendelse);
+            }
+        }, new SendPipeline.Transmission<Pakke>() {
+            @Override
+            public void transmit(Pakke pakke) {
+                SikkerDigitalPostKlient.this.transmit(pakke);
+            }
+
+            @Override
+            public void discard(Pakke pakke) {
+                SikkerDigitalPostKlient.discard(pakke.ebmsForsendelse);
+            }
+        });
+    }
+
+    /**
+     * @return Kødybde og utnyttelse for pakking og overføring i {@link #sendAsync(Forsendelse)}. Pakkesteget er bare med
+     *         dersom det ikke er satt en egen {@link KlientKonfigurasjon.Builder#asyncSendExecutor(ExecutorService) executor}.
+     */
+    public List<StageMetrics> getSendPipelineMetrics() {
+        return sendPipeline.getMetrics();
     }
 
     /**
@@ -100,6 +254,9 @@ public class SikkerDigitalPostKlient {
      *
      */
     public ForretningsKvittering hentKvitteringOgBekreftForrige(KvitteringForespoersel kvitteringForespoersel, ForretningsKvittering forrigeKvittering) throws SendException {
+        if (konfigurasjon.getRateLimiter() != null) {
+            konfigurasjon.getRateLimiter().acquireKvittering(kvitteringForespoersel);
+        }
         EbmsPullRequest ebmsPullRequest = kvitteringBuilder.buildEbmsPullRequest(konfigurasjon.getMeldingsformidlerOrganisasjon(), kvitteringForespoersel);
 
         EbmsApplikasjonsKvittering applikasjonsKvittering;
@@ -139,4 +296,21 @@ public class SikkerDigitalPostKlient {
         this.digipostMessageSenderFacade.setExceptionMapper(exceptionMapper);
     }
 
+    /**
+     * En pakket forsendelse, med fingeravtrykket til forsendelsen den ble laget fra dersom den kan legges i
+     * {@link KlientKonfigurasjon#getResendCache() bufferet for nye forsøk}.
+     */
+    private static final class Pakke {
+
+        private final Forsendelse forsendelse;
+        private final EbmsForsendelse ebmsForsendelse;
+        private final String fingerprint;
+
+        private Pakke(Forsendelse forsendelse, EbmsForsendelse ebmsForsendelse, String fingerprint) {
+            this.forsendelse = forsendelse;
+            this.ebmsForsendelse = ebmsForsendelse;
+            this.fingerprint = fingerprint;
+        }
+    }
+
 }
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+/**
+ * Øyeblikksbilde av ett steg i pipelinen for asynkron sending, se {@link SikkerDigitalPostKlient#getSendPipelineMetrics()}.
+ */
+public class StageMetrics {
+
+    private final String name;
+    private final int threads;
+    private final int activeThreads;
+    private final int queueDepth;
+    private final int queueCapacity;
+    private final long completed;
+    private final double utilization;
+
+    public StageMetrics(String name, int threads, int activeThreads, int queueDepth, int queueCapacity, long completed, double utilization) {
+        this.name = name;
+        this.threads = threads;
+        this.activeThreads = activeThreads;
+        this.queueDepth = queueDepth;
+        this.queueCapacity = queueCapacity;
+        this.completed = completed;
+        this.utilization = utilization;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getActiveThreads() {
+        return activeThreads;
+    }
+
+    /**
+     * @return Antall forsendelser som venter i køen foran steget.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return Andel av tilgjengelig trådtid steget har vært i arbeid siden det ble opprettet, mellom 0 og 1.
+     */
+    public double getUtilization() {
+        return utilization;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{threads=%d, active=%d, queue=%d/%d, completed=%d, utilization=%.2f}",
+                name, threads, activeThreads, queueDepth, queueCapacity, completed, utilization);
+    }
+
+}
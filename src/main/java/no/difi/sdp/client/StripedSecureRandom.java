@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fordeler uttrekk for {@link IdGenerator} på et fast antall generatorer. Standard {@link SecureRandom} på Linux
+ * (NativePRNG) og {@link java.util.UUID#randomUUID()} deler én generator med felles lås, som blir en flaskehals når
+ * mange tråder lager IDer samtidig.
+ *
+ * Hver generator er en SHA1PRNG-instans som seedes én gang fra standard {@link SecureRandom} første gang den tas i bruk.
+ * Tråden velger generator ut fra sin ID, slik at nye tråder (også virtuelle) ikke fører til ny seeding.
+ *
+ * Skal kun brukes til verdier som ikke er hemmelige, som meldingsId. Nøkler og initialiseringsvektorer skal lages med
+ * standard {@link SecureRandom}.
+ */
+final class StripedSecureRandom {
+
+    private static final SecureRandom seedSource = new SecureRandom();
+
+    private static final int STRIPE_COUNT = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4) * 2 - 1);
+
+    private static final AtomicReferenceArray<SecureRandom> stripes = new AtomicReferenceArray<SecureRandom>(STRIPE_COUNT);
+
+    private StripedSecureRandom() {}
+
+    /**
+     * @return Generatoren som gjeldende tråd bruker. Den kan deles med andre tråder, men er trådsikker.
+     */
+    static SecureRandom current() {
+        int index = stripeIndex(Thread.currentThread().getId());
+        SecureRandom stripe = stripes.get(index);
+        if (stripe == null) {
+            stripe = newStripe();
+            if (!stripes.compareAndSet(index, null, stripe)) {
+                stripe = stripes.get(index);
+            }
+        }
+        return stripe;
+    }
+
+    static int stripeCount() {
+        return STRIPE_COUNT;
+    }
+
+    private static int stripeIndex(long threadId) {
+        // Tråd-IDer er fortløpende, så de spres før de avbildes på en generator
+        return (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPE_COUNT - 1);
+    }
+
+    private static SecureRandom newStripe() {
+        byte[] seed = new byte[32];
+        seedSource.nextBytes(seed);
+        SecureRandom stripe;
+        try {
+            stripe = SecureRandom.getInstance("SHA1PRNG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+        // Seedes før første uttrekk, slik at den ikke seeder seg selv fra blokkerende kilder
+        stripe.setSeed(seed);
+        return stripe;
+    }
+
+}
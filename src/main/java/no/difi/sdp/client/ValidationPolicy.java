@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bestemmer hvor ofte generert XML (manifest, signatur og SOAP-request) skal valideres mot skjema.
+ *
+ * Validering fanger feil i input tidlig, men koster en del CPU per melding. Når integrasjonen er verifisert kan
+ * det derfor være aktuelt å bare validere et utvalg av meldingene. Policyen teller hvor mange valideringer som er
+ * kjørt, hoppet over og feilet for hver type XML.
+ */
+public class ValidationPolicy {
+
+    public enum Kind {
+        MANIFEST, SIGNATURE, SOAP_REQUEST
+    }
+
+    private enum Mode {
+        ALWAYS, SAMPLED, FIRST_N, OFF
+    }
+
+    private final Mode mode;
+    private final long parameter;
+
+    private final AtomicLongArray requested = new AtomicLongArray(Kind.values().length);
+    private final AtomicLongArray validated = new AtomicLongArray(Kind.values().length);
+    private final AtomicLongArray failed = new AtomicLongArray(Kind.values().length);
+
+    private ValidationPolicy(Mode mode, long parameter) {
+        this.mode = mode;
+        this.parameter = parameter;
+    }
+
+    /**
+     * Valider all generert XML. Dette er standard.
+     */
+    public static ValidationPolicy always() {
+        return new ValidationPolicy(Mode.ALWAYS, 0);
+    }
+
+    /**
+     * Valider én av hver {@code oneIn} meldinger av hver type, inkludert den første.
+     */
+    public static ValidationPolicy sampled(int oneIn) {
+        if (oneIn < 1) {
+            throw new IllegalArgumentException("oneIn må være minst 1, var " + oneIn);
+        }
+        return new ValidationPolicy(Mode.SAMPLED, oneIn);
+    }
+
+    /**
+     * Valider de første {@code count} meldingene av hver type, og ingen etter det.
+     */
+    public static ValidationPolicy firstN(long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count kan ikke være negativ, var " + count);
+        }
+        return new ValidationPolicy(Mode.FIRST_N, count);
+    }
+
+    /**
+     * Ikke valider generert XML.
+     */
+    public static ValidationPolicy off() {
+        return new ValidationPolicy(Mode.OFF, 0);
+    }
+
+    /**
+     * @return Om XML av gitt type skal valideres denne gangen. Telles som en validering dersom svaret er {@code true}.
+     */
+    public boolean shouldValidate(Kind kind) {
+        long number = requested.getAndIncrement(kind.ordinal());
+        boolean validate;
+        switch (mode) {
+            case ALWAYS:
+                validate = true;
+                break;
+            case SAMPLED:
+                validate = number % parameter == 0;
+                break;
+            case FIRST_N:
+                validate = number < parameter;
+                break;
+            default:
+                validate = false;
+        }
+        if (validate) {
+            validated.incrementAndGet(kind.ordinal());
+        }
+        return validate;
+    }
+
+    /**
+     * Registrer at en validering feilet.
+     */
+    public void validationFailed(Kind kind) {
+        failed.incrementAndGet(kind.ordinal());
+    }
+
+    public long getValidations(Kind kind) {
+        return validated.get(kind.ordinal());
+    }
+
+    public long getSkipped(Kind kind) {
+        return requested.get(kind.ordinal()) - validated.get(kind.ordinal());
+    }
+
+    public long getFailures(Kind kind) {
+        return failed.get(kind.ordinal());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("ValidationPolicy{mode=").append(mode);
+        for (Kind kind : Kind.values()) {
+            result.append(", ").append(kind).append("=[validations=").append(getValidations(kind))
+                    .append(", skipped=").append(getSkipped(kind))
+                    .append(", failures=").append(getFailures(kind)).append("]");
+        }
+        return result.append("}").toString();
+    }
+}
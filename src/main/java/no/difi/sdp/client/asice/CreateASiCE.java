@@ -15,22 +15,25 @@
  */
 package no.difi.sdp.client.asice;
 
-import no.difi.sdp.client.asice.archive.Archive;
+import no.difi.sdp.client.KlientKonfigurasjon;
 import no.difi.sdp.client.asice.archive.CreateZip;
 import no.difi.sdp.client.asice.manifest.CreateManifest;
 import no.difi.sdp.client.asice.manifest.Manifest;
 import no.difi.sdp.client.asice.signature.CreateSignature;
 import no.difi.sdp.client.asice.signature.Signature;
+import no.difi.sdp.client.domain.Dokument;
 import no.difi.sdp.client.domain.Forsendelse;
 import no.difi.sdp.client.domain.TekniskAvsender;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -45,19 +48,36 @@ public class CreateASiCE {
     private static File debug_writeToDisk = null;
 
     public CreateASiCE() {
-        createManifest = new CreateManifest();
-        createSignature = new CreateSignature();
-        createZip = new CreateZip();
+        this(KlientKonfigurasjon.builder().build());
+    }
+
+    public CreateASiCE(KlientKonfigurasjon konfigurasjon) {
+        createManifest = new CreateManifest(konfigurasjon.getValidationPolicy());
+        createSignature = new CreateSignature(konfigurasjon.getValidationPolicy());
+        createZip = new CreateZip(konfigurasjon.getCompressionPolicy(), konfigurasjon.getCompressionExecutor(), konfigurasjon.getCompressionPool(), konfigurasjon.getPreparedAttachmentCache());
     }
 
     public ArchivedASiCE createAsice(TekniskAvsender tekniskAvsender, Forsendelse forsendelse) {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        createAsice(tekniskAvsender, forsendelse, archive);
+        return new ArchivedASiCE(archive.toByteArray());
+    }
+
+    /**
+     * Lager ASiC-E og skriver den zippede pakken direkte til en strøm, i stedet for å bygge opp hele arkivet i minnet.
+     * Strømmen blir ikke lukket.
+     *
+     * @param archive Strømmen ASiC-E skal skrives til.
+     */
+    public void createAsice(TekniskAvsender tekniskAvsender, Forsendelse forsendelse, OutputStream archive) {
         // Lag ASiC-E manifest
         log.info("Creating ASiC-E manifest");
         Manifest manifest = createManifest.createManifest(forsendelse);
 
+        List<Dokument> vedlegg = forsendelse.getDokumentpakke().getVedlegg();
         List<AsicEAttachable> files = new ArrayList<AsicEAttachable>();
         files.add(forsendelse.getDokumentpakke().getHoveddokument());
-        files.addAll(forsendelse.getDokumentpakke().getVedlegg());
+        files.addAll(vedlegg);
         files.add(manifest);
 
         // Lag signatur over alle filene i pakka
@@ -65,19 +85,18 @@ public class CreateASiCE {
         Signature signature = createSignature.createSignature(tekniskAvsender.noekkelpar, files);
         files.add(signature);
 
-        // Zip filene
+        // Zip filene. Vedleggene er ofte like på tvers av mottakere, og kan hentes ferdig komprimert fra hurtigbuffer
         log.trace("Zipping ASiC-E files. Contains a total of " + files.size() + " files (including the generated manifest and signatures)");
-        Archive archive = createZip.zipIt(files);
-
         if (debug_writeToDisk != null) {
-            writeArchiveToDisk(archive);
+            zipAndWriteArchiveToDisk(files, vedlegg, archive);
+        }
+        else {
+            createZip.zipIt(files, vedlegg, archive);
         }
-
-        return new ArchivedASiCE(archive.getBytes());
     }
 
 
-    private void writeArchiveToDisk(Archive archive) {
+    private void zipAndWriteArchiveToDisk(List<AsicEAttachable> files, List<Dokument> vedlegg, OutputStream archive) {
         log.error("Writing Asic-E to disk for debug");
         File file;
         if (debug_writeToDisk.isDirectory()) {
@@ -90,10 +109,15 @@ public class CreateASiCE {
         FileOutputStream output = null;
         try {
             output = new FileOutputStream(file);
-            IOUtils.copy(new ByteArrayInputStream(archive.getBytes()), output);
-            log.info("Wrote Asic-E debug file to " + file.getAbsolutePath());
         } catch (IOException e) {
             log.error("Could not write Asic-E file", e);
+            createZip.zipIt(files, vedlegg, archive);
+            return;
+        }
+
+        try {
+            createZip.zipIt(files, vedlegg, new TeeOutputStream(archive, output));
+            log.info("Wrote Asic-E debug file to " + file.getAbsolutePath());
         } finally {
             IOUtils.closeQuietly(output);
         }
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice;
+
+import no.difi.sdp.client.asice.source.ContentDigest;
+import no.difi.sdp.client.asice.source.DocumentSource;
+
+import java.io.IOException;
+
+/**
+ * Fil som kan leses som strøm fra kilden sin, slik at signering og zipping ikke trenger innholdet som byte[].
+ */
+public interface StreamableAsicEAttachable extends AsicEAttachable {
+    DocumentSource getSource();
+
+    /**
+     * @return Digest av innholdet. Beregnes kun én gang, og gjenbrukes av både signering og zipping.
+     */
+    ContentDigest getDigest();
+
+    /**
+     * Sjekker at innholdet fortsatt er det samme som {@link #getDigest()} ble beregnet fra, slik at det som zippes er
+     * det som ble signert.
+     *
+     * @throws IOException dersom kilden er endret siden digest ble beregnet.
+     */
+    void verifyUnchanged() throws IOException;
+}
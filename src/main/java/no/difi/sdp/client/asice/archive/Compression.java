@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.archive;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import java.util.zip.Deflater;
+
+/**
+ * Hvordan en enkelt fil skal lagres i zip-arkivet.
+ */
+public final class Compression {
+
+    /**
+     * Lagres ukomprimert.
+     */
+    public static final Compression STORED = new Compression(ZipArchiveOutputStream.STORED, Deflater.NO_COMPRESSION);
+
+    /**
+     * Komprimeres med deflate på standard nivå.
+     */
+    public static final Compression DEFLATED = deflated(Deflater.DEFAULT_COMPRESSION);
+
+    private final int method;
+    private final int level;
+
+    private Compression(int method, int level) {
+        this.method = method;
+        this.level = level;
+    }
+
+    /**
+     * @param level Kompresjonsnivå fra {@link Deflater#BEST_SPEED} til {@link Deflater#BEST_COMPRESSION},
+     *              eller {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public static Compression deflated(int level) {
+        if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Ugyldig kompresjonsnivå " + level);
+        }
+        return new Compression(ZipArchiveOutputStream.DEFLATED, level);
+    }
+
+    public int getMethod() {
+        return method;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isStored() {
+        return method == ZipArchiveOutputStream.STORED;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Compression)) return false;
+        Compression other = (Compression) o;
+        return method == other.method && level == other.level;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * method + level;
+    }
+
+    @Override
+    public String toString() {
+        return isStored() ? "STORED" : "DEFLATED(" + level + ")";
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.archive;
+
+import no.difi.sdp.client.asice.AsicEAttachable;
+import no.difi.sdp.client.asice.source.DocumentSource;
+
+/**
+ * Bestemmer hvordan hver fil i ASiC-E skal komprimeres.
+ *
+ * @see ContentAwareCompressionPolicy
+ */
+public interface CompressionPolicy {
+
+    /**
+     * Komprimerer alle filer med deflate på standard nivå.
+     */
+    CompressionPolicy DEFLATE_ALL = new CompressionPolicy() {
+        @Override
+        public Compression compressionFor(AsicEAttachable file, DocumentSource content) {
+            return Compression.DEFLATED;
+        }
+    };
+
+    /**
+     * @param file Filen som skal legges i arkivet.
+     * @param content Innholdet i filen. Kan leses dersom policyen trenger å se på innholdet.
+     */
+    Compression compressionFor(AsicEAttachable file, DocumentSource content);
+
+}
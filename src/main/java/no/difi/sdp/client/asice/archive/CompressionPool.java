@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.archive;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Trådsikker, begrenset pool av {@link Deflater}e og buffere som gjenbrukes mellom arkiver. Hver {@link Deflater}
+ * holder på en god del native minne og må ryddes av finalizer dersom den ikke avsluttes eksplisitt, så ved høyt
+ * volum er det billigere å gjenbruke dem enn å lage nye for hver fil.
+ *
+ * Når poolen er tom lages nye instanser. Instanser som leveres tilbake når poolen er full blir kastet
+ * (og {@link Deflater}en avsluttet), slik at poolen aldri holder mer enn et fast antall av hver.
+ */
+public class CompressionPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private final BlockingQueue<Deflater> deflaters;
+    private final BlockingQueue<byte[]> buffers;
+    private final int bufferSize;
+
+    private final AtomicLong deflaterHits = new AtomicLong();
+    private final AtomicLong deflaterMisses = new AtomicLong();
+    private final AtomicLong bufferHits = new AtomicLong();
+    private final AtomicLong bufferMisses = new AtomicLong();
+
+    /**
+     * Pool med plass til like mange {@link Deflater}e og buffere som det er prosessorer.
+     */
+    public CompressionPool() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param maxIdle Maks antall ledige {@link Deflater}e, og maks antall ledige buffere, som holdes i poolen.
+     * @param bufferSize Størrelse på bufferne i bytes.
+     */
+    public CompressionPool(int maxIdle, int bufferSize) {
+        if (maxIdle < 1) {
+            throw new IllegalArgumentException("maxIdle må være minst 1, var " + maxIdle);
+        }
+        this.deflaters = new ArrayBlockingQueue<Deflater>(maxIdle);
+        this.buffers = new ArrayBlockingQueue<byte[]>(maxIdle);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return En {@link Deflater} uten zlib-header (slik zip-formatet krever) med gitt kompresjonsnivå.
+     * Må leveres tilbake med {@link #release(Deflater)}.
+     */
+    public Deflater acquireDeflater(int level) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflaterMisses.incrementAndGet();
+            return new Deflater(level, true);
+        }
+        deflaterHits.incrementAndGet();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    public void release(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return Et buffer på {@link #getBufferSize()} bytes. Innholdet er udefinert. Må leveres tilbake med {@link #release(byte[])}.
+     */
+    public byte[] acquireBuffer() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            bufferMisses.incrementAndGet();
+            return new byte[bufferSize];
+        }
+        bufferHits.incrementAndGet();
+        return buffer;
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getDeflaterHits() {
+        return deflaterHits.get();
+    }
+
+    public long getDeflaterMisses() {
+        return deflaterMisses.get();
+    }
+
+    public long getBufferHits() {
+        return bufferHits.get();
+    }
+
+    public long getBufferMisses() {
+        return bufferMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionPool{deflaterHits=" + getDeflaterHits() + ", deflaterMisses=" + getDeflaterMisses() +
+                ", bufferHits=" + getBufferHits() + ", bufferMisses=" + getBufferMisses() + "}";
+    }
+}
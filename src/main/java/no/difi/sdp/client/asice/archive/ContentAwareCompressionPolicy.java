@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.archive;
+
+import no.difi.sdp.client.asice.AsicEAttachable;
+import no.difi.sdp.client.asice.source.DocumentSource;
+import no.difi.sdp.client.domain.exceptions.RuntimeIOException;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Lagrer filer som allerede er komprimerte ukomprimert i arkivet, siden deflate av slike filer koster mye CPU
+ * for nesten ingen gevinst. Øvrige filer komprimeres med deflate på valgt nivå.
+ *
+ * Policyen kan i tillegg prøvekomprimere starten av hver fil, og lagre filen ukomprimert dersom den ikke
+ * lar seg komprimere godt nok. Dette er nyttig for f.eks. PDF-er, som ofte, men ikke alltid, har komprimert innhold.
+ */
+public class ContentAwareCompressionPolicy implements CompressionPolicy {
+
+    public static final Collection<String> DEFAULT_STORED_MIME_TYPES = Arrays.asList(
+            "image/jpeg", "image/png", "image/gif",
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+            "application/vnd.oasis.opendocument.text",
+            "application/vnd.oasis.opendocument.spreadsheet",
+            "application/vnd.oasis.opendocument.presentation");
+
+    private final Set<String> storedMimeTypes = new HashSet<String>();
+    private Compression deflated = Compression.DEFLATED;
+    private long minimumSizeForCompression = 0;
+    private int sampleSize = 0;
+    private double maximumSampleRatio = 0.9;
+    private CompressionPool compressionPool = new CompressionPool();
+
+    private ContentAwareCompressionPolicy() {
+        storedMimeTypes(DEFAULT_STORED_MIME_TYPES);
+    }
+
+    @Override
+    public Compression compressionFor(AsicEAttachable file, DocumentSource content) {
+        if (storedMimeTypes.contains(normalize(file.getMimeType()))) {
+            return Compression.STORED;
+        }
+        if (content.size() < minimumSizeForCompression) {
+            return Compression.STORED;
+        }
+        if (sampleSize > 0 && !sampleCompresses(content)) {
+            return Compression.STORED;
+        }
+        return deflated;
+    }
+
+    private boolean sampleCompresses(DocumentSource content) {
+        byte[] sample = new byte[(int) Math.min(sampleSize, content.size())];
+        if (sample.length == 0) {
+            return false;
+        }
+
+        InputStream stream = null;
+        try {
+            stream = content.openStream();
+            IOUtils.readFully(stream, sample);
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+
+        Deflater deflater = compressionPool.acquireDeflater(deflated.getLevel());
+        byte[] output = compressionPool.acquireBuffer();
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            long compressedSize = 0;
+            while (!deflater.finished()) {
+                compressedSize += deflater.deflate(output);
+                if (compressedSize > sample.length * maximumSampleRatio) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            compressionPool.release(output);
+            compressionPool.release(deflater);
+        }
+    }
+
+    private static String normalize(String mimeType) {
+        if (mimeType == null) {
+            return "";
+        }
+        int parameters = mimeType.indexOf(';');
+        return (parameters >= 0 ? mimeType.substring(0, parameters) : mimeType).trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    private void storedMimeTypes(Collection<String> mimeTypes) {
+        storedMimeTypes.clear();
+        for (String mimeType : mimeTypes) {
+            storedMimeTypes.add(normalize(mimeType));
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private final ContentAwareCompressionPolicy target;
+
+        private Builder() {
+            target = new ContentAwareCompressionPolicy();
+        }
+
+        /**
+         * MIME-typer som lagres ukomprimert. Erstatter standardlisten i {@link #DEFAULT_STORED_MIME_TYPES}.
+         */
+        public Builder storedMimeTypes(String... mimeTypes) {
+            target.storedMimeTypes(Arrays.asList(mimeTypes));
+            return this;
+        }
+
+        /**
+         * Kompresjonsnivå for filer som komprimeres. Standard er {@link Deflater#DEFAULT_COMPRESSION}.
+         */
+        public Builder deflateLevel(int level) {
+            target.deflated = Compression.deflated(level);
+            return this;
+        }
+
+        /**
+         * Filer mindre enn dette lagres ukomprimert. Standard er 0.
+         */
+        public Builder minimumSizeForCompression(long bytes) {
+            target.minimumSizeForCompression = bytes;
+            return this;
+        }
+
+        /**
+         * Prøvekomprimer de første {@code sampleSize} bytene av hver fil, og lagre filen ukomprimert dersom
+         * komprimert størrelse er mer enn {@code maximumRatio} av ukomprimert størrelse. Standard er å ikke prøvekomprimere.
+         */
+        public Builder sampleBeforeCompressing(int sampleSize, double maximumRatio) {
+            target.sampleSize = sampleSize;
+            target.maximumSampleRatio = maximumRatio;
+            return this;
+        }
+
+        /**
+         * Pool som {@link Deflater}e og buffere for prøvekomprimeringen hentes fra. Bruk gjerne samme pool som arkivet
+         * lages med. Standard er en egen pool.
+         */
+        public Builder compressionPool(CompressionPool compressionPool) {
+            target.compressionPool = compressionPool;
+            return this;
+        }
+
+        public ContentAwareCompressionPolicy build() {
+            return target;
+        }
+    }
+}
@@ -16,51 +16,258 @@
 package no.difi.sdp.client.asice.archive;
 
 import no.difi.sdp.client.asice.AsicEAttachable;
+import no.difi.sdp.client.asice.source.ContentDigest;
+import no.difi.sdp.client.asice.source.DocumentSource;
+import no.difi.sdp.client.asice.source.DocumentSources;
 import no.difi.sdp.client.domain.exceptions.RuntimeIOException;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.compress.utils.Charsets;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class CreateZip {
 
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
+    private final CompressionPolicy compressionPolicy;
+    private final ExecutorService compressionExecutor;
+    private final CompressionPool compressionPool;
+    private final PreparedAttachmentCache attachmentCache;
+
+    public CreateZip() {
+        this(CompressionPolicy.DEFLATE_ALL);
+    }
+
+    public CreateZip(CompressionPolicy compressionPolicy) {
+        this(compressionPolicy, null, new CompressionPool());
+    }
+
+    /**
+     * @param compressionExecutor Dersom satt komprimeres filene i arkivet parallelt på denne, og arkivet settes
+     *                            sammen av de ferdig komprimerte filene. Arkiv med bare én fil komprimeres alltid sekvensielt.
+     * @param compressionPool Pool av {@link java.util.zip.Deflater}e og buffere som gjenbrukes mellom kall til {@link #zipIt}.
+     */
+    public CreateZip(CompressionPolicy compressionPolicy, ExecutorService compressionExecutor, CompressionPool compressionPool) {
+        this(compressionPolicy, compressionExecutor, compressionPool, null);
+    }
+
+    /**
+     * @param attachmentCache Dersom satt hentes komprimerte utgaver av delte filer herfra i stedet for å komprimeres på nytt.
+     */
+    public CreateZip(CompressionPolicy compressionPolicy, ExecutorService compressionExecutor, CompressionPool compressionPool, PreparedAttachmentCache attachmentCache) {
+        this.compressionPolicy = compressionPolicy;
+        this.compressionExecutor = compressionExecutor;
+        this.compressionPool = compressionPool;
+        this.attachmentCache = attachmentCache;
+    }
+
     public Archive zipIt(List<AsicEAttachable> files) {
-        ByteArrayOutputStream archive = null;
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        zipIt(files, archive);
+        return new Archive(archive.toByteArray());
+    }
+
+    /**
+     * Skriver filene som et zip-arkiv direkte til en strøm. Hver fil skrives og komprimeres etter tur, slik at
+     * arkivet aldri holdes i sin helhet i minnet. Strømmen blir ikke lukket.
+     *
+     * @param files Filene som skal legges i arkivet, i den rekkefølgen de skal ligge.
+     * @param archive Strømmen arkivet skal skrives til.
+     */
+    public void zipIt(List<AsicEAttachable> files, OutputStream archive) {
+        zipIt(files, Collections.<AsicEAttachable>emptyList(), archive);
+    }
+
+    /**
+     * Som {@link #zipIt(List, OutputStream)}, der komprimerte utgaver av de delte filene hentes fra og legges i
+     * hurtigbufferet for komprimerte vedlegg, dersom det er satt.
+     *
+     * @param shared Filer blant {@code files} med innhold som går igjen på tvers av mange arkiver, f.eks. vedlegg i en masseutsendelse.
+     */
+    public void zipIt(List<AsicEAttachable> files, Collection<? extends AsicEAttachable> shared, OutputStream archive) {
+        Set<AsicEAttachable> sharedFiles = Collections.newSetFromMap(new IdentityHashMap<AsicEAttachable, Boolean>());
+        if (attachmentCache != null) {
+            sharedFiles.addAll(shared);
+        }
+
+        if (compressionExecutor != null && files.size() > 1) {
+            zipInParallel(files, sharedFiles, archive);
+            return;
+        }
+
         ZipArchiveOutputStream zipOutputStream = null;
         try {
-            archive = new ByteArrayOutputStream();
-            zipOutputStream = new ZipArchiveOutputStream(archive);
-            zipOutputStream.setEncoding(Charsets.UTF_8.name());
-            zipOutputStream.setMethod(ZipArchiveOutputStream.DEFLATED);
+            zipOutputStream = createZipOutputStream(archive);
             for (AsicEAttachable file : files) {
-                log.trace("Adding " + file.getFileName() + " to archive. Size in bytes before compression: " + file.getBytes().length);
+                DocumentSource source = DocumentSources.of(file);
+                log.trace("Adding " + file.getFileName() + " to archive. Size in bytes before compression: " + source.size());
+                Compression compression = compressionPolicy.compressionFor(file, source);
+                if (sharedFiles.contains(file) && !compression.isStored()) {
+                    addRawEntry(zipOutputStream, prepare(file, source, compression, true));
+                    DocumentSources.verifyUnchanged(file);
+                    continue;
+                }
+
                 ZipArchiveEntry zipEntry = new ZipArchiveEntry(file.getFileName());
-                zipEntry.setSize(file.getBytes().length);
+                zipEntry.setSize(source.size());
+                zipEntry.setMethod(compression.getMethod());
+                if (compression.isStored()) {
+                    // Ukomprimerte filer må ha CRC før de skrives, siden strømmen ikke kan spoles tilbake
+                    zipEntry.setCrc(DocumentSources.digest(file).getCrc32());
+                } else {
+                    // Komprimeres mens innholdet strømmes inn, slik at verken filen eller den komprimerte utgaven holdes
+                    // i minnet. ZipArchiveOutputStream lager sin egen Deflater, og kan ikke få en fra poolen.
+                    zipOutputStream.setLevel(compression.getLevel());
+                }
 
                 zipOutputStream.putArchiveEntry(zipEntry);
-                IOUtils.copy(new ByteArrayInputStream(file.getBytes()), zipOutputStream);
+                copy(source, zipOutputStream);
+                // Innholdet må være det samme som ble signert, ellers stemmer ikke manifest og signatur med arkivet
+                DocumentSources.verifyUnchanged(file);
                 zipOutputStream.closeArchiveEntry();
             }
             zipOutputStream.finish();
             zipOutputStream.close();
+        }
+        catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+        finally {
+            IOUtils.closeQuietly(zipOutputStream);
+        }
+    }
 
-            return new Archive(archive.toByteArray());
+    /**
+     * Komprimerer alle filene parallelt, og kopierer dem rått inn i arkivet i riktig rekkefølge etter hvert som de blir ferdige.
+     * Filer som venter på å bli skrevet holdes komprimert i minnet. Hver fil sjekkes mot digesten den ble signert med
+     * etter at den er skrevet.
+     */
+    private void zipInParallel(List<AsicEAttachable> files, final Set<AsicEAttachable> sharedFiles, OutputStream archive) {
+        List<Future<PreparedEntry>> preparedEntries = new ArrayList<Future<PreparedEntry>>(files.size());
+        ZipArchiveOutputStream zipOutputStream = null;
+        try {
+            for (final AsicEAttachable file : files) {
+                preparedEntries.add(compressionExecutor.submit(new Callable<PreparedEntry>() {
+                    @Override
+                    public PreparedEntry call() throws IOException {
+                        return prepare(file, sharedFiles.contains(file));
+                    }
+                }));
+            }
+
+            zipOutputStream = createZipOutputStream(archive);
+            for (int i = 0; i < files.size(); i++) {
+                addRawEntry(zipOutputStream, getPrepared(preparedEntries.get(i)));
+                DocumentSources.verifyUnchanged(files.get(i));
+            }
+            zipOutputStream.finish();
+            zipOutputStream.close();
         }
         catch (IOException e) {
             throw new RuntimeIOException(e);
         }
         finally {
-            IOUtils.closeQuietly(archive);
+            for (Future<PreparedEntry> preparedEntry : preparedEntries) {
+                preparedEntry.cancel(true);
+            }
             IOUtils.closeQuietly(zipOutputStream);
         }
     }
+
+    /**
+     * Komprimerer en fil i henhold til komprimeringspolicyen, uten å skrive den til et arkiv.
+     */
+    private PreparedEntry prepare(AsicEAttachable file, boolean shared) throws IOException {
+        DocumentSource source = DocumentSources.of(file);
+        return prepare(file, source, compressionPolicy.compressionFor(file, source), shared);
+    }
+
+    private PreparedEntry prepare(AsicEAttachable file, DocumentSource source, Compression compression, boolean shared) throws IOException {
+        if (compression.isStored()) {
+            return PreparedEntry.stored(file.getFileName(), source, DocumentSources.digest(file).getCrc32());
+        }
+        if (!shared) {
+            log.trace("Compressing " + file.getFileName() + " for archive. Size in bytes before compression: " + source.size());
+            return PreparedEntry.deflated(file.getFileName(), source, compression.getLevel(), compressionPool);
+        }
+
+        ContentDigest digest = DocumentSources.digest(file);
+        PreparedEntry cached = attachmentCache.get(digest, compression);
+        if (cached == null) {
+            log.trace("Compressing shared " + file.getFileName() + " for archive and cache. Size in bytes before compression: " + source.size());
+            cached = attachmentCache.put(digest, compression, PreparedEntry.deflated(file.getFileName(), source, compression.getLevel(), compressionPool));
+        }
+        return cached.renamed(file.getFileName());
+    }
+
+    private static PreparedEntry getPrepared(Future<PreparedEntry> preparedEntry) throws IOException {
+        try {
+            return preparedEntry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compressed archive entry");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void addRawEntry(ZipArchiveOutputStream zipOutputStream, PreparedEntry preparedEntry) throws IOException {
+        InputStream raw = preparedEntry.openRawStream();
+        try {
+            zipOutputStream.addRawArchiveEntry(preparedEntry.toZipArchiveEntry(), raw);
+        } finally {
+            IOUtils.closeQuietly(raw);
+        }
+    }
+
+    private static ZipArchiveOutputStream createZipOutputStream(OutputStream archive) {
+        ZipArchiveOutputStream zipOutputStream = new ZipArchiveOutputStream(new CloseShieldOutputStream(archive));
+        zipOutputStream.setEncoding(Charsets.UTF_8.name());
+        zipOutputStream.setMethod(ZipArchiveOutputStream.DEFLATED);
+        return zipOutputStream;
+    }
+
+    private void copy(DocumentSource source, OutputStream zipOutputStream) throws IOException {
+        InputStream content = source.openStream();
+        byte[] buffer = compressionPool.acquireBuffer();
+        try {
+            IOUtils.copyLarge(content, zipOutputStream, buffer);
+        } finally {
+            compressionPool.release(buffer);
+            IOUtils.closeQuietly(content);
+        }
+    }
+
+    public CompressionPool getCompressionPool() {
+        return compressionPool;
+    }
 }
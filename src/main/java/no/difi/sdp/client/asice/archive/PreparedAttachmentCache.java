@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.archive;
+
+import no.difi.sdp.client.asice.source.ContentDigest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hurtigbuffer for ferdig komprimerte vedlegg, adressert på innholdets SHA-256. Ved masseutsendelser der samme vedlegg
+ * sendes til mange mottakere komprimeres vedlegget da bare én gang, uavhengig av hvilken {@link no.difi.sdp.client.domain.Dokument}-instans
+ * det kommer fra.
+ *
+ * Bufferet er begrenset av total komprimert størrelse, og kaster ut de minst nylig brukte vedleggene først. Innholdet kan
+ * valgfritt lagres i direkte buffere utenfor heapen.
+ */
+public class PreparedAttachmentCache {
+
+    private final long maxBytes;
+    private final boolean offHeap;
+
+    private final LinkedHashMap<Key, PreparedEntry> entries = new LinkedHashMap<Key, PreparedEntry>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes Maks total komprimert størrelse på vedleggene i bufferet.
+     * @param offHeap Om innholdet skal lagres i direkte buffere utenfor heapen.
+     */
+    public PreparedAttachmentCache(long maxBytes, boolean offHeap) {
+        this.maxBytes = maxBytes;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * @return Ferdig komprimert vedlegg med gitt innhold og komprimering, eller {@code null} om det ikke finnes i bufferet.
+     */
+    public PreparedEntry get(ContentDigest digest, Compression compression) {
+        PreparedEntry entry;
+        lock.lock();
+        try {
+            entry = entries.get(new Key(digest, compression));
+        } finally {
+            lock.unlock();
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Legger et komprimert vedlegg i bufferet, dersom det får plass.
+     *
+     * @return Vedlegget slik det er lagret i bufferet.
+     */
+    public PreparedEntry put(ContentDigest digest, Compression compression, PreparedEntry entry) throws IOException {
+        if (entry.getCompressedSize() > maxBytes) {
+            return entry;
+        }
+        PreparedEntry stored = offHeap ? entry.offHeap() : entry;
+        lock.lock();
+        try {
+            PreparedEntry previous = entries.put(new Key(digest, compression), stored);
+            if (previous != null) {
+                bytes -= previous.getCompressedSize();
+            }
+            bytes += stored.getCompressedSize();
+            Iterator<Map.Entry<Key, PreparedEntry>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().getCompressedSize();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return stored;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PreparedAttachmentCache{hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() +
+                ", entries=" + size() + ", bytes=" + getBytes() + "}";
+    }
+
+    private static final class Key {
+
+        private final byte[] sha256;
+        private final Compression compression;
+
+        private Key(ContentDigest digest, Compression compression) {
+            this.sha256 = digest.getSha256();
+            this.compression = compression;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return Arrays.equals(sha256, other.sha256) && compression.equals(other.compression);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(sha256) + compression.hashCode();
+        }
+    }
+}
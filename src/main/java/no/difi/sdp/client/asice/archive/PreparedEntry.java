@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.archive;
+
+import no.difi.sdp.client.asice.source.ByteArraySource;
+import no.difi.sdp.client.asice.source.ByteBufferSource;
+import no.difi.sdp.client.asice.source.DocumentSource;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * En fil som er ferdig komprimert og klar til å kopieres rått inn i et zip-arkiv, med CRC og størrelser satt.
+ * Gjør det mulig å komprimere flere filer samtidig, og deretter sette sammen arkivet uten å komprimere på nytt.
+ */
+public class PreparedEntry {
+
+    private final String name;
+    private final int method;
+    private final long crc;
+    private final long size;
+    private final long compressedSize;
+    private final DocumentSource raw;
+
+    private PreparedEntry(String name, int method, long crc, long size, DocumentSource raw) {
+        this.name = name;
+        this.method = method;
+        this.crc = crc;
+        this.size = size;
+        this.compressedSize = raw.size();
+        this.raw = raw;
+    }
+
+    /**
+     * Filen lagres ukomprimert, og leses fra kilden først når den kopieres inn i arkivet.
+     */
+    public static PreparedEntry stored(String name, DocumentSource content, long crc) {
+        return new PreparedEntry(name, ZipArchiveEntry.STORED, crc, content.size(), content);
+    }
+
+    /**
+     * Komprimerer filen med deflate i sin helhet, og beregner CRC underveis. {@link Deflater} og buffer lånes fra poolen.
+     */
+    public static PreparedEntry deflated(String name, DocumentSource content, int level, CompressionPool pool) throws IOException {
+        Deflater deflater = pool.acquireDeflater(level);
+        byte[] buffer = pool.acquireBuffer();
+        try {
+            return deflated(name, content, deflater, buffer);
+        } finally {
+            pool.release(buffer);
+            pool.release(deflater);
+        }
+    }
+
+    private static PreparedEntry deflated(String name, DocumentSource content, Deflater deflater, byte[] buffer) throws IOException {
+        // Første halvdel av bufferet brukes til ukomprimert innhold, andre halvdel til komprimert
+        int half = buffer.length / 2;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) Math.min(content.size() / 2 + 64, Integer.MAX_VALUE - 8));
+        CRC32 crc = new CRC32();
+        InputStream input = content.openStream();
+        try {
+            int read;
+            while ((read = input.read(buffer, 0, half)) != -1) {
+                crc.update(buffer, 0, read);
+                deflater.setInput(buffer, 0, read);
+                while (!deflater.needsInput()) {
+                    compressed.write(buffer, half, deflater.deflate(buffer, half, half));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed.write(buffer, half, deflater.deflate(buffer, half, half));
+            }
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        return new PreparedEntry(name, ZipArchiveEntry.DEFLATED, crc.getValue(), content.size(), new ByteArraySource(compressed.toByteArray()));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMethod() {
+        return method;
+    }
+
+    public long getCrc() {
+        return crc;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * @return Filens innhold slik det skal ligge i arkivet, dvs. komprimert dersom filen er komprimert.
+     */
+    public InputStream openRawStream() throws IOException {
+        return raw.openStream();
+    }
+
+    /**
+     * @return Samme innhold under et annet filnavn.
+     */
+    PreparedEntry renamed(String name) {
+        return new PreparedEntry(name, method, crc, size, raw);
+    }
+
+    /**
+     * @return Samme entry, med innholdet kopiert til en direkte buffer utenfor heapen.
+     */
+    PreparedEntry offHeap() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) compressedSize);
+        InputStream content = raw.openStream();
+        try {
+            buffer.put(IOUtils.toByteArray(content, compressedSize));
+        } finally {
+            IOUtils.closeQuietly(content);
+        }
+        buffer.flip();
+        return new PreparedEntry(name, method, crc, size, new ByteBufferSource(buffer));
+    }
+
+    ZipArchiveEntry toZipArchiveEntry() {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setMethod(method);
+        entry.setCrc(crc);
+        entry.setSize(size);
+        entry.setCompressedSize(compressedSize);
+        return entry;
+    }
+
+}
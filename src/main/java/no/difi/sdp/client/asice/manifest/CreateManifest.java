@@ -16,11 +16,13 @@
 package no.difi.sdp.client.asice.manifest;
 
 import no.difi.begrep.sdp.schema_v10.SDPManifest;
+import no.difi.sdp.client.ValidationPolicy;
 import no.difi.sdp.client.domain.Forsendelse;
 import no.difi.sdp.client.domain.exceptions.KonfigurasjonException;
 import no.difi.sdp.client.domain.exceptions.SendException;
 import no.difi.sdp.client.domain.exceptions.XmlValideringException;
 import no.difi.sdp.client.internal.SDPBuilder;
+import no.difi.sdp.client.internal.PooledJaxb2Marshaller;
 import no.digipost.api.xml.Schemas;
 import org.springframework.oxm.MarshallingFailureException;
 import org.springframework.oxm.jaxb.Jaxb2Marshaller;
@@ -34,7 +36,7 @@ public class CreateManifest {
     private static final Jaxb2Marshaller marshaller;
 
     static {
-        marshaller = new Jaxb2Marshaller();
+        marshaller = new PooledJaxb2Marshaller();
         marshaller.setClassesToBeBound(SDPManifest.class);
         marshaller.setSchema(Schemas.SDP_MANIFEST_SCHEMA);
         try {
@@ -45,12 +47,25 @@ public class CreateManifest {
     }
 
     private final SDPBuilder sdpBuilder;
+    private final ManifestWriter manifestWriter;
+    private final ValidationPolicy validationPolicy;
 
     public CreateManifest() {
-        sdpBuilder = new SDPBuilder();
+        this(ValidationPolicy.always());
+    }
+
+    public CreateManifest(ValidationPolicy validationPolicy) {
+        this.sdpBuilder = new SDPBuilder();
+        this.manifestWriter = new ManifestWriter();
+        this.validationPolicy = validationPolicy;
     }
 
     public Manifest createManifest(Forsendelse forsendelse) {
+        if (!validationPolicy.shouldValidate(ValidationPolicy.Kind.MANIFEST)) {
+            // Uten validering trengs ikke JAXB, og manifestet skrives direkte
+            return new Manifest(manifestWriter.write(forsendelse));
+        }
+
         SDPManifest sdpManifest = sdpBuilder.createManifest(forsendelse);
 
         ByteArrayOutputStream manifestStream = new ByteArrayOutputStream();
@@ -60,6 +75,7 @@ public class CreateManifest {
         }
         catch(MarshallingFailureException e) {
             if (e.getMostSpecificCause() instanceof SAXParseException) {
+                validationPolicy.validationFailed(ValidationPolicy.Kind.MANIFEST);
                 throw new XmlValideringException("Kunne ikke validere generert Manifest XML. Sjekk at alle påkrevde input er satt og ikke er null",
                         SendException.AntattSkyldig.KLIENT, (SAXParseException) e.getMostSpecificCause());
             }
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.manifest;
+
+import no.difi.begrep.sdp.schema_v10.SDPIso6523Authority;
+import no.difi.sdp.client.domain.Behandlingsansvarlig;
+import no.difi.sdp.client.domain.Dokument;
+import no.difi.sdp.client.domain.Forsendelse;
+import no.difi.sdp.client.domain.Mottaker;
+import org.apache.commons.compress.utils.Charsets;
+
+/**
+ * Skriver manifest.xml direkte fra {@link Forsendelse}, uten å gå via JAXB-objekter. Gir nøyaktig samme bytes som
+ * JAXB-marshalling av {@link no.difi.sdp.client.internal.SDPBuilder#createManifest(Forsendelse)}, men validerer ikke
+ * mot skjema.
+ *
+ * Escaping følger JAXB sin UTF-8-output og ikke en StAX-implementasjon, siden ulike StAX-implementasjoner
+ * (f.eks. Woodstox) escaper forskjellig.
+ */
+class ManifestWriter {
+
+    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>";
+    private static final String NAMESPACE = "http://begrep.difi.no/sdp/schema_v10";
+    private static final String ORGNR_IDENTIFIER = "9908:";
+    private static final String AUTHORITY = SDPIso6523Authority.ISO_6523_ACTORID_UPIS.value();
+
+    public byte[] write(final Forsendelse forsendelse) {
+        StringBuilder xml = new StringBuilder(512);
+        xml.append(DECLARATION).append("<manifest xmlns=\"").append(NAMESPACE).append("\">");
+
+        if (forsendelse.getDigitalPost() != null) {
+            Mottaker mottaker = forsendelse.getDigitalPost().getMottaker();
+            xml.append("<mottaker><person>");
+            element(xml, "personidentifikator", mottaker.getPersonidentifikator());
+            element(xml, "postkasseadresse", mottaker.getPostkasseadresse());
+            xml.append("</person></mottaker>");
+        }
+
+        Behandlingsansvarlig avsender = forsendelse.getBehandlingsansvarlig();
+        xml.append("<avsender><organisasjon authority=\"").append(AUTHORITY).append("\">");
+        text(xml, ORGNR_IDENTIFIER + avsender.getOrganisasjonsnummer());
+        xml.append("</organisasjon>");
+        element(xml, "avsenderidentifikator", avsender.getAvsenderIdentifikator());
+        element(xml, "fakturaReferanse", avsender.getFakturaReferanse());
+        xml.append("</avsender>");
+
+        String spraakkode = forsendelse.getSpraakkode();
+        dokument(xml, "hoveddokument", forsendelse.getDokumentpakke().getHoveddokument(), spraakkode);
+        for (Dokument vedlegg : forsendelse.getDokumentpakke().getVedlegg()) {
+            dokument(xml, "vedlegg", vedlegg, spraakkode);
+        }
+
+        xml.append("</manifest>");
+        return xml.toString().getBytes(Charsets.UTF_8);
+    }
+
+    private static void dokument(final StringBuilder xml, final String name, final Dokument dokument, final String spraakkode) {
+        xml.append('<').append(name);
+        attribute(xml, "href", dokument.getFilnavn());
+        attribute(xml, "mime", dokument.getMimeType());
+        xml.append("><tittel");
+        attribute(xml, "lang", spraakkode);
+        if (dokument.getTittel() == null) {
+            xml.append("/>");
+        } else {
+            xml.append('>');
+            text(xml, dokument.getTittel());
+            xml.append("</tittel>");
+        }
+        xml.append("</").append(name).append('>');
+    }
+
+    private static void element(final StringBuilder xml, final String name, final String value) {
+        if (value != null) {
+            xml.append('<').append(name).append('>');
+            text(xml, value);
+            xml.append("</").append(name).append('>');
+        }
+    }
+
+    private static void attribute(final StringBuilder xml, final String name, final String value) {
+        if (value != null) {
+            xml.append(' ').append(name).append("=\"");
+            escape(xml, value, true);
+            xml.append('"');
+        }
+    }
+
+    private static void text(final StringBuilder xml, final String value) {
+        escape(xml, value, false);
+    }
+
+    private static void escape(final StringBuilder xml, final String value, final boolean attribute) {
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            String entity = entity(value.charAt(i), attribute);
+            if (entity != null) {
+                xml.append(value, start, i).append(entity);
+                start = i + 1;
+            }
+        }
+        xml.append(value, start, value.length());
+    }
+
+    private static String entity(final char c, final boolean attribute) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '\r':
+                return "&#xD;";
+            case '"':
+                return attribute ? "&quot;" : null;
+            case '\n':
+                return attribute ? "&#xA;" : null;
+            case '\t':
+                return attribute ? "&#x9;" : null;
+            default:
+                return null;
+        }
+    }
+
+}
@@ -16,10 +16,8 @@
 package no.difi.sdp.client.asice.signature;
 
 import static java.lang.String.format;
-import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.KLIENT;
-import static org.apache.commons.codec.digest.DigestUtils.sha256;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -28,9 +26,11 @@ import java.net.URLEncoder;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.security.cert.Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.xml.crypto.MarshalException;
 import javax.xml.crypto.dom.DOMStructure;
@@ -45,24 +45,26 @@ import javax.xml.crypto.dsig.XMLSignature;
 import javax.xml.crypto.dsig.XMLSignatureException;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
 import javax.xml.crypto.dsig.dom.DOMSignContext;
-import javax.xml.crypto.dsig.keyinfo.KeyInfo;
-import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
-import javax.xml.crypto.dsig.keyinfo.X509Data;
 import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
 import javax.xml.crypto.dsig.spec.TransformParameterSpec;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
 
+import no.difi.sdp.client.ValidationPolicy;
 import no.difi.sdp.client.asice.AsicEAttachable;
+import no.difi.sdp.client.asice.source.DocumentSources;
 import no.difi.sdp.client.domain.Noekkelpar;
 import no.difi.sdp.client.domain.exceptions.KonfigurasjonException;
 import no.difi.sdp.client.domain.exceptions.RuntimeIOException;
 import no.difi.sdp.client.domain.exceptions.XmlKonfigurasjonException;
 import no.difi.sdp.client.domain.exceptions.XmlValideringException;
+import no.difi.sdp.client.internal.ObjectPool;
 import no.digipost.api.xml.Constants;
 import no.digipost.api.xml.Schemas;
 
@@ -84,15 +86,45 @@ public class CreateSignature {
     private final CanonicalizationMethod canonicalizationMethod;
     private final Transform canonicalXmlTransform;
 
+    private final XMLSignatureFactory xmlSignatureFactory;
+    private final ObjectPool<SignatureMethod> signatureMethods;
+
+    private final Map<Noekkelpar, SigningContext> signingContexts = Collections.synchronizedMap(new WeakHashMap<Noekkelpar, SigningContext>());
+
     private final CreateXAdESProperties createXAdESProperties;
-    private final TransformerFactory transformerFactory;
-    private final Schema schema;
+    private final ObjectPool<Transformer> transformers;
+    private final ObjectPool<Validator> validators;
+    private final ValidationPolicy validationPolicy;
 
     public CreateSignature() {
+        this(ValidationPolicy.always());
+    }
+
+    public CreateSignature(ValidationPolicy validationPolicy) {
+        this.validationPolicy = validationPolicy;
         createXAdESProperties = new CreateXAdESProperties();
-        transformerFactory = TransformerFactory.newInstance();
+        // Transformer og Validator er ikke trådsikre, men kan gjenbrukes når de ikke er i bruk. Poolene er ikke bundet
+        // til tråder, slik at de også gjenbrukes når hver forsendelse pakkes i en ny virtuell tråd.
+        final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+        transformers = new ObjectPool<Transformer>() {
+            @Override
+            protected Transformer create() {
+                try {
+                    return transformerFactory.newTransformer();
+                } catch (TransformerConfigurationException e) {
+                    throw new KonfigurasjonException("Klarte ikke å serialisere XML", e);
+                }
+            }
+        };
         try {
-            XMLSignatureFactory xmlSignatureFactory = getSignatureFactory();
+            xmlSignatureFactory = getSignatureFactory();
+            // SignatureMethod holder på en java.security.Signature-instans under signering, og kan derfor ikke deles mellom tråder
+            signatureMethods = new ObjectPool<SignatureMethod>() {
+                @Override
+                protected SignatureMethod create() {
+                    return getSignatureMethod(xmlSignatureFactory);
+                }
+            };
             sha256DigestMethod = xmlSignatureFactory.newDigestMethod(DigestMethod.SHA256, null);
             canonicalizationMethod = xmlSignatureFactory.newCanonicalizationMethod(Constants.C14V1, (C14NMethodParameterSpec) null);
             canonicalXmlTransform = xmlSignatureFactory.newTransform(Constants.C14V1, (TransformParameterSpec) null);
@@ -102,7 +134,13 @@ public class CreateSignature {
             throw new KonfigurasjonException("Kunne ikke initialisere xml-signering", e);
         }
 
-        schema = loadSchema();
+        final Schema schema = loadSchema();
+        validators = new ObjectPool<Validator>() {
+            @Override
+            protected Validator create() {
+                return schema.newValidator();
+            }
+        };
     }
 
 	private Schema loadSchema() {
@@ -116,12 +154,10 @@ public class CreateSignature {
 	}
 
     public Signature createSignature(final Noekkelpar noekkelpar, final List<AsicEAttachable> attachedFiles) throws XmlValideringException {
-        XMLSignatureFactory xmlSignatureFactory = getSignatureFactory();
-        SignatureMethod signatureMethod = getSignatureMethod(xmlSignatureFactory);
-
+        SigningContext signingContext = signingContext(noekkelpar);
 
         // Lag signatur-referanse for alle filer
-        List<Reference> references = references(xmlSignatureFactory, attachedFiles);
+        List<Reference> references = references(attachedFiles);
 
         // Lag signatur-referanse for XaDES properties
         references.add(xmlSignatureFactory.newReference(
@@ -133,21 +169,23 @@ public class CreateSignature {
         ));
 
         // Generer XAdES-dokument som skal signeres, informasjon om nøkkel brukt til signering og informasjon om hva som er signert
-        Document document = createXAdESProperties.createPropertiesToSign(attachedFiles, noekkelpar.getSertifikat());
+        Document document = createXAdESProperties.createPropertiesToSign(attachedFiles, signingContext.getSertifikat());
 
-        KeyInfo keyInfo = keyInfo(xmlSignatureFactory, noekkelpar.getCertificateChain());
-        SignedInfo signedInfo = xmlSignatureFactory.newSignedInfo(canonicalizationMethod, signatureMethod, references);
+        SignatureMethod signatureMethod = signatureMethods.acquire();
+        try {
+            SignedInfo signedInfo = xmlSignatureFactory.newSignedInfo(canonicalizationMethod, signatureMethod, references);
 
-        // Definer signatur over XAdES-dokument
-        XMLObject xmlObject = xmlSignatureFactory.newXMLObject(singletonList(new DOMStructure(document.getDocumentElement())), null, null, null);
-        XMLSignature xmlSignature = xmlSignatureFactory.newXMLSignature(signedInfo, keyInfo, singletonList(xmlObject), "Signature", null);
+            // Definer signatur over XAdES-dokument
+            XMLObject xmlObject = xmlSignatureFactory.newXMLObject(singletonList(new DOMStructure(document.getDocumentElement())), null, null, null);
+            XMLSignature xmlSignature = xmlSignatureFactory.newXMLSignature(signedInfo, signingContext.getKeyInfo(), singletonList(xmlObject), "Signature", null);
 
-        try {
-            xmlSignature.sign(new DOMSignContext(noekkelpar.getPrivateKey(), document));
+            xmlSignature.sign(new DOMSignContext(signingContext.getPrivateKey(), document));
         } catch (MarshalException e) {
             throw new XmlKonfigurasjonException("Klarte ikke å lese ASiC-E XML for signering", e);
         } catch (XMLSignatureException e) {
             throw new XmlKonfigurasjonException("Klarte ikke å signere ASiC-E element.", e);
+        } finally {
+            signatureMethods.release(signatureMethod);
         }
 
         // Pakk Signatur inn i XAdES-konvolutt
@@ -156,12 +194,24 @@ public class CreateSignature {
         ByteArrayOutputStream outputStream;
         try {
             outputStream = new ByteArrayOutputStream();
-            Transformer transformer = transformerFactory.newTransformer();
-            schema.newValidator().validate(new DOMSource(document));
-            transformer.transform(new DOMSource(document), new StreamResult(outputStream));
+            if (validationPolicy.shouldValidate(ValidationPolicy.Kind.SIGNATURE)) {
+                Validator validator = validators.acquire();
+                try {
+                    validator.validate(new DOMSource(document));
+                } finally {
+                    validators.release(validator);
+                }
+            }
+            Transformer transformer = transformers.acquire();
+            try {
+                transformer.transform(new DOMSource(document), new StreamResult(outputStream));
+            } finally {
+                transformers.release(transformer);
+            }
         } catch (TransformerException e) {
             throw new KonfigurasjonException("Klarte ikke å serialisere XML", e);
         } catch (SAXException e) {
+            validationPolicy.validationFailed(ValidationPolicy.Kind.SIGNATURE);
             throw new XmlValideringException("Kunne ikke validere generert signatures.xml. Sjekk at input er gyldig og at det ikke er ugyldige tegn i filnavn o.l.", KLIENT, e);
         } catch (IOException e) {
             throw new RuntimeIOException(e);
@@ -169,7 +219,7 @@ public class CreateSignature {
         return new Signature(outputStream.toByteArray());
     }
 
-	private SignatureMethod getSignatureMethod(final XMLSignatureFactory xmlSignatureFactory) {
+	private static SignatureMethod getSignatureMethod(final XMLSignatureFactory xmlSignatureFactory) {
         try {
             return xmlSignatureFactory.newSignatureMethod("http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", null);
         } catch (NoSuchAlgorithmException e) {
@@ -179,13 +229,26 @@ public class CreateSignature {
         }
 	}
 
-    private List<Reference> references(final XMLSignatureFactory xmlSignatureFactory, final List<AsicEAttachable> files) {
+    /**
+     * Privatnøkkel og KeyInfo hentes fra keystoren første gang et nøkkelpar brukes, og gjenbrukes så lenge
+     * sertifikatet i keystoren er det samme.
+     */
+    SigningContext signingContext(final Noekkelpar noekkelpar) {
+        SigningContext signingContext = signingContexts.get(noekkelpar);
+        if (signingContext == null || !signingContext.isValidFor(noekkelpar)) {
+            signingContext = SigningContext.create(noekkelpar, xmlSignatureFactory.getKeyInfoFactory());
+            signingContexts.put(noekkelpar, signingContext);
+        }
+        return signingContext;
+    }
+
+    private List<Reference> references(final List<AsicEAttachable> files) {
         List<Reference> result = new ArrayList<Reference>();
         for (int i = 0; i < files.size(); i++) {
             try {
 	            String signatureElementId = format("ID_%s", i);
 	            String uri = URLEncoder.encode(files.get(i).getFileName(), "UTF-8");
-	            Reference reference = xmlSignatureFactory.newReference(uri, sha256DigestMethod, null, null, signatureElementId, sha256(files.get(i).getBytes()));
+	            Reference reference = xmlSignatureFactory.newReference(uri, sha256DigestMethod, null, null, signatureElementId, DocumentSources.digest(files.get(i)).getSha256());
 	            result.add(reference);
             } catch(UnsupportedEncodingException e) {
             	throw new RuntimeException(e);
@@ -195,12 +258,6 @@ public class CreateSignature {
         return result;
     }
 
-    private KeyInfo keyInfo(final XMLSignatureFactory xmlSignatureFactory, final Certificate[] sertifikater) {
-        KeyInfoFactory keyInfoFactory = xmlSignatureFactory.getKeyInfoFactory();
-        X509Data x509Data = keyInfoFactory.newX509Data(asList(sertifikater));
-        return keyInfoFactory.newKeyInfo(singletonList(x509Data));
-    }
-
     private void wrapSignatureInXADeSEnvelope(final Document document) {
         Node signatureElement = document.removeChild(document.getDocumentElement());
         Element xadesElement = document.createElementNS(asicNamespace, "XAdESSignatures");
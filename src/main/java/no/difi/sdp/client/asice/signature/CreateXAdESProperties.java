@@ -18,6 +18,8 @@ package no.difi.sdp.client.asice.signature;
 import no.difi.sdp.client.asice.AsicEAttachable;
 import no.difi.sdp.client.domain.Sertifikat;
 import no.difi.sdp.client.domain.exceptions.XmlKonfigurasjonException;
+import no.difi.sdp.client.internal.PooledJaxb2Marshaller;
+import no.digipost.xsd.jaxb.XSDateTimeAdapter;
 import org.etsi.uri._01903.v1_3.CertIDType;
 import org.etsi.uri._01903.v1_3.DataObjectFormat;
 import org.etsi.uri._01903.v1_3.DigestAlgAndValueType;
@@ -32,16 +34,15 @@ import org.springframework.oxm.jaxb.Jaxb2Marshaller;
 import org.w3.xmldsig.X509IssuerSerialType;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import javax.xml.crypto.dsig.DigestMethod;
 import javax.xml.transform.dom.DOMResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static java.lang.String.format;
 import static java.util.Collections.emptyList;
@@ -50,16 +51,34 @@ import static org.apache.commons.codec.digest.DigestUtils.sha1;
 
 class CreateXAdESProperties {
 
+    private static final String XADES_NAMESPACE = "http://uri.etsi.org/01903/v1.3.2#";
+
     private final org.w3.xmldsig.DigestMethod sha1DigestMethod = new org.w3.xmldsig.DigestMethod(emptyList(), DigestMethod.SHA1);
 
     private static Jaxb2Marshaller marshaller;
 
     static {
-        marshaller = new Jaxb2Marshaller();
+        marshaller = new PooledJaxb2Marshaller();
         marshaller.setClassesToBeBound(QualifyingProperties.class);
     }
 
+    private final ConcurrentMap<X509Certificate, Template> templates = new ConcurrentHashMap<X509Certificate, Template>();
+
     public Document createPropertiesToSign(List<AsicEAttachable> files, Sertifikat sertifikat) {
+        // Alt unntatt signeringstidspunkt og DataObjectFormat er likt for alle signaturer med samme sertifikat,
+        // så det marshalles bare én gang per sertifikat
+        Template template = templates.get(sertifikat.getX509Certificate());
+        if (template == null) {
+            template = new Template(marshalTemplate(sertifikat));
+            Template existing = templates.putIfAbsent(sertifikat.getX509Certificate(), template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template.createPropertiesToSign(files, DateTime.now(DateTimeZone.UTC));
+    }
+
+    private Document marshalTemplate(Sertifikat sertifikat) {
         X509Certificate certificate = sertifikat.getX509Certificate();
         byte[] certificateDigestValue = sha1(sertifikat.getEncoded());
 
@@ -67,40 +86,70 @@ class CreateXAdESProperties {
         X509IssuerSerialType certificateIssuer = new X509IssuerSerialType(certificate.getIssuerDN().getName(), certificate.getSerialNumber());
         SigningCertificate signingCertificate = new SigningCertificate(singletonList(new CertIDType(certificateDigest, certificateIssuer, null)));
 
-        DateTime now = DateTime.now(DateTimeZone.UTC);
-        SignedSignatureProperties signedSignatureProperties = new SignedSignatureProperties(now, signingCertificate, null, null, null, null);
-        SignedDataObjectProperties signedDataObjectProperties = new SignedDataObjectProperties(dataObjectFormats(files), null, null, null, null);
+        // Signeringstidspunkt og DataObjectFormat er plassholdere som fylles inn per signatur
+        DateTime placeholderTime = new DateTime(0, DateTimeZone.UTC);
+        DataObjectFormat placeholderFormat = new DataObjectFormat(null, null, "", null, "");
+        SignedSignatureProperties signedSignatureProperties = new SignedSignatureProperties(placeholderTime, signingCertificate, null, null, null, null);
+        SignedDataObjectProperties signedDataObjectProperties = new SignedDataObjectProperties(singletonList(placeholderFormat), null, null, null, null);
         SignedProperties signedProperties = new SignedProperties(signedSignatureProperties, signedDataObjectProperties, "SignedProperties");
         QualifyingProperties qualifyingProperties = new QualifyingProperties(signedProperties, null, "#Signature", null);
 
         DOMResult domResult = new DOMResult();
         marshaller.marshal(qualifyingProperties, domResult);
-        Document document = (Document) domResult.getNode();
+        return (Document) domResult.getNode();
+    }
 
-        // Explicitly mark the SignedProperties Id as an Document ID attribute, so that it will be eligble as a reference for signature.
-        // If not, it will not be treated as something to sign.
-        markAsIdProperty(document, "SignedProperties", "Id");
+    private static class Template {
 
-        return document;
-    }
+        private final XSDateTimeAdapter dateTimeAdapter = new XSDateTimeAdapter();
+        private final Document document;
+        private final ReentrantLock lock = new ReentrantLock();
 
-    private List<DataObjectFormat> dataObjectFormats(List<AsicEAttachable> files) {
-        List<DataObjectFormat> result = new ArrayList<DataObjectFormat>();
-        for (int i = 0; i < files.size(); i++) {
-            String signatureElementIdReference = format("#ID_%s", i);
-            result.add(new DataObjectFormat(null, null, files.get(i).getMimeType(), null, signatureElementIdReference));
+        private Template(Document document) {
+            this.document = document;
         }
-        return result;
-    }
 
-    private void markAsIdProperty(Document document, final String elementName, String property) {
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        try {
-            Element idElement = (Element) xPath.evaluate("//*[local-name()='" + elementName + "']", document, XPathConstants.NODE);
-            idElement.setIdAttribute(property, true);
+        Document createPropertiesToSign(List<AsicEAttachable> files, DateTime signingTime) {
+            Document result;
+            // DOM-implementasjonen er ikke trådsikker, heller ikke for lesing
+            lock.lock();
+            try {
+                result = (Document) document.cloneNode(true);
+            } finally {
+                lock.unlock();
+            }
+
+            element(result, "SigningTime").setTextContent(dateTimeAdapter.marshal(signingTime));
+
+            Element placeholderFormat = element(result, "DataObjectFormat");
+            Node signedDataObjectProperties = placeholderFormat.getParentNode();
+            for (int i = 0; i < files.size(); i++) {
+                Element dataObjectFormat = (Element) placeholderFormat.cloneNode(true);
+                dataObjectFormat.setAttribute("ObjectReference", format("#ID_%s", i));
+                Element mimeType = (Element) dataObjectFormat.getElementsByTagNameNS(XADES_NAMESPACE, "MimeType").item(0);
+                String fileMimeType = files.get(i).getMimeType();
+                if (fileMimeType == null) {
+                    dataObjectFormat.removeChild(mimeType);
+                } else {
+                    mimeType.setTextContent(fileMimeType);
+                }
+                signedDataObjectProperties.insertBefore(dataObjectFormat, placeholderFormat);
+            }
+            signedDataObjectProperties.removeChild(placeholderFormat);
+
+            // Explicitly mark the SignedProperties Id as an Document ID attribute, so that it will be eligble as a reference for signature.
+            // If not, it will not be treated as something to sign.
+            element(result, "SignedProperties").setIdAttribute("Id", true);
+
+            return result;
+        }
 
-        } catch (XPathExpressionException e) {
-            throw new XmlKonfigurasjonException("XPath på generert XML feilet.", e);
+        private static Element element(Document document, String localName) {
+            Element element = (Element) document.getElementsByTagNameNS(XADES_NAMESPACE, localName).item(0);
+            if (element == null) {
+                throw new XmlKonfigurasjonException("Fant ikke " + localName + " i XAdES-mal.", null);
+            }
+            return element;
         }
     }
 }
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.signature;
+
+import no.difi.sdp.client.domain.Noekkelpar;
+import no.difi.sdp.client.domain.Sertifikat;
+
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.keyinfo.X509Data;
+import java.security.PrivateKey;
+import java.util.Arrays;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * Det som trengs for å signere med et {@link Noekkelpar}, hentet ut av keystoren én gang. Dekryptering av privatnøkkelen
+ * og oppbygging av KeyInfo er relativt dyrt, og resultatet er det samme for hver signatur så lenge keystoren er uendret.
+ *
+ * Uforanderlig, og kan brukes fra flere tråder samtidig.
+ */
+class SigningContext {
+
+    private final Sertifikat sertifikat;
+    private final PrivateKey privateKey;
+    private final KeyInfo keyInfo;
+
+    private SigningContext(Sertifikat sertifikat, PrivateKey privateKey, KeyInfo keyInfo) {
+        this.sertifikat = sertifikat;
+        this.privateKey = privateKey;
+        this.keyInfo = keyInfo;
+    }
+
+    static SigningContext create(Noekkelpar noekkelpar, KeyInfoFactory keyInfoFactory) {
+        X509Data x509Data = keyInfoFactory.newX509Data(Arrays.asList(noekkelpar.getCertificateChain()));
+        KeyInfo keyInfo = keyInfoFactory.newKeyInfo(singletonList(x509Data));
+        return new SigningContext(noekkelpar.getSertifikat(), noekkelpar.getPrivateKey(), keyInfo);
+    }
+
+    /**
+     * @return {@code true} dersom sertifikatet i keystoren fortsatt er det samme som konteksten ble laget med.
+     */
+    boolean isValidFor(Noekkelpar noekkelpar) {
+        return sertifikat.getX509Certificate().equals(noekkelpar.getSertifikat().getX509Certificate());
+    }
+
+    Sertifikat getSertifikat() {
+        return sertifikat;
+    }
+
+    PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    KeyInfo getKeyInfo() {
+        return keyInfo;
+    }
+}
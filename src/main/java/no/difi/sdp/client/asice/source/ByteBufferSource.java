@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.source;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Innhold i en {@link ByteBuffer}, f.eks. en direkte buffer utenfor heapen. Hver strøm leser fra en egen duplikat,
+ * så kilden kan leses flere ganger og fra flere tråder samtidig.
+ */
+public class ByteBufferSource implements DocumentSource {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferSource(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public InputStream openStream() {
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    @Override
+    public long size() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.source;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * SHA-256, CRC-32 og størrelse for innholdet i en fil. Alle tre beregnes i samme gjennomlesing av innholdet,
+ * slik at både signering (SHA-256) og zipping (CRC-32 og størrelse) kan gjenbruke dem.
+ */
+public class ContentDigest {
+
+    private final byte[] sha256;
+    private final long crc32;
+    private final long size;
+
+    public ContentDigest(byte[] sha256, long crc32, long size) {
+        this.sha256 = sha256;
+        this.crc32 = crc32;
+        this.size = size;
+    }
+
+    public byte[] getSha256() {
+        return sha256.clone();
+    }
+
+    public long getCrc32() {
+        return crc32;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public static ContentDigest of(DocumentSource source) throws IOException {
+        ContentDigestInputStream content = new ContentDigestInputStream(source.openStream());
+        try {
+            IOUtils.copy(content, new NullOutputStream());
+        } finally {
+            IOUtils.closeQuietly(content);
+        }
+        return content.getDigest();
+    }
+
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.source;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/**
+ * Beregner {@link ContentDigest} for alt som leses gjennom strømmen.
+ */
+public class ContentDigestInputStream extends FilterInputStream {
+
+    private final MessageDigest sha256 = DigestUtils.getSha256Digest();
+    private final CRC32 crc32 = new CRC32();
+    private long size = 0;
+
+    public ContentDigestInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            sha256.update((byte) b);
+            crc32.update(b);
+            size++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int count = super.read(bytes, offset, length);
+        if (count > 0) {
+            sha256.update(bytes, offset, count);
+            crc32.update(bytes, offset, count);
+            size += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        throw new IOException("Kan ikke hoppe over innhold som skal inngå i digest");
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return Digest for alt som er lest. Skal kun kalles én gang, etter at strømmen er lest ferdig.
+     */
+    public ContentDigest getDigest() {
+        return new ContentDigest(sha256.digest(), crc32.getValue(), size);
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Kilde til innholdet i et dokument som kan åpnes og leses flere ganger, slik at innholdet
+ * ikke trenger å ligge i minnet mellom hver gang det leses.
+ */
+public interface DocumentSource {
+
+    /**
+     * Åpner en ny strøm fra starten av innholdet. Kalleren er ansvarlig for å lukke strømmen.
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * @return Størrelsen på innholdet i bytes.
+     */
+    long size();
+
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.source;
+
+import no.difi.sdp.client.asice.AsicEAttachable;
+import no.difi.sdp.client.asice.StreamableAsicEAttachable;
+import no.difi.sdp.client.domain.exceptions.RuntimeIOException;
+
+import java.io.IOException;
+
+public final class DocumentSources {
+
+    /**
+     * @return Kilden til filen dersom den kan leses som strøm, ellers en kilde over {@link AsicEAttachable#getBytes()}.
+     */
+    public static DocumentSource of(AsicEAttachable file) {
+        if (file instanceof StreamableAsicEAttachable) {
+            return ((StreamableAsicEAttachable) file).getSource();
+        }
+        return new ByteArraySource(file.getBytes());
+    }
+
+    /**
+     * @return Forhåndsberegnet digest dersom filen har det, ellers beregnet fra innholdet.
+     */
+    public static ContentDigest digest(AsicEAttachable file) {
+        if (file instanceof StreamableAsicEAttachable) {
+            return ((StreamableAsicEAttachable) file).getDigest();
+        }
+        try {
+            return ContentDigest.of(new ByteArraySource(file.getBytes()));
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    /**
+     * Sjekker at filen ikke er endret siden digest ble beregnet, se {@link StreamableAsicEAttachable#verifyUnchanged()}.
+     * Filer som ikke leses som strøm ligger i minnet og kan ikke endres.
+     */
+    public static void verifyUnchanged(AsicEAttachable file) throws IOException {
+        if (file instanceof StreamableAsicEAttachable) {
+            ((StreamableAsicEAttachable) file).verifyUnchanged();
+        }
+    }
+
+    private DocumentSources() { }
+}
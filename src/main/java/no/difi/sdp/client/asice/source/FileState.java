@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.source;
+
+import java.io.File;
+
+/**
+ * Størrelse og endringstidspunkt for en fil på et gitt tidspunkt. Brukes til å oppdage at en fil er endret siden
+ * digest ble beregnet, uten å lese innholdet på nytt.
+ */
+public final class FileState {
+
+    private final long length;
+    private final long lastModified;
+
+    private FileState(long length, long lastModified) {
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    public static FileState of(File file) {
+        return new FileState(file.length(), file.lastModified());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof FileState)) {
+            return false;
+        }
+        FileState that = (FileState) other;
+        return length == that.length && lastModified == that.lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (length ^ (length >>> 32)) + (int) (lastModified ^ (lastModified >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "FileState{length=" + length + ", lastModified=" + lastModified + "}";
+    }
+}
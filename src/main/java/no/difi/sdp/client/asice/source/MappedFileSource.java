@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.source;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Minnemapper filen første gang innholdet leses. Innholdet ligger da i operativsystemets page cache
+ * i stedet for på heapen, og kan leses gjentatte ganger uten nye systemkall.
+ *
+ * JDK-en har ingen trygg måte å fjerne en minnemapping på. Mappingen frigis først når verken kilden eller strømmer
+ * fra den er i bruk lenger, og garbage collector har ryddet dem bort. Fram til da bruker den adresserom, og på Windows
+ * er filen låst. Hold derfor bare på kilden så lenge den trengs, f.eks. for et vedlegg som går igjen i en
+ * masseutsendelse, og kall {@link #release()} når den ikke skal brukes mer. Filer som er større enn en grense mappes
+ * ikke, men leses fra fil som med {@link FileSource}.
+ */
+public class MappedFileSource implements FileDocumentSource {
+
+    public static final long DEFAULT_MAX_MAPPED_SIZE = 64 * 1024 * 1024;
+
+    private final File file;
+    private final long maxMappedSize;
+    private volatile MappedByteBuffer mapped;
+    // Ikke synchronized, siden en virtuell tråd som gjør IO i en synchronized-blokk binder plattformtråden sin
+    private final ReentrantLock mapLock = new ReentrantLock();
+
+    public MappedFileSource(File file) {
+        this(file, DEFAULT_MAX_MAPPED_SIZE);
+    }
+
+    /**
+     * @param maxMappedSize Filer større enn dette leses fra fil i stedet for å mappes.
+     */
+    public MappedFileSource(File file, long maxMappedSize) {
+        this.file = file;
+        this.maxMappedSize = maxMappedSize;
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        MappedByteBuffer buffer = map();
+        if (buffer == null) {
+            return new BufferedInputStream(new FileInputStream(file));
+        }
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    @Override
+    public long size() {
+        MappedByteBuffer buffer = mapped;
+        return buffer != null ? buffer.capacity() : file.length();
+    }
+
+    /**
+     * @return {@code true} dersom filen er mappet i minnet nå.
+     */
+    public boolean isMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * Slipper mappingen, slik at den kan frigis når strømmer som fortsatt leser fra den er ferdige. Filen mappes på
+     * nytt dersom kilden leses igjen.
+     */
+    public void release() {
+        mapLock.lock();
+        try {
+            mapped = null;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    /**
+     * @return Mappingen, eller {@code null} dersom filen er for stor til å mappes.
+     */
+    private MappedByteBuffer map() throws IOException {
+        MappedByteBuffer result = mapped;
+        if (result == null) {
+            mapLock.lock();
+            try {
+                if (mapped == null) {
+                    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                    try {
+                        FileChannel channel = randomAccessFile.getChannel();
+                        if (channel.size() > maxMappedSize) {
+                            return null;
+                        }
+                        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    } finally {
+                        IOUtils.closeQuietly(randomAccessFile);
+                    }
+                }
+                result = mapped;
+            } finally {
+                mapLock.unlock();
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.bulk;
+
+import no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resultat av en kjøring med {@link BulkSender}.
+ */
+public class BulkReport {
+
+    private final long sent;
+    private final long skipped;
+    private final Map<AntattSkyldig, Long> failures;
+    private final long elapsedNanos;
+    private final long[] sortedLatencyNanos;
+
+    BulkReport(long sent, long skipped, Map<AntattSkyldig, Long> failures, long elapsedNanos, long[] latencyNanos) {
+        this.sent = sent;
+        this.skipped = skipped;
+        this.failures = Collections.unmodifiableMap(new EnumMap<AntattSkyldig, Long>(failures));
+        this.elapsedNanos = elapsedNanos;
+        this.sortedLatencyNanos = latencyNanos.clone();
+        Arrays.sort(sortedLatencyNanos);
+    }
+
+    /**
+     * @return Antall forsendelser som ble akseptert av meldingsformidler i denne kjøringen.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return Antall forsendelser som ble hoppet over fordi de var akseptert i en tidligere kjøring.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public long getFailed() {
+        long failed = 0;
+        for (long count : failures.values()) {
+            failed += count;
+        }
+        return failed;
+    }
+
+    /**
+     * @return Antall feilede forsendelser etter hvem som antas å ha skyld i feilen. Feil som ikke er
+     *         {@link no.difi.sdp.client.domain.exceptions.SendException} telles som {@link AntattSkyldig#UKJENT}.
+     */
+    public Map<AntattSkyldig, Long> getFailures() {
+        return failures;
+    }
+
+    public long getElapsed(TimeUnit timeUnit) {
+        return timeUnit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return Aksepterte forsendelser per sekund over hele kjøringen.
+     */
+    public double getThroughput() {
+        return elapsedNanos > 0 ? sent / (elapsedNanos / 1e9) : 0;
+    }
+
+    /**
+     * @param percentile Mellom 0 og 100, for eksempel 99 for p99.
+     * @return Tiden det tok å sende en akseptert forsendelse, inkludert pakking, for gitt persentil.
+     */
+    public long getLatency(double percentile, TimeUnit timeUnit) {
+        if (sortedLatencyNanos.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sortedLatencyNanos.length);
+        int index = Math.min(sortedLatencyNanos.length - 1, Math.max(0, rank - 1));
+        return timeUnit.convert(sortedLatencyNanos[index], TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BulkReport{sent=%d, skipped=%d, failed=%d %s, elapsed=%d s, throughput=%.1f/s, latency p50=%d ms, p95=%d ms, p99=%d ms}",
+                sent, skipped, getFailed(), failures, getElapsed(TimeUnit.SECONDS), getThroughput(),
+                getLatency(50, TimeUnit.MILLISECONDS), getLatency(95, TimeUnit.MILLISECONDS), getLatency(99, TimeUnit.MILLISECONDS));
+    }
+
+}
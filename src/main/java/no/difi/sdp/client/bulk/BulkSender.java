@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.bulk;
+
+import no.difi.sdp.client.SikkerDigitalPostKlient;
+import no.difi.sdp.client.domain.Forsendelse;
+import no.difi.sdp.client.domain.exceptions.SendException;
+import no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sender store mengder forsendelser med {@link SikkerDigitalPostKlient#send(Forsendelse)} fra flere tråder, og fører
+ * et {@link Checkpoint} over forsendelser som er akseptert av meldingsformidler. Kjøres jobben på nytt med samme
+ * checkpoint, hoppes aksepterte forsendelser over før dokumentpakken lages.
+ *
+ * Forsendelsene gjenkjennes på konversasjonsId, som derfor må settes likt fra kjøring til kjøring, se
+ * {@link Forsendelse.Builder#konversasjonsId(String)}. Feilede forsendelser kommer ikke med i checkpointet, og
+ * forsøkes igjen ved neste kjøring.
+ */
+public class BulkSender {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkSender.class);
+
+    private final SikkerDigitalPostKlient klient;
+    private final File checkpointFile;
+    private int parallelism = 10;
+    private int checkpointEvery = 1000;
+    private long checkpointIntervalInMillis = TimeUnit.SECONDS.toMillis(5);
+    private long terminationTimeoutInMillis = TimeUnit.MINUTES.toMillis(1);
+
+    private BulkSender(SikkerDigitalPostKlient klient, File checkpointFile) {
+        this.klient = klient;
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Sender alle forsendelser fra iteratoren, og venter til alle er ferdige. Iteratoren brukes fra flere tråder,
+     * men bare av én om gangen.
+     */
+    public BulkReport run(Iterator<Forsendelse> forsendelser) throws IOException, InterruptedException {
+        Checkpoint checkpoint = new Checkpoint(checkpointFile, checkpointEvery, checkpointIntervalInMillis, TimeUnit.MILLISECONDS);
+        log.info("Starting bulk send with {} threads, {} forsendelser already completed in checkpoint {}",
+                parallelism, checkpoint.size(), checkpointFile);
+
+        Job job = new Job(forsendelser, checkpoint);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "sdp-bulk-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<Worker> workers = new ExecutorCompletionService<Worker>(executor);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                workers.submit(new Worker(job));
+            }
+            // Hentes i den rekkefølgen de blir ferdige, så en feil oppdages med en gang
+            List<Worker> finished = new ArrayList<Worker>(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                finished.add(workers.take().get());
+            }
+            BulkReport report = report(finished, System.nanoTime() - start);
+            log.info("Finished bulk send: {}", report);
+            return report;
+        } catch (ExecutionException e) {
+            // Feil fra iteratoren eller checkpointet, ikke fra selve sendingen
+            job.abort();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            job.abort();
+            throw e;
+        } finally {
+            awaitTermination(executor);
+            try {
+                checkpoint.close();
+            } catch (IOException e) {
+                log.warn("Unable to close checkpoint " + checkpointFile, e);
+            }
+        }
+    }
+
+    /**
+     * Lar forsendelser som er under sending bli ferdige og komme med i checkpointet før det lukkes. Ellers sendes de
+     * på nytt ved neste kjøring.
+     */
+    private void awaitTermination(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(terminationTimeoutInMillis, TimeUnit.MILLISECONDS)) {
+                log.warn("Bulk send threads did not finish within {} ms, forsendelser still being sent are not checkpointed",
+                        terminationTimeoutInMillis);
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    public BulkReport run(Iterable<Forsendelse> forsendelser) throws IOException, InterruptedException {
+        return run(forsendelser.iterator());
+    }
+
+    private static BulkReport report(List<Worker> workers, long elapsedNanos) {
+        long sent = 0;
+        long skipped = 0;
+        Map<AntattSkyldig, Long> failures = new EnumMap<AntattSkyldig, Long>(AntattSkyldig.class);
+        long[] latencies = new long[0];
+        for (Worker worker : workers) {
+            sent += worker.sent;
+            skipped += worker.skipped;
+            for (Map.Entry<AntattSkyldig, Long> failure : worker.failures.entrySet()) {
+                Long count = failures.get(failure.getKey());
+                failures.put(failure.getKey(), (count != null ? count : 0) + failure.getValue());
+            }
+            long[] merged = Arrays.copyOf(latencies, latencies.length + worker.latencyCount);
+            System.arraycopy(worker.latencies, 0, merged, latencies.length, worker.latencyCount);
+            latencies = merged;
+        }
+        return new BulkReport(sent, skipped, failures, elapsedNanos, latencies);
+    }
+
+    private static final class Job {
+
+        private final Iterator<Forsendelse> forsendelser;
+        private final Checkpoint checkpoint;
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile boolean aborted = false;
+
+        private Job(Iterator<Forsendelse> forsendelser, Checkpoint checkpoint) {
+            this.forsendelser = forsendelser;
+            this.checkpoint = checkpoint;
+        }
+
+        /**
+         * @return Neste forsendelse, eller {@code null} når det ikke er flere.
+         */
+        Forsendelse next() {
+            lock.lock();
+            try {
+                return !aborted && forsendelser.hasNext() ? forsendelser.next() : null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void abort() {
+            aborted = true;
+        }
+    }
+
+    private final class Worker implements Callable<Worker> {
+
+        private final Job job;
+        private long sent = 0;
+        private long skipped = 0;
+        private final Map<AntattSkyldig, Long> failures = new EnumMap<AntattSkyldig, Long>(AntattSkyldig.class);
+        private long[] latencies = new long[1024];
+        private int latencyCount = 0;
+
+        private Worker(Job job) {
+            this.job = job;
+        }
+
+        @Override
+        public Worker call() throws IOException {
+            try {
+                Forsendelse forsendelse;
+                while ((forsendelse = job.next()) != null) {
+                    String konversasjonsId = forsendelse.getKonversasjonsId();
+                    if (job.checkpoint.isCompleted(konversasjonsId)) {
+                        skipped++;
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        klient.send(forsendelse);
+                    } catch (RuntimeException e) {
+                        AntattSkyldig antattSkyldig = e instanceof SendException ? ((SendException) e).getAntattSkyldig() : AntattSkyldig.UKJENT;
+                        Long count = failures.get(antattSkyldig);
+                        failures.put(antattSkyldig, (count != null ? count : 0) + 1);
+                        // Stacktrace bare på debug, en stor utsendelse kan ha mange feil
+                        log.warn("Failed to send forsendelse with konversasjonsId {}: {}", konversasjonsId, e.toString());
+                        log.debug("Failed to send forsendelse with konversasjonsId " + konversasjonsId, e);
+                        continue;
+                    }
+                    recordLatency(System.nanoTime() - start);
+                    sent++;
+                    job.checkpoint.completed(konversasjonsId);
+                }
+                return this;
+            } catch (IOException e) {
+                // Stans de andre trådene med en gang, ellers sender de forsendelser som ikke kommer med i checkpointet
+                job.abort();
+                throw e;
+            } catch (RuntimeException e) {
+                job.abort();
+                throw e;
+            }
+        }
+
+        private void recordLatency(long nanos) {
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[latencyCount++] = nanos;
+        }
+    }
+
+    public static Builder builder(SikkerDigitalPostKlient klient, File checkpointFile) {
+        return new Builder(klient, checkpointFile);
+    }
+
+    public static class Builder {
+
+        private final BulkSender target;
+
+        private Builder(SikkerDigitalPostKlient klient, File checkpointFile) {
+            target = new BulkSender(klient, checkpointFile);
+        }
+
+        /**
+         * Antall forsendelser som sendes samtidig. Bør ikke være større enn
+         * {@link no.difi.sdp.client.KlientKonfigurasjon.Builder#maxConnectionPoolSize(int)}. Standard er 10.
+         */
+        public Builder parallelism(final int parallelism) {
+            target.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Hvor ofte checkpointet skrives til disk: etter så mange aksepterte forsendelser, eller når det er gått så lang
+         * tid. Ved krasj sendes forsendelsene som ikke er skrevet til disk på nytt. Standard er 1000 forsendelser eller
+         * 5 sekunder.
+         */
+        public Builder checkpointEvery(final int forsendelser, final long interval, final TimeUnit timeUnit) {
+            target.checkpointEvery = forsendelser;
+            target.checkpointIntervalInMillis = timeUnit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Hvor lenge det ventes på forsendelser som er under sending når jobben stanses, før checkpointet lukkes.
+         * Forsendelser som ikke blir ferdige innen da, sendes på nytt ved neste kjøring. Standard er 1 minutt.
+         */
+        public Builder terminationTimeout(final long timeout, final TimeUnit timeUnit) {
+            target.terminationTimeoutInMillis = timeUnit.toMillis(timeout);
+            return this;
+        }
+
+        public BulkSender build() {
+            return target;
+        }
+    }
+
+}
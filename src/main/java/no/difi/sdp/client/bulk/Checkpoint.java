@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.bulk;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fil med konversasjonsIdene til forsendelser som er akseptert av meldingsformidler. Filen skrives bare til på slutten.
+ * Hver post starter med én byte for posttypen: UUIDer lagres som 17 byte ({@code 'U'} og 16 byte UUID), andre IDer som
+ * {@code 'S'} fulgt av lengde og innhold slik {@link DataOutputStream#writeUTF(String)} skriver dem. Nye IDer skrives
+ * til disk etter et gitt antall forsendelser eller en gitt tid, så ved krasj sendes høyst så mange forsendelser på nytt.
+ *
+ * En ufullstendig siste post, for eksempel etter krasj midt i en skriving, ignoreres og skrives over.
+ */
+public class Checkpoint implements Closeable {
+
+    private static final byte UUID_RECORD = 'U';
+    private static final byte STRING_RECORD = 'S';
+
+    private final File file;
+    private final int flushEvery;
+    private final long flushIntervalNanos;
+
+    private final Set<String> completed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FileOutputStream fileOutputStream;
+    private final DataOutputStream out;
+    private int unflushed = 0;
+    private long lastFlush = System.nanoTime();
+
+    /**
+     * Leser inn eksisterende checkpoint fra filen, om den finnes, og åpner den for nye IDer.
+     *
+     * @param flushEvery Skriv til disk etter så mange nye IDer.
+     * @param flushInterval Skriv til disk når det er gått så lang tid siden forrige gang, og det finnes nye IDer.
+     */
+    public Checkpoint(File file, int flushEvery, long flushInterval, TimeUnit timeUnit) throws IOException {
+        this.file = file;
+        this.flushEvery = flushEvery;
+        this.flushIntervalNanos = timeUnit.toNanos(flushInterval);
+        long validLength = file.exists() ? read(file, completed) : 0;
+        if (file.exists() && validLength < file.length()) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(validLength);
+            } finally {
+                IOUtils.closeQuietly(randomAccessFile);
+            }
+        }
+        fileOutputStream = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isCompleted(String konversasjonsId) {
+        return completed.contains(konversasjonsId);
+    }
+
+    /**
+     * @return Antall forsendelser i checkpointet, inkludert de som ikke er skrevet til disk ennå.
+     */
+    public int size() {
+        return completed.size();
+    }
+
+    public void completed(String konversasjonsId) throws IOException {
+        if (!completed.add(konversasjonsId)) {
+            return;
+        }
+        lock.lock();
+        try {
+            write(konversasjonsId);
+            unflushed++;
+            if (unflushed >= flushEvery || System.nanoTime() - lastFlush >= flushIntervalNanos) {
+                flush();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Skriver nye IDer til disk, og venter til de er lagret.
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            out.flush();
+            fileOutputStream.getChannel().force(false);
+            unflushed = 0;
+            lastFlush = System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            flush();
+            out.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(String konversasjonsId) throws IOException {
+        UUID uuid = asUuid(konversasjonsId);
+        if (uuid != null) {
+            out.writeByte(UUID_RECORD);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        } else {
+            out.writeByte(STRING_RECORD);
+            out.writeUTF(konversasjonsId);
+        }
+    }
+
+    /**
+     * @return Lengden av filen fram til og med siste hele post.
+     */
+    private static long read(File file, Set<String> ids) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long validLength = 0;
+        try {
+            while (true) {
+                byte type = in.readByte();
+                if (type == UUID_RECORD) {
+                    ids.add(new UUID(in.readLong(), in.readLong()).toString());
+                    validLength += 17;
+                } else if (type == STRING_RECORD) {
+                    String id = in.readUTF();
+                    ids.add(id);
+                    validLength += 1 + 2 + utfLength(id);
+                } else {
+                    throw new IOException("Invalid record type " + type + " at offset " + validLength + " in checkpoint " + file);
+                }
+            }
+        } catch (EOFException e) {
+            return validLength;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static UUID asUuid(String id) {
+        if (id.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            // Bare IDer som skrives tilbake likt, ellers ville de ikke blitt gjenkjent ved oppstart
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+}
@@ -15,27 +15,38 @@
  */
 package no.difi.sdp.client.domain;
 
-import no.difi.sdp.client.asice.AsicEAttachable;
+import no.difi.sdp.client.asice.StreamableAsicEAttachable;
+import no.difi.sdp.client.asice.source.ByteArraySource;
+import no.difi.sdp.client.asice.source.ContentDigest;
+import no.difi.sdp.client.asice.source.ContentDigestInputStream;
+import no.difi.sdp.client.asice.source.DocumentSource;
+import no.difi.sdp.client.asice.source.FileDocumentSource;
+import no.difi.sdp.client.asice.source.FileSource;
+import no.difi.sdp.client.asice.source.FileState;
+import no.difi.sdp.client.asice.source.MappedFileSource;
 import org.apache.commons.io.IOUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
-public class Dokument implements AsicEAttachable {
+public class Dokument implements StreamableAsicEAttachable {
 
     private String tittel;
     private String filnavn;
-    private byte[] dokument;
+    private DocumentSource dokument;
+    private volatile ComputedDigest digest;
     private String mimeType = "application/pdf";
 
     private Dokument(String tittel, String filnavn, InputStream dokumentStream) {
         this.tittel = tittel;
         this.filnavn = filnavn;
         try {
-            this.dokument = IOUtils.toByteArray(dokumentStream);
+            // Digest beregnes mens strømmen leses inn, så innholdet ikke trenger å leses på nytt ved signering
+            ContentDigestInputStream digestStream = new ContentDigestInputStream(dokumentStream);
+            this.dokument = new ByteArraySource(IOUtils.toByteArray(digestStream));
+            this.digest = new ComputedDigest(digestStream.getDigest(), null);
         }
         catch (IOException e) {
             throw new LastDokumentException("Kunne ikke lese dokument", e);
@@ -45,16 +56,70 @@ public class Dokument implements AsicEAttachable {
         }
     }
 
+    private Dokument(String tittel, String filnavn, DocumentSource dokument) {
+        this.tittel = tittel;
+        this.filnavn = filnavn;
+        this.dokument = dokument;
+    }
+
     @Override
     public String getFileName() {
         return getFilnavn();
     }
 
+    /**
+     * Dokumenter som ikke er lest inn i minnet vil bli lest fra kilden ved hvert kall.
+     */
     @Override
     public byte[] getBytes() {
+        if (dokument instanceof ByteArraySource) {
+            return ((ByteArraySource) dokument).getBytes();
+        }
+
+        InputStream stream = null;
+        try {
+            stream = dokument.openStream();
+            return IOUtils.toByteArray(stream);
+        }
+        catch (IOException e) {
+            throw new LastDokumentException("Kunne ikke lese dokument", e);
+        }
+        finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    @Override
+    public DocumentSource getSource() {
         return dokument;
     }
 
+    /**
+     * Beregnes første gang den trengs. Leses dokumentet fra fil, beregnes den på nytt dersom filen er endret siden sist.
+     */
+    @Override
+    public ContentDigest getDigest() {
+        ComputedDigest result = digest;
+        if (result == null || result.isStale(dokument)) {
+            try {
+                result = ComputedDigest.of(dokument);
+            }
+            catch (IOException e) {
+                throw new LastDokumentException("Kunne ikke lese dokument", e);
+            }
+            digest = result;
+        }
+        return result.digest;
+    }
+
+    @Override
+    public void verifyUnchanged() throws IOException {
+        ComputedDigest result = digest;
+        if (result != null && result.isStale(dokument)) {
+            throw new IOException("Dokumentet " + filnavn + " er endret etter at digest ble beregnet");
+        }
+    }
+
     public String getFilnavn() {
         return filnavn;
     }
@@ -73,18 +138,37 @@ public class Dokument implements AsicEAttachable {
      * @param dokument Dokumentet som en strøm.
      */
     public static Builder builder(String tittel, String filnavn, InputStream dokument) {
-        return new Builder(tittel, filnavn, dokument);
+        return new Builder(new Dokument(tittel, filnavn, dokument));
     }
 
     /**
+     * Dokumentet leses ikke inn i minnet, men leses fra fil når dokumentpakken lages.
+     *
      * @param tittel Tittel som vises til brukeren gitt riktig sikkerhetsnivå.
      * @param file Filen som skal sendes. Navnet på filen vil brukes som filnavn ovenfor mottaker.
      */
     public static Builder builder(String tittel, File file) {
-        try {
-            return new Builder(tittel, file.getName(), new FileInputStream(file));
-        } catch (FileNotFoundException e) {
-            throw new LastDokumentException("Fant ikke fil", e);
+        return builder(tittel, file.getName(), new FileSource(file));
+    }
+
+    /**
+     * Dokumentet leses fra kilden hver gang innholdet trengs, i stedet for å holdes i minnet. Se f.eks.
+     * {@link FileSource} og {@link MappedFileSource}.
+     *
+     * @param tittel Tittel som vises til brukeren gitt riktig sikkerhetsnivå.
+     * @param filnavn Filnavnet til dokumentet.
+     * @param dokument Kilden til dokumentet.
+     */
+    public static Builder builder(String tittel, String filnavn, DocumentSource dokument) {
+        if (dokument instanceof FileDocumentSource) {
+            verifiserFil(((FileDocumentSource) dokument).getFile());
+        }
+        return new Builder(new Dokument(tittel, filnavn, dokument));
+    }
+
+    private static void verifiserFil(File file) {
+        if (!file.isFile()) {
+            throw new LastDokumentException("Fant ikke fil", new FileNotFoundException(file.getAbsolutePath()));
         }
     }
 
@@ -93,8 +177,8 @@ public class Dokument implements AsicEAttachable {
         private final Dokument target;
         private boolean built = false;
 
-        private Builder(String tittel, String filnavn, InputStream dokument) {
-            target = new Dokument(tittel, filnavn, dokument);
+        private Builder(Dokument target) {
+            this.target = target;
         }
 
         /**
@@ -114,6 +198,38 @@ public class Dokument implements AsicEAttachable {
         }
     }
 
+    /**
+     * Digest sammen med tilstanden til filen den ble beregnet fra, dersom dokumentet leses fra fil.
+     */
+    private static final class ComputedDigest {
+
+        private final ContentDigest digest;
+        private final FileState fileState;
+
+        private ComputedDigest(ContentDigest digest, FileState fileState) {
+            this.digest = digest;
+            this.fileState = fileState;
+        }
+
+        static ComputedDigest of(DocumentSource source) throws IOException {
+            if (!(source instanceof FileDocumentSource)) {
+                return new ComputedDigest(ContentDigest.of(source), null);
+            }
+            File file = ((FileDocumentSource) source).getFile();
+            // Tilstanden leses før innholdet, så en endring underveis blir oppdaget neste gang
+            FileState before = FileState.of(file);
+            ContentDigest digest = ContentDigest.of(source);
+            if (!before.equals(FileState.of(file))) {
+                throw new IOException("Filen " + file + " ble endret mens den ble lest");
+            }
+            return new ComputedDigest(digest, before);
+        }
+
+        boolean isStale(DocumentSource source) {
+            return fileState != null && !fileState.equals(FileState.of(((FileDocumentSource) source).getFile()));
+        }
+    }
+
     public static class LastDokumentException extends RuntimeException {
         public LastDokumentException(String message, Exception e) {
             super(message, e);
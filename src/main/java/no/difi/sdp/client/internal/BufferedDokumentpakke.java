@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import no.digipost.api.representations.Dokumentpakke;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Dokumentpakke som leses fra en {@link PackageBuffer} i stedet for et byte-array, slik at store pakker kan ligge på disk.
+ * Må lukkes når pakken er sendt, slik at eventuell midlertidig fil slettes.
+ */
+public class BufferedDokumentpakke extends Dokumentpakke implements Closeable {
+
+    private final PackageBuffer buffer;
+
+    public BufferedDokumentpakke(PackageBuffer buffer) {
+        super((InputStream) null);
+        this.buffer = buffer;
+    }
+
+    @Override
+    public byte[] getSHA256() {
+        return buffer.getSha256();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return buffer.openStream();
+    }
+
+    public boolean isInMemory() {
+        return buffer.isInMemory();
+    }
+
+    public long size() {
+        return buffer.size();
+    }
+
+    /**
+     * @see PackageBuffer#spillToDisk()
+     */
+    public void spillToDisk() throws IOException {
+        buffer.spillToDisk();
+    }
+
+    @Override
+    public void close() {
+        buffer.delete();
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
+import org.joda.time.DateTimeUtils;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hurtigbuffer for ferdig oppsatte mottakere av CMS-kryptering (offentlig nøkkel, mottakeridentifikator og algoritme),
+ * adressert på SHA-256-fingeravtrykket til mottakers sertifikat. I praksis krypteres det mot et fåtall postkasse- og
+ * utskriftssertifikater, så sertifikatet trenger da ikke tolkes på nytt for hver melding.
+ *
+ * Bufferet er begrenset av antall sertifikater, og kaster ut de minst nylig brukte først. Sertifikater som har gått ut
+ * fjernes fra bufferet og legges ikke inn igjen.
+ */
+public class CmsRecipientCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public CmsRecipientCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries Maks antall sertifikater i bufferet.
+     */
+    public CmsRecipientCache(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries må være minst 1, var " + maxEntries);
+        }
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return Mottaker for gitt sertifikat, eller {@code null} om den ikke finnes i bufferet eller sertifikatet har gått ut.
+     */
+    public JceKeyTransRecipientInfoGenerator get(final X509Certificate sertifikat) throws CertificateEncodingException {
+        String fingerprint = fingerprint(sertifikat);
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(fingerprint);
+            if (entry != null && entry.isExpired()) {
+                entries.remove(fingerprint);
+                expirations.incrementAndGet();
+                entry = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.recipientInfoGenerator;
+    }
+
+    /**
+     * Legger en mottaker i bufferet, med mindre sertifikatet allerede har gått ut. Mottakeren deles mellom tråder, og
+     * må derfor ikke endres etter at den er lagt i bufferet.
+     */
+    public void put(final X509Certificate sertifikat, final JceKeyTransRecipientInfoGenerator recipientInfoGenerator) throws CertificateEncodingException {
+        Entry entry = new Entry(recipientInfoGenerator, sertifikat.getNotAfter().getTime());
+        if (entry.isExpired()) {
+            return;
+        }
+        String fingerprint = fingerprint(sertifikat);
+        lock.lock();
+        try {
+            entries.put(fingerprint, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CmsRecipientCache{hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() +
+                ", expirations=" + getExpirations() + ", entries=" + size() + "}";
+    }
+
+    private static String fingerprint(final X509Certificate sertifikat) throws CertificateEncodingException {
+        return DigestUtils.sha256Hex(sertifikat.getEncoded());
+    }
+
+    private static final class Entry {
+
+        private final JceKeyTransRecipientInfoGenerator recipientInfoGenerator;
+        private final long notAfter;
+
+        private Entry(final JceKeyTransRecipientInfoGenerator recipientInfoGenerator, final long notAfter) {
+            this.recipientInfoGenerator = recipientInfoGenerator;
+            this.notAfter = notAfter;
+        }
+
+        private boolean isExpired() {
+            return DateTimeUtils.currentTimeMillis() > notAfter;
+        }
+    }
+
+}
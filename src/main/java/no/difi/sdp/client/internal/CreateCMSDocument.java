@@ -29,6 +29,7 @@ import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.cms.CMSAlgorithm;
 import org.bouncycastle.cms.CMSEnvelopedData;
 import org.bouncycastle.cms.CMSEnvelopedDataGenerator;
+import org.bouncycastle.cms.CMSEnvelopedDataStreamGenerator;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
@@ -37,21 +38,71 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.operator.OutputEncryptor;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Provider;
+import java.security.SecureRandom;
 import java.security.Security;
 import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
 
 public class CreateCMSDocument {
 
+    /**
+     * Størrelsen på segmentene kryptert innhold skrives i når CMS genereres som strøm.
+     */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     private final ASN1ObjectIdentifier cmsEncryptionAlgorithm;
     private final AlgorithmIdentifier keyEncryptionScheme;
+    private final CmsRecipientCache recipientCache;
+    private final Provider contentEncryptionProvider;
+    private final SecureRandom secureRandom;
 
     public CreateCMSDocument() {
+        this(new CmsRecipientCache());
+    }
+
+    public CreateCMSDocument(CmsRecipientCache recipientCache) {
+        this(recipientCache, null);
+    }
+
+    public CreateCMSDocument(CmsRecipientCache recipientCache, Provider contentEncryptionProvider) {
+        this(recipientCache, contentEncryptionProvider, new SecureRandom());
+    }
+
+    /**
+     * @param recipientCache Hurtigbuffer for mottakere, eller {@code null} for å sette opp mottaker på nytt for hver melding.
+     * @param contentEncryptionProvider Provider for AES-krypteringen av innholdet, eller {@code null} for å velge automatisk,
+     *                                  se {@link #defaultContentEncryptionProvider()}.
+     * @param secureRandom Kilde til tilfeldighet for innholdsnøkkel og initialiseringsvektor.
+     */
+    public CreateCMSDocument(CmsRecipientCache recipientCache, Provider contentEncryptionProvider, SecureRandom secureRandom) {
         Security.addProvider(new BouncyCastleProvider());
+        this.recipientCache = recipientCache;
+        this.contentEncryptionProvider = contentEncryptionProvider != null ? contentEncryptionProvider : defaultContentEncryptionProvider();
+        this.secureRandom = secureRandom;
 
         keyEncryptionScheme = rsaesOaepIdentifier();
         cmsEncryptionAlgorithm = CMSAlgorithm.AES256_CBC;
     }
 
+    /**
+     * JDK-ens SunJCE bruker maskinvareakselerert AES (AES-NI) der prosessoren støtter det, og er vesentlig raskere enn
+     * BouncyCastle sin AES. SunJCE foretrekkes derfor dersom den er tilgjengelig, uavhengig av rekkefølgen providerne er
+     * registrert i. Ellers brukes BouncyCastle.
+     */
+    static Provider defaultContentEncryptionProvider() {
+        Provider sunJce = Security.getProvider("SunJCE");
+        if (sunJce != null && sunJce.getService("Cipher", "AES") != null) {
+            return sunJce;
+        }
+        return Security.getProvider(BouncyCastleProvider.PROVIDER_NAME);
+    }
+
+    public Provider getContentEncryptionProvider() {
+        return contentEncryptionProvider;
+    }
+
     private AlgorithmIdentifier rsaesOaepIdentifier() {
         AlgorithmIdentifier hash = new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256, DERNull.INSTANCE);
         AlgorithmIdentifier mask = new AlgorithmIdentifier(PKCSObjectIdentifiers.id_mgf1, hash);
@@ -62,13 +113,10 @@ public class CreateCMSDocument {
 
     public CMSDocument createCMS(byte[] bytes, Sertifikat sertifikat) {
         try {
-            JceKeyTransRecipientInfoGenerator recipientInfoGenerator = new JceKeyTransRecipientInfoGenerator(sertifikat.getX509Certificate(), keyEncryptionScheme)
-                    .setProvider(BouncyCastleProvider.PROVIDER_NAME);
-
             CMSEnvelopedDataGenerator envelopedDataGenerator = new CMSEnvelopedDataGenerator();
-            envelopedDataGenerator.addRecipientInfoGenerator(recipientInfoGenerator);
+            envelopedDataGenerator.addRecipientInfoGenerator(recipientInfoGenerator(sertifikat));
 
-            OutputEncryptor contentEncryptor = new JceCMSContentEncryptorBuilder(cmsEncryptionAlgorithm).build();
+            OutputEncryptor contentEncryptor = contentEncryptor();
             CMSEnvelopedData cmsData = envelopedDataGenerator.generate(new CMSProcessableByteArray(bytes),
                     contentEncryptor);
 
@@ -82,4 +130,54 @@ public class CreateCMSDocument {
             throw new RuntimeIOException(e);
         }
     }
+
+    /**
+     * Åpner en strøm som krypterer alt som skrives til den, og skriver resultatet som CMS til {@code cmsOutput} etter hvert.
+     * Innholdet holdes dermed aldri i sin helhet i minnet. CMS-strukturen blir først komplett når den returnerte strømmen
+     * lukkes, men {@code cmsOutput} blir ikke lukket.
+     */
+    public OutputStream createCMS(OutputStream cmsOutput, Sertifikat sertifikat) {
+        try {
+            CMSEnvelopedDataStreamGenerator envelopedDataGenerator = new CMSEnvelopedDataStreamGenerator();
+            envelopedDataGenerator.addRecipientInfoGenerator(recipientInfoGenerator(sertifikat));
+            envelopedDataGenerator.setBufferSize(STREAM_BUFFER_SIZE);
+
+            OutputEncryptor contentEncryptor = contentEncryptor();
+            return envelopedDataGenerator.open(cmsOutput, contentEncryptor);
+
+        } catch (CertificateEncodingException e) {
+            throw new KonfigurasjonException("Feil med mottakers sertifikat", e);
+        } catch (CMSException e) {
+            throw new KonfigurasjonException("Kunne ikke generere Cryptographic Message Syntax for dokumentpakke", e);
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    private OutputEncryptor contentEncryptor() throws CMSException {
+        // BouncyCastle lager fortsatt CMS-strukturen og krypterer nøkkelen med RSA-OAEP, bare selve innholdet krypteres med denne provideren
+        return new JceCMSContentEncryptorBuilder(cmsEncryptionAlgorithm).setProvider(contentEncryptionProvider).setSecureRandom(secureRandom).build();
+    }
+
+    public CmsRecipientCache getRecipientCache() {
+        return recipientCache;
+    }
+
+    private JceKeyTransRecipientInfoGenerator recipientInfoGenerator(Sertifikat sertifikat) throws CertificateEncodingException {
+        X509Certificate x509Certificate = sertifikat.getX509Certificate();
+        if (recipientCache == null) {
+            return createRecipientInfoGenerator(x509Certificate);
+        }
+        JceKeyTransRecipientInfoGenerator recipientInfoGenerator = recipientCache.get(x509Certificate);
+        if (recipientInfoGenerator == null) {
+            recipientInfoGenerator = createRecipientInfoGenerator(x509Certificate);
+            recipientCache.put(x509Certificate, recipientInfoGenerator);
+        }
+        return recipientInfoGenerator;
+    }
+
+    private JceKeyTransRecipientInfoGenerator createRecipientInfoGenerator(X509Certificate x509Certificate) throws CertificateEncodingException {
+        return new JceKeyTransRecipientInfoGenerator(x509Certificate, keyEncryptionScheme)
+                .setProvider(BouncyCastleProvider.PROVIDER_NAME);
+    }
 }
@@ -15,36 +15,69 @@
  */
 package no.difi.sdp.client.internal;
 
-import no.difi.sdp.client.asice.ArchivedASiCE;
+import no.difi.sdp.client.KlientKonfigurasjon;
 import no.difi.sdp.client.asice.CreateASiCE;
 import no.difi.sdp.client.domain.Forsendelse;
 import no.difi.sdp.client.domain.Sertifikat;
 import no.difi.sdp.client.domain.TekniskAvsender;
+import no.difi.sdp.client.domain.exceptions.RuntimeIOException;
 import no.digipost.api.representations.Dokumentpakke;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
 public class CreateDokumentpakke {
 
     private final CreateASiCE createASiCE;
     private final CreateCMSDocument createCMS;
+    private final int spillToDiskThreshold;
+    private final File temporaryDirectory;
 
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
     public CreateDokumentpakke() {
-        createASiCE = new CreateASiCE();
-        createCMS = new CreateCMSDocument();
+        this(KlientKonfigurasjon.builder().build());
+    }
+
+    public CreateDokumentpakke(KlientKonfigurasjon konfigurasjon) {
+        createASiCE = new CreateASiCE(konfigurasjon);
+        createCMS = new CreateCMSDocument(recipientCache(konfigurasjon.getCmsRecipientCacheSize()), konfigurasjon.getContentEncryptionProvider(), konfigurasjon.getSecureRandom());
+        spillToDiskThreshold = konfigurasjon.getSpillToDiskThresholdInBytes();
+        temporaryDirectory = konfigurasjon.getTemporaryDirectory();
+    }
+
+    private static CmsRecipientCache recipientCache(int maxEntries) {
+        return maxEntries > 0 ? new CmsRecipientCache(maxEntries) : null;
     }
 
     public Dokumentpakke createDokumentpakke(TekniskAvsender tekniskAvsender, Forsendelse forsendelse) {
         log.info("Creating dokumentpakke");
-        ArchivedASiCE archivedASiCE = createASiCE.createAsice(tekniskAvsender, forsendelse);
-
         Sertifikat mottakerSertifikat = forsendelse.getTekniskMottaker().sertifikat;
 
-        log.info("Creating CMS document");
-        CMSDocument cms = createCMS.createCMS(archivedASiCE.getBytes(), mottakerSertifikat);
-        return new Dokumentpakke(cms.getBytes());
+        // ASiC-E zippes rett inn i CMS-krypteringen, slik at verken arkivet eller det krypterte resultatet kopieres underveis
+        PackageBuffer dokumentpakke = new PackageBuffer(spillToDiskThreshold, temporaryDirectory);
+        boolean created = false;
+        try {
+            OutputStream cms = createCMS.createCMS(dokumentpakke, mottakerSertifikat);
+            log.info("Creating ASiC-E as CMS document");
+            createASiCE.createAsice(tekniskAvsender, forsendelse, cms);
+            cms.close();
+            dokumentpakke.close();
+            if (!dokumentpakke.isInMemory()) {
+                log.debug("Dokumentpakke exceeded " + spillToDiskThreshold + " bytes, buffered to " + dokumentpakke.getFile().getAbsolutePath());
+            }
+            created = true;
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        } finally {
+            if (!created) {
+                dokumentpakke.delete();
+            }
+        }
+        return new BufferedDokumentpakke(dokumentpakke);
     }
 
 }
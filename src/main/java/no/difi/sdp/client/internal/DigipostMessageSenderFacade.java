@@ -15,10 +15,15 @@
  */
 package no.difi.sdp.client.internal;
 
+import no.difi.sdp.client.CircuitBreaker;
+import no.difi.sdp.client.ConcurrencyLimiter;
 import no.difi.sdp.client.ExceptionMapper;
 import no.difi.sdp.client.KlientKonfigurasjon;
+import no.difi.sdp.client.ValidationPolicy;
 import no.difi.sdp.client.domain.TekniskAvsender;
+import no.difi.sdp.client.domain.exceptions.CircuitBreakerOpenException;
 import no.difi.sdp.client.domain.exceptions.KonfigurasjonException;
+import no.difi.sdp.client.domain.exceptions.RequestPermitTimeoutException;
 import no.difi.sdp.client.domain.exceptions.SendException;
 import no.difi.sdp.client.domain.exceptions.XmlValideringException;
 import no.digipost.api.MessageSender;
@@ -31,21 +36,36 @@ import no.digipost.api.representations.EbmsForsendelse;
 import no.digipost.api.representations.EbmsPullRequest;
 import no.digipost.api.xml.Schemas;
 import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.springframework.ws.client.support.interceptor.ClientInterceptor;
 import org.springframework.ws.client.support.interceptor.PayloadValidatingInterceptor;
 import org.springframework.ws.context.MessageContext;
 import org.xml.sax.SAXParseException;
 
 import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.*;
 
 public class DigipostMessageSenderFacade {
 
     private final MessageSender messageSender;
+    private final ValidationPolicy validationPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final Semaphore requestPermits;
+    private final long requestPermitTimeoutInMillis;
     private ExceptionMapper exceptionMapper = new ExceptionMapper();
 
     public DigipostMessageSenderFacade(final TekniskAvsender avsender, final KlientKonfigurasjon konfigurasjon) {
+        validationPolicy = konfigurasjon.getValidationPolicy();
+        circuitBreaker = konfigurasjon.getCircuitBreaker();
+        concurrencyLimiter = konfigurasjon.getConcurrencyLimiter();
+        // Med virtuelle tråder venter forespørslene på ledig connection her i stedet for inne i HTTP-klienten, der
+        // oppkobling av nye connections skjer i synchronized-blokker som binder plattformtråden
+        requestPermits = konfigurasjon.useVirtualThreads() ? new Semaphore(konfigurasjon.getMaxConnectionPoolSize(), true) : null;
+        requestPermitTimeoutInMillis = konfigurasjon.getConnectionRequestTimeoutInMillis();
         KeyStoreInfo keyStoreInfo = avsender.noekkelpar.getKeyStoreInfo();
         WsSecurityInterceptor wsSecurityInterceptor = new WsSecurityInterceptor(keyStoreInfo, new UserFriendlyWsSecurityExceptionMapper());
         wsSecurityInterceptor.afterPropertiesSet();
@@ -83,12 +103,35 @@ public class DigipostMessageSenderFacade {
     }
 
     public void send(final EbmsForsendelse ebmsForsendelse) {
-        performRequest(new VoidRequest() {
+        VoidRequest request = new VoidRequest() {
             @Override
             public void exec() {
                 messageSender.send(ebmsForsendelse);
             }
-        });
+        };
+        if (concurrencyLimiter == null) {
+            performRequest(request);
+            return;
+        }
+
+        ConcurrencyLimiter.Permit permit = acquireConcurrencyPermit();
+        long start = System.nanoTime();
+        try {
+            performRequest(request);
+            permit.release(System.nanoTime() - start, null);
+        }
+        catch (SendException e) {
+            if (e instanceof CircuitBreakerOpenException || isLocalAdmissionFailure(e)) {
+                // Ble aldri sendt, og sier derfor ingenting om svartiden
+                throw e;
+            }
+            permit.release(System.nanoTime() - start, e);
+            throw e;
+        }
+        finally {
+            // Gjør ingenting dersom plassen allerede er frigitt med svartiden
+            permit.release();
+        }
     }
 
     public EbmsApplikasjonsKvittering hentKvittering(final EbmsPullRequest ebmsPullRequest) {
@@ -130,6 +173,30 @@ public class DigipostMessageSenderFacade {
     }
 
     private <T> T performRequest(final Request<T> request) throws SendException {
+        CircuitBreaker.Permit permit = circuitBreaker != null ? circuitBreaker.acquire() : null;
+        try {
+            T result = performPermittedRequest(request);
+            if (permit != null) {
+                permit.succeeded();
+            }
+            return result;
+        }
+        catch (SendException e) {
+            // Fikk vi ikke sendt forespørselen fordi klienten selv var full, frigis tillatelsen uten å telle
+            if (permit != null && !isLocalAdmissionFailure(e)) {
+                permit.failed(e);
+            }
+            throw e;
+        }
+        finally {
+            if (permit != null) {
+                permit.release();
+            }
+        }
+    }
+
+    private <T> T performPermittedRequest(final Request<T> request) throws SendException {
+        acquireRequestPermit();
         try {
             return request.exec();
         }
@@ -141,6 +208,61 @@ public class DigipostMessageSenderFacade {
 
             throw new SendException("An unhandled exception occured while performing request", UKJENT, e);
         }
+        finally {
+            if (requestPermits != null) {
+                requestPermits.release();
+            }
+        }
+    }
+
+    private void acquireRequestPermit() {
+        if (requestPermits == null) {
+            return;
+        }
+        try {
+            // Som i HTTP-klienten betyr 0 at det ventes uten tidsavbrudd
+            if (requestPermitTimeoutInMillis <= 0) {
+                requestPermits.acquire();
+            } else if (!requestPermits.tryAcquire(requestPermitTimeoutInMillis, TimeUnit.MILLISECONDS)) {
+                throw new RequestPermitTimeoutException("Timeout waiting for connection from pool");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SendException("Interrupted while waiting for connection from pool", UKJENT, e);
+        }
+    }
+
+    /**
+     * @return om forespørselen ble avvist lokalt fordi det ikke ble ledig plass i porten foran HTTP-klienten eller i
+     *         connection-poolen, eller fordi tråden ble avbrutt mens den ventet, uten at noe ble sendt til
+     *         meldingsformidler.
+     */
+    static boolean isLocalAdmissionFailure(SendException e) {
+        if (e instanceof RequestPermitTimeoutException) {
+            return true;
+        }
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectionPoolTimeoutException || cause instanceof InterruptedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ConcurrencyLimiter.Permit acquireConcurrencyPermit() {
+        try {
+            if (requestPermitTimeoutInMillis <= 0) {
+                return concurrencyLimiter.acquire();
+            }
+            ConcurrencyLimiter.Permit permit = concurrencyLimiter.acquire(requestPermitTimeoutInMillis, TimeUnit.MILLISECONDS);
+            if (permit == null) {
+                throw new RequestPermitTimeoutException("Timeout waiting for concurrency limit");
+            }
+            return permit;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SendException("Interrupted while waiting for concurrency limit", UKJENT, e);
+        }
     }
 
     private interface VoidRequest {
@@ -158,6 +280,14 @@ public class DigipostMessageSenderFacade {
     protected ClientInterceptor payloadValidatingInterceptor() {
         try {
             PayloadValidatingInterceptor payloadValidatingInterceptor = new PayloadValidatingInterceptor() {
+                @Override
+                public boolean handleRequest(final MessageContext messageContext) {
+                    if (validationPolicy.shouldValidate(ValidationPolicy.Kind.SOAP_REQUEST)) {
+                        return super.handleRequest(messageContext);
+                    }
+                    return true;
+                }
+
                 @Override
                 protected boolean handleRequestValidationErrors(final MessageContext messageContext, final SAXParseException[] errors) {
                     if (messageContext.hasResponse()) {
@@ -165,6 +295,7 @@ public class DigipostMessageSenderFacade {
                         throw new XmlValideringException("XML validation errors in response from server", errors, SERVER);
                     }
                     else {
+                        validationPolicy.validationFailed(ValidationPolicy.Kind.SOAP_REQUEST);
                         throw new XmlValideringException("XML validation errors in request. Maybe some fields are not being set or are set with null values?", errors, KLIENT);
                     }
 
@@ -16,22 +16,28 @@
 package no.difi.sdp.client.internal;
 
 import no.difi.begrep.sdp.schema_v10.SDPDigitalPost;
+import no.difi.sdp.client.IdGenerator;
+import no.difi.sdp.client.KlientKonfigurasjon;
 import no.difi.sdp.client.domain.Forsendelse;
 import no.difi.sdp.client.domain.TekniskAvsender;
 import no.difi.sdp.client.domain.TekniskMottaker;
 import no.digipost.api.representations.*;
 import org.unece.cefact.namespaces.standardbusinessdocumentheader.StandardBusinessDocument;
 
-import java.util.UUID;
-
 public class EbmsForsendelseBuilder {
 
     private final SDPBuilder sdpBuilder;
     private final CreateDokumentpakke createDokumentpakke;
+    private final IdGenerator meldingsIdGenerator;
 
     public EbmsForsendelseBuilder() {
+        this(KlientKonfigurasjon.builder().build());
+    }
+
+    public EbmsForsendelseBuilder(KlientKonfigurasjon konfigurasjon) {
         sdpBuilder = new SDPBuilder();
-        createDokumentpakke = new CreateDokumentpakke();
+        createDokumentpakke = new CreateDokumentpakke(konfigurasjon);
+        meldingsIdGenerator = konfigurasjon.getMeldingsIdGenerator();
     }
 
     public EbmsForsendelse buildEbmsForsendelse(TekniskAvsender tekniskAvsender, Organisasjonsnummer meldingsformidler, Forsendelse forsendelse) {
@@ -42,7 +48,7 @@ public class EbmsForsendelseBuilder {
         EbmsAktoer ebmsMottaker = EbmsAktoer.meldingsformidler(meldingsformidler);
 
         //SBD
-        String meldingsId = UUID.randomUUID().toString();
+        String meldingsId = meldingsIdGenerator.generate();
         Organisasjonsnummer sbdhMottaker = new Organisasjonsnummer(mottaker.organisasjonsnummer);
         Organisasjonsnummer sbdhAvsender = new Organisasjonsnummer(tekniskAvsender.organisasjonsnummer);
         SDPDigitalPost sikkerDigitalPost = sdpBuilder.buildDigitalPost(forsendelse);
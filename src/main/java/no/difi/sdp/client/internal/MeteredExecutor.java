@@ -0,0 +1,29 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import no.difi.sdp.client.StageMetrics;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Et steg i {@link SendPipeline} som kan rapportere kødybde og utnyttelse.
+ */
+public interface MeteredExecutor extends Executor {
+
+    StageMetrics getMetrics();
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Låsefri, begrenset pool for objekter som er dyre å lage og ikke kan deles mellom tråder samtidig, f.eks. JAXB
+ * {@link javax.xml.bind.Marshaller}, {@link javax.xml.validation.Validator} og {@link javax.xml.transform.Transformer}.
+ *
+ * I motsetning til en {@link ThreadLocal} er objektene ikke bundet til tråden som laget dem. Med virtuelle tråder, der
+ * hver forsendelse kan sendes fra en ny tråd, ville en {@link ThreadLocal} laget nye objekter for hvert kall. Her
+ * lånes de i stedet ut og leveres tilbake, så det holder med omtrent like mange objekter som tråder som bruker dem
+ * samtidig.
+ *
+ * Når poolen er tom lages nye objekter med {@link #create()}. Objekter som leveres tilbake når poolen er full kastes.
+ */
+public abstract class ObjectPool<T> {
+
+    private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int maxIdle;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Pool med plass til to ledige objekter per prosessor.
+     */
+    public ObjectPool() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param maxIdle Maks antall ledige objekter som holdes i poolen.
+     */
+    public ObjectPool(int maxIdle) {
+        if (maxIdle < 1) {
+            throw new IllegalArgumentException("maxIdle må være minst 1, var " + maxIdle);
+        }
+        this.maxIdle = maxIdle;
+    }
+
+    protected abstract T create();
+
+    /**
+     * @return Et ledig objekt, eller et nytt dersom poolen er tom. Må leveres tilbake med {@link #release(Object)}.
+     */
+    public T acquire() {
+        T object = idle.poll();
+        if (object == null) {
+            misses.incrementAndGet();
+            return create();
+        }
+        idleCount.decrementAndGet();
+        hits.incrementAndGet();
+        return object;
+    }
+
+    public void release(T object) {
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(object);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectPool{hits=" + getHits() + ", misses=" + getMisses() + ", idle=" + idleCount.get() + "}";
+    }
+}
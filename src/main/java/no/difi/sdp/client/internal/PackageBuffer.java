@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.io.output.ThresholdingOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Buffer for en ferdig dokumentpakke. Holdes i minnet til størrelsen passerer en terskel, og skrives deretter
+ * til en midlertidig fil. SHA-256 beregnes mens pakken skrives.
+ *
+ * Bufferet må slettes med {@link #delete()} når pakken er sendt, slik at eventuell midlertidig fil ryddes bort.
+ */
+public class PackageBuffer extends ThresholdingOutputStream {
+
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final MessageDigest sha256 = DigestUtils.getSha256Digest();
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private OutputStream current = memory;
+    private File file;
+    private byte[] data;
+    private byte[] digest;
+
+    /**
+     * @param threshold Antall bytes som holdes i minnet før pakken skrives til fil.
+     * @param directory Mappe for midlertidige filer, eller {@code null} for systemets standard.
+     */
+    public PackageBuffer(int threshold, File directory) {
+        super(threshold);
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        super.write(b);
+        sha256.update((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        sha256.update(b, off, len);
+    }
+
+    @Override
+    protected OutputStream getStream() throws IOException {
+        return current;
+    }
+
+    @Override
+    protected void thresholdReached() throws IOException {
+        file = File.createTempFile("sdp-dokumentpakke-", ".tmp", directory);
+        OutputStream fileOutput = new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE);
+        memory.writeTo(fileOutput);
+        memory = null;
+        current = fileOutput;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (digest != null) {
+            return;
+        }
+        super.close();
+        digest = sha256.digest();
+        if (isInMemory()) {
+            data = memory.toByteArray();
+            memory = null;
+            current = null;
+        }
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return SHA-256 av innholdet. Bufferet må være lukket.
+     */
+    public byte[] getSha256() {
+        verifyClosed();
+        return digest.clone();
+    }
+
+    /**
+     * @return En ny strøm over innholdet. Bufferet må være lukket.
+     */
+    public InputStream openStream() throws IOException {
+        verifyClosed();
+        if (isInMemory()) {
+            return new ByteArrayInputStream(data);
+        }
+        return new BufferedInputStream(new FileInputStream(file), FILE_BUFFER_SIZE);
+    }
+
+    /**
+     * @return Størrelsen på pakken i bytes. Bufferet må være lukket.
+     */
+    public long size() {
+        verifyClosed();
+        return isInMemory() ? data.length : file.length();
+    }
+
+    /**
+     * Flytter innholdet fra minnet til en midlertidig fil. Bufferet må være lukket, og ingen må lese fra det samtidig.
+     */
+    public void spillToDisk() throws IOException {
+        verifyClosed();
+        if (!isInMemory()) {
+            return;
+        }
+        File spilled = File.createTempFile("sdp-dokumentpakke-", ".tmp", directory);
+        try {
+            FileUtils.writeByteArrayToFile(spilled, data);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(spilled);
+            throw e;
+        }
+        file = spilled;
+        data = null;
+    }
+
+    /**
+     * Sletter eventuell midlertidig fil og slipper innholdet i minnet.
+     */
+    public void delete() {
+        IOUtils.closeQuietly(current);
+        memory = null;
+        data = null;
+        if (file != null) {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    private void verifyClosed() {
+        if (digest == null) {
+            throw new IllegalStateException("Pakken er ikke ferdig skrevet");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import no.difi.sdp.client.StageMetrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ett steg i {@link SendPipeline}: en trådpool med begrenset kø, som måler hvor stor del av tiden trådene er i arbeid.
+ */
+public class PipelineStage extends ThreadPoolExecutor implements MeteredExecutor {
+
+    /**
+     * Venter på ledig plass i køen, slik at steget foran bremses når dette steget ikke henger med.
+     */
+    public static final RejectedExecutionHandler BLOCK = new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for queue capacity", e);
+            }
+        }
+    };
+
+    private final String name;
+    private final int queueCapacity;
+    private final long createdNanos = System.nanoTime();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final ThreadLocal<Long> taskStart = new ThreadLocal<Long>();
+
+    public PipelineStage(final String name, int threads, int queueCapacity, RejectedExecutionHandler rejectionPolicy) {
+        this(name, threads, queueCapacity, rejectionPolicy, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param threadFactory Lager trådene til steget. Bruk {@link ThreadPerTaskStage} for virtuelle tråder, de skal ikke pooles.
+     */
+    public PipelineStage(String name, int threads, int queueCapacity, RejectedExecutionHandler rejectionPolicy, ThreadFactory threadFactory) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, rejectionPolicy);
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        // Trådene avsluttes når de ikke er i bruk, så stegene trenger ikke lukkes
+        allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable task) {
+        taskStart.set(System.nanoTime());
+    }
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable failure) {
+        busyNanos.addAndGet(System.nanoTime() - taskStart.get());
+    }
+
+    @Override
+    public StageMetrics getMetrics() {
+        long elapsed = System.nanoTime() - createdNanos;
+        double utilization = elapsed > 0 ? (double) busyNanos.get() / (elapsed * (double) getMaximumPoolSize()) : 0;
+        return new StageMetrics(name, getMaximumPoolSize(), getActiveCount(), getQueue().size(), queueCapacity,
+                getCompletedTaskCount(), Math.min(1, utilization));
+    }
+
+}
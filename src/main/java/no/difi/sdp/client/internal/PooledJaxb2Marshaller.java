@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import org.springframework.oxm.XmlMappingException;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+import org.springframework.oxm.mime.MimeContainer;
+
+import javax.xml.bind.Marshaller;
+import javax.xml.transform.Result;
+
+/**
+ * {@link Jaxb2Marshaller} lager normalt en ny JAXB {@link Marshaller} for hver {@code marshal()}. Denne låner i stedet
+ * en {@link Marshaller} fra en {@link ObjectPool} for hvert kall, siden en {@link Marshaller} ikke kan deles mellom
+ * tråder samtidig. Poolen er ikke bundet til tråder, så den fungerer også når hver forsendelse sendes fra en ny
+ * virtuell tråd.
+ *
+ * Egner seg ikke for MTOM/attachments, siden disse settes på selve {@link Marshaller}-instansen.
+ */
+public class PooledJaxb2Marshaller extends Jaxb2Marshaller {
+
+    private final ObjectPool<Marshaller> marshallers = new ObjectPool<Marshaller>() {
+        @Override
+        protected Marshaller create() {
+            return PooledJaxb2Marshaller.super.createMarshaller();
+        }
+    };
+
+    /**
+     * {@link Marshaller}en som er lånt ut til {@code marshal()} i gjeldende tråd, slik at {@link #createMarshaller()}
+     * kan gi den videre.
+     */
+    private final ThreadLocal<Marshaller> borrowed = new ThreadLocal<Marshaller>();
+
+    @Override
+    public void marshal(Object graph, Result result, MimeContainer mimeContainer) throws XmlMappingException {
+        Marshaller marshaller = marshallers.acquire();
+        borrowed.set(marshaller);
+        try {
+            super.marshal(graph, result, mimeContainer);
+        } finally {
+            borrowed.remove();
+            marshallers.release(marshaller);
+        }
+    }
+
+    @Override
+    protected Marshaller createMarshaller() {
+        Marshaller marshaller = borrowed.get();
+        return marshaller != null ? marshaller : super.createMarshaller();
+    }
+
+    ObjectPool<Marshaller> getPool() {
+        return marshallers;
+    }
+
+}
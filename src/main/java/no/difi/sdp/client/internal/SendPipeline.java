@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import no.difi.sdp.client.StageMetrics;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.ListenableFutureTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deler sending i to steg: pakking (signering, komprimering og kryptering), som er CPU-bundet, og overføring, som venter
+ * på nettverket. Stegene har hver sin trådpool, slik at pakkingen kan dimensjoneres etter antall prosessorer og
+ * overføringen etter størrelsen på connection pool. Når overføringen ikke henger med, venter pakketrådene på plass i
+ * køen til overføringen.
+ */
+public class SendPipeline {
+
+    public interface Transmission<T> {
+
+        void transmit(T packaged);
+
+        /**
+         * Kalles i stedet for {@link #transmit(Object)} dersom den pakkede forsendelsen ikke kunne overleveres til overføringen.
+         */
+        void discard(T packaged);
+    }
+
+    private final ExecutorService packaging;
+    private final MeteredExecutor transmission;
+
+    /**
+     * @param packaging Executor for pakking. Gir metrikker dersom den er en {@link MeteredExecutor}.
+     * @param transmission Steg for overføring. Bør vente når det er fullt, som {@link PipelineStage#BLOCK} og
+     *                     {@link ThreadPerTaskStage}.
+     */
+    public SendPipeline(ExecutorService packaging, MeteredExecutor transmission) {
+        this.packaging = packaging;
+        this.transmission = transmission;
+    }
+
+    /**
+     * @return Fullføres når pakken er overført, eller feiler med exception fra pakkingen eller overføringen. Avbrytes
+     *         den før overføringen har startet, gis pakken til {@link Transmission#discard(Object)}.
+     */
+    public <T> ListenableFuture<Void> submit(final Callable<T> packagingStep, final Transmission<T> transmissionStep) {
+        // Den som henter pakken ut herfra, har ansvaret for at den enten overføres eller kastes
+        final AtomicReference<T> packaged = new AtomicReference<T>();
+        final AtomicReference<Throwable> packagingFailure = new AtomicReference<Throwable>();
+        final ListenableFutureTask<Void> result = new ListenableFutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Throwable failure = packagingFailure.get();
+                if (failure instanceof Exception) {
+                    throw (Exception) failure;
+                } else if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                transmissionStep.transmit(packaged.getAndSet(null));
+                return null;
+            }
+        });
+        result.addCallback(new ListenableFutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void ignored) {
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                // Et avbrutt resultat kjøres aldri, så pakken må kastes her
+                if (result.isCancelled()) {
+                    discard(packaged, transmissionStep);
+                }
+            }
+        });
+
+        packaging.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isCancelled()) {
+                    return;
+                }
+                try {
+                    packaged.set(packagingStep.call());
+                    if (result.isCancelled()) {
+                        discard(packaged, transmissionStep);
+                        return;
+                    }
+                    transmission.execute(result);
+                } catch (Throwable e) {
+                    // Feil i pakkingen eller ved overlevering fullfører resultatet direkte, uten å gå via overføringen
+                    discard(packaged, transmissionStep);
+                    packagingFailure.set(e);
+                    result.run();
+                }
+            }
+        });
+        return result;
+    }
+
+    private static <T> void discard(AtomicReference<T> packaged, Transmission<T> transmissionStep) {
+        T discarded = packaged.getAndSet(null);
+        if (discarded != null) {
+            transmissionStep.discard(discarded);
+        }
+    }
+
+    public List<StageMetrics> getMetrics() {
+        List<StageMetrics> metrics = new ArrayList<StageMetrics>();
+        if (packaging instanceof MeteredExecutor) {
+            metrics.add(((MeteredExecutor) packaging).getMetrics());
+        }
+        metrics.add(transmission.getMetrics());
+        return metrics;
+    }
+
+}
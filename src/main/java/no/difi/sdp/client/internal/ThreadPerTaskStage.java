@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import no.difi.sdp.client.StageMetrics;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Et steg i {@link SendPipeline} som starter en ny tråd for hver oppgave, ment for {@link VirtualThreads virtuelle tråder}.
+ * Virtuelle tråder skal ikke gjenbrukes i en trådpool. Hvor mange forespørsler som faktisk sendes samtidig, begrenses
+ * av porten foran HTTP-klienten i {@link DigipostMessageSenderFacade}.
+ *
+ * Antall oppgaver som er startet men ikke ferdige er likevel begrenset til {@code maxInFlight}, slik at steget foran
+ * venter når overføringen ikke henger med, og ikke flere ferdige dokumentpakker enn dette holdes samtidig.
+ */
+public class ThreadPerTaskStage implements MeteredExecutor {
+
+    private final String name;
+    private final int maxInFlight;
+    private final ThreadFactory threadFactory;
+    private final Semaphore inFlight;
+    private final long createdNanos = System.nanoTime();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    public ThreadPerTaskStage(String name, int maxInFlight, ThreadFactory threadFactory) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight må være minst 1, var " + maxInFlight);
+        }
+        this.name = name;
+        this.maxInFlight = maxInFlight;
+        this.threadFactory = threadFactory;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Venter til antall oppgaver under arbeid er under grensen, og starter oppgaven på en ny tråd.
+     */
+    @Override
+    public void execute(final Runnable task) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for capacity in " + name, e);
+        }
+        try {
+            threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    active.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        active.decrementAndGet();
+                        busyNanos.addAndGet(System.nanoTime() - start);
+                        completed.incrementAndGet();
+                        inFlight.release();
+                    }
+                }
+            }).start();
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public StageMetrics getMetrics() {
+        long elapsed = System.nanoTime() - createdNanos;
+        double utilization = elapsed > 0 ? (double) busyNanos.get() / (elapsed * (double) maxInFlight) : 0;
+        return new StageMetrics(name, maxInFlight, active.get(), 0, 0, completed.get(), Math.min(1, utilization));
+    }
+
+}
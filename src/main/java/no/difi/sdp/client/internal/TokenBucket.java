@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket uten låser. I stedet for å telle tokens holdes tidspunktet bøtta er tom igjen dersom ingen flere tokens
+ * brukes, og hver tillatelse flytter tidspunktet ett intervall frem med compare-and-set. Bøtta tar imot opp til
+ * {@code permits} forespørsler på en gang, og fylles opp med {@code permits} per periode.
+ */
+public class TokenBucket {
+
+    private final long intervalNanos;
+    private final long burstToleranceNanos;
+    private final AtomicLong emptyAt;
+
+    public TokenBucket(int permits, long period, TimeUnit timeUnit) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("permits må være minst 1, var " + permits);
+        }
+        intervalNanos = Math.max(1, timeUnit.toNanos(period) / permits);
+        burstToleranceNanos = intervalNanos * (permits - 1);
+        emptyAt = new AtomicLong(nanoTime());
+    }
+
+    public boolean tryAcquire() {
+        return reserve(0) >= 0;
+    }
+
+    /**
+     * @return {@code false} dersom det ikke blir en ledig token innen gitt tid. Da er heller ingen token brukt.
+     */
+    public boolean tryAcquire(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long wait = reserve(timeUnit.toNanos(timeout));
+        if (wait < 0) {
+            return false;
+        }
+        sleep(wait);
+        return true;
+    }
+
+    public void acquire() throws InterruptedException {
+        sleep(reserve(Long.MAX_VALUE));
+    }
+
+    /**
+     * Setter av en token uten å vente på den.
+     *
+     * @return Hvor lenge det må ventes før tokenen kan brukes, eller -1 dersom det er lengre enn {@code maxWaitNanos}.
+     */
+    public long reserve(long maxWaitNanos) {
+        while (true) {
+            long now = nanoTime();
+            long current = emptyAt.get();
+            long start = current - now > 0 ? current : now;
+            long wait = start - burstToleranceNanos - now;
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            if (emptyAt.compareAndSet(current, start + intervalNanos)) {
+                return Math.max(0, wait);
+            }
+        }
+    }
+
+    /**
+     * @return om bøtta er helt fylt opp igjen, slik at den ikke er til å skille fra en ny bøtte med samme grense.
+     */
+    public boolean isFull() {
+        return emptyAt.get() - nanoTime() <= 0;
+    }
+
+    /**
+     * Gir tilbake en token fra {@link #reserve(long)} som likevel ikke ble brukt.
+     */
+    public void refund() {
+        emptyAt.addAndGet(-intervalNanos);
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private static void sleep(long nanos) throws InterruptedException {
+        if (nanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+
+}
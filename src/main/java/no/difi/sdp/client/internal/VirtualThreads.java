@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import no.difi.sdp.client.domain.exceptions.KonfigurasjonException;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtuelle tråder (Java 21 og nyere), hentet med refleksjon siden klienten bygges for eldre Java-versjoner.
+ */
+public final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() {}
+
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return Lager virtuelle tråder med navn {@code name-1}, {@code name-2} og så videre.
+     * @throws KonfigurasjonException dersom JVM-en ikke har virtuelle tråder.
+     */
+    public static ThreadFactory factory(String name) {
+        if (!isAvailable()) {
+            throw new KonfigurasjonException("Virtual threads require Java 21 or newer, running on Java " + System.getProperty("java.version"));
+        }
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 1L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (Exception e) {
+            throw new KonfigurasjonException("Unable to create virtual thread factory", e);
+        }
+    }
+
+}
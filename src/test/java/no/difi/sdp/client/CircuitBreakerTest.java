@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import no.difi.sdp.client.CircuitBreaker.State;
+import no.difi.sdp.client.domain.exceptions.CircuitBreakerOpenException;
+import no.difi.sdp.client.domain.exceptions.SendException;
+import no.difi.sdp.client.domain.exceptions.SendIOException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.KLIENT;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Fail.fail;
+
+public class CircuitBreakerTest {
+
+    private static final SendException NETTVERKSFEIL = new SendIOException(new IOException("Connection refused"));
+
+    @Test
+    public void aapner_etter_gitt_antall_feil_paa_rad() {
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder(3, 1, TimeUnit.MINUTES).build();
+
+        feil(circuitBreaker, 2);
+        lykkes(circuitBreaker);
+        feil(circuitBreaker, 2);
+        assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+
+        feil(circuitBreaker, 1);
+        assertThat(circuitBreaker.getState()).isEqualTo(State.OPEN);
+        assertAvvist(circuitBreaker);
+        assertThat(circuitBreaker.getRejected()).isEqualTo(1);
+        assertThat(circuitBreaker.getTransitions(State.OPEN)).isEqualTo(1);
+    }
+
+    @Test
+    public void klientfeil_viser_at_meldingsformidler_svarer() {
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder(2, 1, TimeUnit.MINUTES).build();
+
+        for (int i = 0; i < 5; i++) {
+            CircuitBreaker.Permit permit = circuitBreaker.acquire();
+            permit.failed(new SendException("Ugyldig forsendelse", KLIENT, null));
+            permit.release();
+        }
+
+        assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    public void proever_igjen_etter_pausen_og_lukkes_naar_proeven_lykkes() throws InterruptedException {
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder(1, 20, TimeUnit.MILLISECONDS).build();
+        feil(circuitBreaker, 1);
+        Thread.sleep(30);
+
+        CircuitBreaker.Permit proeve = circuitBreaker.acquire();
+        assertThat(circuitBreaker.getState()).isEqualTo(State.HALF_OPEN);
+        assertAvvist(circuitBreaker);
+
+        proeve.succeeded();
+        proeve.release();
+        assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+        assertThat(circuitBreaker.getTransitions(State.HALF_OPEN)).isEqualTo(1);
+        assertThat(circuitBreaker.getTransitions(State.CLOSED)).isEqualTo(1);
+    }
+
+    @Test
+    public void mislykket_proeve_stanser_sendingen_igjen() throws InterruptedException {
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder(1, 20, TimeUnit.MILLISECONDS).halfOpenTrials(2).build();
+        feil(circuitBreaker, 1);
+        Thread.sleep(30);
+
+        CircuitBreaker.Permit foersteProeve = circuitBreaker.acquire();
+        CircuitBreaker.Permit andreProeve = circuitBreaker.acquire();
+        foersteProeve.succeeded();
+        assertThat(circuitBreaker.getState()).isEqualTo(State.HALF_OPEN);
+        andreProeve.failed(NETTVERKSFEIL);
+
+        assertThat(circuitBreaker.getState()).isEqualTo(State.OPEN);
+        assertThat(circuitBreaker.getTransitions(State.OPEN)).isEqualTo(2);
+    }
+
+    @Test
+    public void proever_fra_en_tidligere_runde_telles_ikke_i_neste() throws InterruptedException {
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder(1, 20, TimeUnit.MILLISECONDS).halfOpenTrials(2).build();
+        feil(circuitBreaker, 1);
+        Thread.sleep(30);
+
+        CircuitBreaker.Permit mislykket = circuitBreaker.acquire();
+        CircuitBreaker.Permit etternoler = circuitBreaker.acquire();
+        mislykket.failed(NETTVERKSFEIL);
+        mislykket.release();
+        Thread.sleep(30);
+
+        CircuitBreaker.Permit foersteProeve = circuitBreaker.acquire();
+        CircuitBreaker.Permit andreProeve = circuitBreaker.acquire();
+        etternoler.succeeded();
+        etternoler.release();
+        assertAvvist(circuitBreaker);
+
+        foersteProeve.succeeded();
+        foersteProeve.release();
+        assertThat(circuitBreaker.getState()).isEqualTo(State.HALF_OPEN);
+        andreProeve.succeeded();
+        andreProeve.release();
+        assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void feilterskel_maa_vaere_minst_1() {
+        CircuitBreaker.builder(0, 1, TimeUnit.MINUTES);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void antall_proever_maa_vaere_minst_1() {
+        CircuitBreaker.builder(1, 1, TimeUnit.MINUTES).halfOpenTrials(0);
+    }
+
+    @Test
+    public void venter_paa_proeve_naar_blockFor_er_satt() {
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder(1, 50, TimeUnit.MILLISECONDS).blockFor(5, TimeUnit.SECONDS).build();
+        feil(circuitBreaker, 1);
+
+        long start = System.nanoTime();
+        circuitBreaker.checkPermitted();
+        CircuitBreaker.Permit proeve = circuitBreaker.acquire();
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(40);
+        assertThat(circuitBreaker.getState()).isEqualTo(State.HALF_OPEN);
+        assertThat(circuitBreaker.getRejected()).isEqualTo(0);
+        proeve.release();
+    }
+
+    @Test
+    public void melder_overganger_til_lyttere() throws InterruptedException {
+        final List<String> overganger = new ArrayList<String>();
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder(1, 10, TimeUnit.MILLISECONDS).build();
+        circuitBreaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void stateChanged(State from, State to) {
+                overganger.add(from + "->" + to);
+            }
+        });
+
+        feil(circuitBreaker, 1);
+        Thread.sleep(20);
+        lykkes(circuitBreaker);
+
+        assertThat(overganger).containsExactly("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED");
+    }
+
+    private static void feil(CircuitBreaker circuitBreaker, int antall) {
+        for (int i = 0; i < antall; i++) {
+            CircuitBreaker.Permit permit = circuitBreaker.acquire();
+            permit.failed(NETTVERKSFEIL);
+            permit.release();
+        }
+    }
+
+    private static void lykkes(CircuitBreaker circuitBreaker) {
+        CircuitBreaker.Permit permit = circuitBreaker.acquire();
+        permit.succeeded();
+        permit.release();
+    }
+
+    private static void assertAvvist(CircuitBreaker circuitBreaker) {
+        try {
+            circuitBreaker.acquire();
+            fail("Should be rejected");
+        } catch (CircuitBreakerOpenException e) {
+            assertThat(e.getAntattSkyldig()).isEqualTo(SendException.AntattSkyldig.SERVER);
+        }
+    }
+
+}
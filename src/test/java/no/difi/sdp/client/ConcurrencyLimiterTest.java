@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import no.difi.sdp.client.domain.exceptions.SendException;
+import no.difi.sdp.client.domain.exceptions.SendIOException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.KLIENT;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ConcurrencyLimiterTest {
+
+    private static final long RASK = MILLISECONDS.toNanos(10);
+    private static final long TREG = MILLISECONDS.toNanos(200);
+
+    private static final int KAPASITET = 4;
+    private static final int BEHANDLINGSTID = 20;
+    private static final int AVSENDERE = 16;
+    private static final int KJOERETID = 2000;
+
+    @Test
+    public void minker_grensen_ved_treg_svartid_og_nettverksfeil() throws InterruptedException {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.builder(10, 2, 20, 100, MILLISECONDS).backoffRatio(0.5).build();
+
+        limiter.acquire().release(TREG, null);
+        assertThat(limiter.getLimit()).isEqualTo(5);
+
+        limiter.acquire().release(RASK, new SendIOException(new IOException("Connection reset")));
+        assertThat(limiter.getLimit()).isEqualTo(2);
+
+        limiter.acquire().release(TREG, null);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+        assertThat(limiter.getDecreases()).isEqualTo(3);
+    }
+
+    @Test
+    public void minker_grensen_bare_en_gang_for_en_boelge_av_trege_svar() throws InterruptedException {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.builder(10, 1, 20, 100, MILLISECONDS).backoffRatio(0.5).build();
+
+        List<ConcurrencyLimiter.Permit> boelge = new ArrayList<ConcurrencyLimiter.Permit>();
+        for (int i = 0; i < 10; i++) {
+            boelge.add(limiter.acquire());
+        }
+        for (ConcurrencyLimiter.Permit permit : boelge) {
+            permit.release(TREG, null);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(5);
+        assertThat(limiter.getDecreases()).isEqualTo(1);
+
+        limiter.acquire().release(TREG, null);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+        assertThat(limiter.getDecreases()).isEqualTo(2);
+    }
+
+    @Test
+    public void tregt_svar_paa_forsendelse_startet_etter_senkningen_senker_grensen_igjen() throws InterruptedException {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.builder(10, 1, 20, 100, MILLISECONDS).backoffRatio(0.5).build();
+
+        ConcurrencyLimiter.Permit foerste = limiter.acquire();
+        ConcurrencyLimiter.Permit underveis = limiter.acquire();
+        foerste.release(TREG, null);
+        assertThat(limiter.getLimit()).isEqualTo(5);
+
+        limiter.acquire().release(TREG, null);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+
+        underveis.release(TREG, null);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+        assertThat(limiter.getDecreases()).isEqualTo(2);
+        assertThat(limiter.getInFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void plassen_frigis_bare_en_gang() throws InterruptedException {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.builder(1, 1, 1, 100, MILLISECONDS).build();
+
+        ConcurrencyLimiter.Permit permit = limiter.acquire();
+        permit.release(RASK, null);
+        permit.release();
+
+        assertThat(limiter.getInFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void klientfeil_endrer_ikke_grensen() throws InterruptedException {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.builder(1, 1, 20, 100, MILLISECONDS).build();
+
+        limiter.acquire().release(RASK, new SendException("Ugyldig forsendelse", KLIENT, null));
+
+        assertThat(limiter.getDecreases()).isEqualTo(0);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+    }
+
+    @Test
+    public void oeker_grensen_med_en_per_fullt_utnyttet_runde() throws InterruptedException {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.builder(4, 1, 5, 100, MILLISECONDS).build();
+
+        for (int runde = 0; runde < 3; runde++) {
+            int limit = limiter.getLimit();
+            List<ConcurrencyLimiter.Permit> permits = new ArrayList<ConcurrencyLimiter.Permit>();
+            for (int i = 0; i < limit; i++) {
+                permits.add(limiter.acquire());
+            }
+            for (ConcurrencyLimiter.Permit permit : permits) {
+                permit.release(RASK, null);
+            }
+        }
+
+        assertThat(limiter.getLimit()).isEqualTo(5);
+        assertThat(limiter.getInFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void oeker_ikke_grensen_naar_den_ikke_er_i_bruk() throws InterruptedException {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.builder(10, 1, 20, 100, MILLISECONDS).build();
+
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire().release(RASK, null);
+        }
+
+        assertThat(limiter.getLimit()).isEqualTo(10);
+        assertThat(limiter.getIncreases()).isEqualTo(0);
+    }
+
+    @Test
+    public void venter_i_koe_naar_grensen_er_naadd() throws InterruptedException {
+        final ConcurrencyLimiter limiter = ConcurrencyLimiter.builder(1, 1, 1, 100, MILLISECONDS).build();
+        ConcurrencyLimiter.Permit permit = limiter.acquire();
+        assertThat(limiter.acquire(10, MILLISECONDS)).isNull();
+
+        Thread venter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        venter.start();
+        while (limiter.getQueueDepth() == 0) {
+            Thread.sleep(1);
+        }
+
+        permit.release();
+        venter.join(TimeUnit.SECONDS.toMillis(5));
+        assertThat(limiter.getQueueDepth()).isEqualTo(0);
+        assertThat(limiter.getInFlight()).isEqualTo(1);
+    }
+
+    /**
+     * Stubben behandler {@value #KAPASITET} forespørsler om gangen i {@value #BEHANDLINGSTID} ms, og resten venter i kø
+     * hos stubben. Sendes mer enn kapasiteten samtidig øker svartiden over terskelen, så grensen skal finne seg til rette
+     * rundt kapasiteten selv om det er mange flere tråder som vil sende.
+     */
+    @Test
+    public void konvergerer_mot_kapasiteten_til_en_treg_stub() throws Exception {
+        final Semaphore kapasitet = new Semaphore(KAPASITET);
+        ExecutorService stubExecutor = Executors.newCachedThreadPool();
+        HttpServer stub = HttpServer.create(new InetSocketAddress("localhost", 0), 100);
+        stub.setExecutor(stubExecutor);
+        stub.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    kapasitet.acquire();
+                    try {
+                        Thread.sleep(BEHANDLINGSTID);
+                    } finally {
+                        kapasitet.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.getRequestBody().close();
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        stub.start();
+
+        final ConcurrencyLimiter limiter = ConcurrencyLimiter.builder(1, 1, 4 * AVSENDERE, BEHANDLINGSTID * 3 / 2, MILLISECONDS).build();
+        final URL url = new URL("http://localhost:" + stub.getAddress().getPort() + "/");
+        final long slutt = System.nanoTime() + MILLISECONDS.toNanos(KJOERETID);
+        final AtomicInteger feil = new AtomicInteger();
+        List<Thread> avsendere = new ArrayList<Thread>();
+        try {
+            for (int i = 0; i < AVSENDERE; i++) {
+                Thread avsender = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (System.nanoTime() < slutt) {
+                                ConcurrencyLimiter.Permit permit = limiter.acquire();
+                                long start = System.nanoTime();
+                                try {
+                                    send(url);
+                                    permit.release(System.nanoTime() - start, null);
+                                } catch (IOException e) {
+                                    feil.incrementAndGet();
+                                    permit.release(System.nanoTime() - start, new SendIOException(e));
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+                avsender.start();
+                avsendere.add(avsender);
+            }
+
+            // Les av grensen i andre halvdel av kjøringen, etter at den har hatt tid til å finne seg til rette
+            Thread.sleep(KJOERETID / 2);
+            int maalinger = 0;
+            long sum = 0;
+            while (System.nanoTime() < slutt) {
+                sum += limiter.getLimit();
+                maalinger++;
+                Thread.sleep(10);
+            }
+            double gjennomsnitt = (double) sum / maalinger;
+
+            for (Thread avsender : avsendere) {
+                avsender.join();
+            }
+            assertThat(feil.get()).isEqualTo(0);
+            assertThat(limiter.getInFlight()).isEqualTo(0);
+            assertThat(limiter.getDecreases()).isGreaterThan(0);
+            assertThat(gjennomsnitt).as(limiter.toString() + ", gjennomsnitt " + gjennomsnitt).isGreaterThanOrEqualTo(KAPASITET / 2.0).isLessThanOrEqualTo(KAPASITET * 2.0);
+        } finally {
+            stub.stop(0);
+            stubExecutor.shutdownNow();
+        }
+    }
+
+    private static void send(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream body = connection.getOutputStream();
+        body.write(new byte[1024]);
+        body.close();
+        connection.getResponseCode();
+        InputStream response = connection.getInputStream();
+        response.close();
+    }
+
+}
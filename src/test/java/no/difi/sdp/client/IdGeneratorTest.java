@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class IdGeneratorTest {
+
+    @Test
+    public void random_uuid_is_version_4() {
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            UUID uuid = UUID.fromString(IdGenerator.RANDOM_UUID.generate());
+            assertThat(uuid.version()).isEqualTo(4);
+            assertThat(uuid.variant()).isEqualTo(2);
+            ids.add(uuid.toString());
+        }
+        assertThat(ids).hasSize(1000);
+    }
+
+    @Test
+    public void time_ordered_uuid_is_version_7_and_sorts_by_time() throws InterruptedException {
+        long before = System.currentTimeMillis();
+        UUID first = UUID.fromString(IdGenerator.TIME_ORDERED_UUID.generate());
+        Thread.sleep(2);
+        UUID second = UUID.fromString(IdGenerator.TIME_ORDERED_UUID.generate());
+
+        assertThat(first.version()).isEqualTo(7);
+        assertThat(first.variant()).isEqualTo(2);
+        assertThat(first.getMostSignificantBits() >>> 16).isGreaterThanOrEqualTo(before);
+        assertThat(first.toString().compareTo(second.toString())).isLessThan(0);
+    }
+
+    @Test
+    public void striped_secure_random_reuses_a_bounded_set_of_generators() throws InterruptedException {
+        final Set<Object> generators = new HashSet<Object>();
+        Thread[] threads = new Thread[StripedSecureRandom.stripeCount() * 4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    assertThat(StripedSecureRandom.current()).isSameAs(StripedSecureRandom.current());
+                    synchronized (generators) {
+                        generators.add(StripedSecureRandom.current());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(generators.size()).isGreaterThan(1).isLessThanOrEqualTo(StripedSecureRandom.stripeCount());
+    }
+
+    @Test
+    @Ignore("Benchmark. Kjør manuelt for å sammenligne UUID.randomUUID() og IdGenerator med mange tråder")
+    public void id_generation_throughput_per_thread_count() throws InterruptedException {
+        IdGenerator jdk = new IdGenerator() {
+            @Override
+            public String generate() {
+                return UUID.randomUUID().toString();
+            }
+        };
+        for (int threads : new int[] { 1, 4, 16, 64 }) {
+            for (IdGenerator generator : new IdGenerator[] { jdk, IdGenerator.RANDOM_UUID, IdGenerator.TIME_ORDERED_UUID }) {
+                run(generator, threads, TimeUnit.SECONDS.toMillis(2));
+                long ids = run(generator, threads, TimeUnit.SECONDS.toMillis(5));
+                System.out.println(String.format("%2d threads, %-24s %10.0f ids/s", threads,
+                        generator == jdk ? "UUID.randomUUID()" : generator == IdGenerator.RANDOM_UUID ? "RANDOM_UUID" : "TIME_ORDERED_UUID", ids / 5.0));
+            }
+        }
+    }
+
+    private static long run(final IdGenerator generator, int threads, long millis) throws InterruptedException {
+        final AtomicLong ids = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + millis;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    while (System.currentTimeMillis() < deadline) {
+                        generator.generate();
+                        count++;
+                    }
+                    ids.addAndGet(count);
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        return ids.get();
+    }
+
+}
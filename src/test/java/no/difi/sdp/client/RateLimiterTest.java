@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import no.difi.sdp.client.domain.Behandlingsansvarlig;
+import no.difi.sdp.client.domain.Forsendelse;
+import no.difi.sdp.client.domain.Prioritet;
+import no.difi.sdp.client.domain.exceptions.RateLimitExceededException;
+import no.difi.sdp.client.domain.kvittering.KvitteringForespoersel;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Fail.fail;
+
+public class RateLimiterTest {
+
+    @Test
+    public void egen_grense_per_prioritet() {
+        RateLimiter rateLimiter = RateLimiter.builder()
+                .send(Prioritet.NORMAL, 1, 1, MINUTES)
+                .failFast()
+                .build();
+
+        rateLimiter.acquireSend(forsendelse(Prioritet.NORMAL, null));
+        assertAvvist(rateLimiter, forsendelse(Prioritet.NORMAL, null));
+        rateLimiter.acquireSend(forsendelse(Prioritet.PRIORITERT, null));
+        rateLimiter.acquireSend(forsendelse(Prioritet.PRIORITERT, null));
+        assertThat(rateLimiter.getRejected()).isEqualTo(1);
+    }
+
+    @Test
+    public void egen_grense_per_mpc_id() {
+        RateLimiter rateLimiter = RateLimiter.builder()
+                .sendPerMpcId(2, 1, MINUTES)
+                .failFast()
+                .build();
+
+        rateLimiter.acquireSend(forsendelse(Prioritet.NORMAL, "a"));
+        rateLimiter.acquireSend(forsendelse(Prioritet.PRIORITERT, "a"));
+        assertAvvist(rateLimiter, forsendelse(Prioritet.NORMAL, "a"));
+        rateLimiter.acquireSend(forsendelse(Prioritet.NORMAL, "b"));
+        rateLimiter.acquireSend(forsendelse(Prioritet.NORMAL, null));
+    }
+
+    @Test
+    public void egen_grense_per_behandlingsansvarlig() {
+        RateLimiter rateLimiter = RateLimiter.builder()
+                .sendPerBehandlingsansvarlig(1, 1, MINUTES)
+                .failFast()
+                .build();
+
+        rateLimiter.acquireSend(forsendelse(Behandlingsansvarlig.builder("936796702").build()));
+        assertAvvist(rateLimiter, forsendelse(Behandlingsansvarlig.builder("936796702").build()));
+        rateLimiter.acquireSend(forsendelse(Behandlingsansvarlig.builder("936796702").avsenderIdentifikator("enhet").build()));
+        rateLimiter.acquireSend(forsendelse(Behandlingsansvarlig.builder("988015814").build()));
+    }
+
+    @Test
+    public void avvist_forsendelse_teller_ikke_mot_de_andre_grensene() {
+        RateLimiter rateLimiter = RateLimiter.builder()
+                .send(Prioritet.NORMAL, 2, 1, MINUTES)
+                .sendPerMpcId(1, 1, MINUTES)
+                .failFast()
+                .build();
+
+        rateLimiter.acquireSend(forsendelse(Prioritet.NORMAL, "a"));
+        assertAvvist(rateLimiter, forsendelse(Prioritet.NORMAL, "a"));
+        rateLimiter.acquireSend(forsendelse(Prioritet.NORMAL, "b"));
+    }
+
+    @Test
+    public void kvitteringer_har_egne_grenser() {
+        RateLimiter rateLimiter = RateLimiter.builder()
+                .send(Prioritet.NORMAL, 1, 1, MINUTES)
+                .kvittering(Prioritet.NORMAL, 1, 1, MINUTES)
+                .failFast()
+                .build();
+
+        rateLimiter.acquireSend(forsendelse(Prioritet.NORMAL, null));
+        rateLimiter.acquireKvittering(KvitteringForespoersel.builder(Prioritet.NORMAL).build());
+        try {
+            rateLimiter.acquireKvittering(KvitteringForespoersel.builder(Prioritet.NORMAL).build());
+            fail("Should fail");
+        } catch (RateLimitExceededException e) {
+            assertThat(rateLimiter.getRejected()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void venter_paa_plass_innenfor_grensen() {
+        RateLimiter rateLimiter = RateLimiter.builder()
+                .send(Prioritet.NORMAL, 1, 50, MILLISECONDS)
+                .maxWait(1, TimeUnit.SECONDS)
+                .build();
+
+        rateLimiter.acquireSend(forsendelse(Prioritet.NORMAL, null));
+        long start = System.nanoTime();
+        rateLimiter.acquireSend(forsendelse(Prioritet.NORMAL, null));
+
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(MILLISECONDS.toNanos(40));
+        assertThat(rateLimiter.getRejected()).isEqualTo(0);
+    }
+
+    @Test
+    public void fjerner_grenser_for_noekler_som_ikke_lenger_brukes() throws InterruptedException {
+        RateLimiter.PerKey perKey = new RateLimiter.PerKey();
+        perKey.limit(1, 1, MILLISECONDS);
+
+        for (int i = 0; i < 1000; i++) {
+            perKey.get("gammel" + i).tryAcquire();
+        }
+        Thread.sleep(10);
+        for (int i = 0; i < 1000; i++) {
+            perKey.get("ny" + i).tryAcquire();
+        }
+
+        assertThat(perKey.size()).isLessThan(2000);
+    }
+
+    @Test
+    public void beholder_grenser_som_er_i_bruk() {
+        RateLimiter rateLimiter = RateLimiter.builder()
+                .sendPerMpcId(1, 1, MINUTES)
+                .failFast()
+                .build();
+
+        rateLimiter.acquireSend(forsendelse(Prioritet.NORMAL, "a"));
+        for (int i = 0; i < 1000; i++) {
+            rateLimiter.acquireSend(forsendelse(Prioritet.NORMAL, "b" + i));
+        }
+        assertAvvist(rateLimiter, forsendelse(Prioritet.NORMAL, "a"));
+    }
+
+    private static Forsendelse forsendelse(Prioritet prioritet, String mpcId) {
+        Forsendelse original = ObjectMother.forsendelse();
+        return Forsendelse.digital(original.getBehandlingsansvarlig(), original.getDigitalPost(), original.getDokumentpakke())
+                .prioritet(prioritet)
+                .mpcId(mpcId)
+                .build();
+    }
+
+    private static Forsendelse forsendelse(Behandlingsansvarlig behandlingsansvarlig) {
+        Forsendelse original = ObjectMother.forsendelse();
+        return Forsendelse.digital(behandlingsansvarlig, original.getDigitalPost(), original.getDokumentpakke()).build();
+    }
+
+    private static void assertAvvist(RateLimiter rateLimiter, Forsendelse forsendelse) {
+        try {
+            rateLimiter.acquireSend(forsendelse);
+            fail("Should fail");
+        } catch (RateLimitExceededException e) {
+            assertThat(e.getAntattSkyldig()).isEqualTo(RateLimitExceededException.AntattSkyldig.KLIENT);
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import no.difi.sdp.client.domain.Dokument;
+import no.difi.sdp.client.domain.Dokumentpakke;
+import no.difi.sdp.client.domain.Forsendelse;
+import no.difi.sdp.client.domain.Prioritet;
+import no.difi.sdp.client.domain.digital_post.DigitalPost;
+import no.difi.sdp.client.internal.BufferedDokumentpakke;
+import no.difi.sdp.client.internal.EbmsForsendelseBuilder;
+import no.digipost.api.representations.EbmsForsendelse;
+import no.digipost.api.representations.Organisasjonsnummer;
+import org.apache.commons.io.IOUtils;
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import static no.difi.sdp.client.ObjectMother.behandlingsansvarlig;
+import static no.difi.sdp.client.ObjectMother.digitalPost;
+import static no.difi.sdp.client.ObjectMother.forsendelse;
+import static no.difi.sdp.client.ObjectMother.tekniskAvsender;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ResendCacheTest {
+
+    private final EbmsForsendelseBuilder ebmsForsendelseBuilder = new EbmsForsendelseBuilder();
+
+    @After
+    public void tearDown() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void take_henter_ut_og_fjerner_forsendelsen() {
+        ResendCache cache = new ResendCache();
+        EbmsForsendelse ebmsForsendelse = pakket();
+
+        cache.put("konversasjonsId", "avtrykk", ebmsForsendelse);
+
+        assertThat(cache.take("konversasjonsId", "avtrykk")).isSameAs(ebmsForsendelse);
+        assertThat(cache.take("konversasjonsId", "avtrykk")).isNull();
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getBytesInMemory()).isEqualTo(0);
+    }
+
+    @Test
+    public void kaster_pakken_naar_forsendelsen_er_endret() {
+        ResendCache cache = new ResendCache();
+        EbmsForsendelse ebmsForsendelse = pakket();
+        BufferedDokumentpakke dokumentpakke = (BufferedDokumentpakke) ebmsForsendelse.getDokumentpakke();
+
+        cache.put("konversasjonsId", "gammelt avtrykk", ebmsForsendelse);
+
+        assertThat(cache.take("konversasjonsId", "nytt avtrykk")).isNull();
+        assertThat(cache.getStale()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(0);
+        assertThat(dokumentpakke.isInMemory()).isTrue();
+    }
+
+    @Test
+    public void fingeravtrykket_endres_med_dokumentene_og_metadata() {
+        // Virkningsdatoen i ObjectMother er tidspunktet posten lages, og er med i avtrykket
+        DigitalPost digitalPost = digitalPost();
+        String original = ResendCache.fingerprint(forsendelseMed(digitalPost, "hei", Prioritet.NORMAL));
+
+        assertThat(ResendCache.fingerprint(forsendelseMed(digitalPost, "hei", Prioritet.NORMAL))).isEqualTo(original);
+        assertThat(ResendCache.fingerprint(forsendelseMed(digitalPost, "hallo", Prioritet.NORMAL))).isNotEqualTo(original);
+        assertThat(ResendCache.fingerprint(forsendelseMed(digitalPost, "hei", Prioritet.PRIORITERT))).isNotEqualTo(original);
+    }
+
+    @Test
+    public void kaster_pakker_som_har_ligget_for_lenge() {
+        DateTimeUtils.setCurrentMillisFixed(1000);
+        ResendCache cache = new ResendCache(10, Long.MAX_VALUE, 1, TimeUnit.MINUTES);
+
+        cache.put("1", "avtrykk", pakket());
+        DateTimeUtils.setCurrentMillisFixed(1000 + TimeUnit.MINUTES.toMillis(1) + 1);
+        cache.put("2", "avtrykk", pakket());
+
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.getExpirations()).isEqualTo(1);
+        assertThat(cache.take("1", "avtrykk")).isNull();
+        assertThat(cache.take("2", "avtrykk")).isNotNull();
+    }
+
+    @Test
+    public void kaster_ut_eldste_forsendelse_naar_bufferet_er_fullt() {
+        ResendCache cache = new ResendCache(2, Long.MAX_VALUE);
+
+        cache.put("1", "avtrykk", pakket());
+        cache.put("2", "avtrykk", pakket());
+        cache.put("3", "avtrykk", pakket());
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.getEvictions()).isEqualTo(1);
+        assertThat(cache.take("1", "avtrykk")).isNull();
+        assertThat(cache.take("2", "avtrykk")).isNotNull();
+        assertThat(cache.take("3", "avtrykk")).isNotNull();
+    }
+
+    @Test
+    public void flytter_eldste_dokumentpakke_til_disk_naar_minnegrensen_passeres() throws IOException {
+        EbmsForsendelse eldste = pakket();
+        EbmsForsendelse nyeste = pakket();
+        BufferedDokumentpakke eldstePakke = (BufferedDokumentpakke) eldste.getDokumentpakke();
+        BufferedDokumentpakke nyestePakke = (BufferedDokumentpakke) nyeste.getDokumentpakke();
+        byte[] innhold = read(eldstePakke);
+        byte[] sha256 = eldstePakke.getSHA256();
+        ResendCache cache = new ResendCache(10, eldstePakke.size() + nyestePakke.size() - 1);
+
+        cache.put("eldste", "avtrykk", eldste);
+        cache.put("nyeste", "avtrykk", nyeste);
+
+        assertThat(cache.getSpills()).isEqualTo(1);
+        assertThat(eldstePakke.isInMemory()).isFalse();
+        assertThat(nyestePakke.isInMemory()).isTrue();
+        assertThat(cache.getBytesInMemory()).isEqualTo(nyestePakke.size());
+
+        assertThat(cache.take("eldste", "avtrykk")).isSameAs(eldste);
+        assertThat(cache.getBytesInMemory()).isEqualTo(nyestePakke.size());
+        assertThat(read(eldstePakke)).isEqualTo(innhold);
+        assertThat(eldstePakke.getSHA256()).isEqualTo(sha256);
+        eldstePakke.close();
+        cache.close();
+    }
+
+    @Test
+    public void close_sletter_midlertidige_filer() throws IOException {
+        EbmsForsendelse eldste = pakket();
+        EbmsForsendelse nyeste = pakket();
+        ResendCache cache = new ResendCache(10, 0);
+
+        cache.put("eldste", "avtrykk", eldste);
+        cache.put("nyeste", "avtrykk", nyeste);
+        assertThat(cache.getSpills()).isEqualTo(2);
+
+        cache.close();
+
+        assertThat(cache.size()).isEqualTo(0);
+        assertThat(cache.getBytesInMemory()).isEqualTo(0);
+        try {
+            read((BufferedDokumentpakke) eldste.getDokumentpakke());
+            throw new AssertionError("Midlertidig fil skulle vært slettet");
+        } catch (IOException expected) {
+        }
+    }
+
+    private EbmsForsendelse pakket() {
+        return ebmsForsendelseBuilder.buildEbmsForsendelse(tekniskAvsender(), new Organisasjonsnummer("984661185"), forsendelse());
+    }
+
+    private static Forsendelse forsendelseMed(DigitalPost digitalPost, String innhold, Prioritet prioritet) {
+        Dokument hoveddokument = Dokument.builder("Sensitiv brevtittel", "faktura.pdf", new ByteArrayInputStream(innhold.getBytes())).build();
+        return Forsendelse.digital(behandlingsansvarlig(), digitalPost, Dokumentpakke.builder(hoveddokument).build())
+                .konversasjonsId("konversasjonsId")
+                .prioritet(prioritet)
+                .build();
+    }
+
+    private static byte[] read(BufferedDokumentpakke dokumentpakke) throws IOException {
+        InputStream in = dokumentpakke.getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import no.difi.sdp.client.domain.exceptions.SendException;
+import no.difi.sdp.client.domain.exceptions.SendIOException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.SERVER;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void ventetiden_dobles_opp_til_taket() {
+        RetryPolicy retryPolicy = RetryPolicy.exponentialBackoff(10, 100, 1000, TimeUnit.MILLISECONDS);
+
+        long[] maks = new long[5];
+        for (int i = 0; i < 10000; i++) {
+            for (int attempt = 1; attempt <= maks.length; attempt++) {
+                maks[attempt - 1] = Math.max(maks[attempt - 1], retryPolicy.backoffInMillis(attempt));
+            }
+        }
+
+        assertThat(maks[0]).isLessThanOrEqualTo(100).isGreaterThan(90);
+        assertThat(maks[1]).isLessThanOrEqualTo(200).isGreaterThan(180);
+        assertThat(maks[2]).isLessThanOrEqualTo(400).isGreaterThan(360);
+        assertThat(maks[3]).isLessThanOrEqualTo(800).isGreaterThan(720);
+        assertThat(maks[4]).isLessThanOrEqualTo(1000).isGreaterThan(900);
+        assertThat(retryPolicy.backoffInMillis(1000)).isLessThanOrEqualTo(1000);
+    }
+
+    @Test
+    public void ventetiden_er_tilfeldig() {
+        RetryPolicy retryPolicy = RetryPolicy.exponentialBackoff(10, 1, 1, TimeUnit.HOURS);
+
+        assertThat(retryPolicy.backoffInMillis(1)).isNotEqualTo(retryPolicy.backoffInMillis(1));
+    }
+
+    @Test
+    public void proever_igjen_ved_nettverksfeil_men_ikke_klientfeil() {
+        RetryPolicy retryPolicy = RetryPolicy.exponentialBackoff(3, 1, 1, TimeUnit.SECONDS);
+
+        assertThat(retryPolicy.isRetryable(new SendIOException(new IOException("Connection reset")))).isTrue();
+        assertThat(retryPolicy.isRetryable(new SendException("Ugyldig forsendelse", SERVER, null))).isFalse();
+    }
+
+    @Test
+    public void none_sender_bare_en_gang() {
+        assertThat(RetryPolicy.none().getMaxAttempts()).isEqualTo(1);
+    }
+
+}
@@ -15,7 +15,13 @@
  */
 package no.difi.sdp.client;
 
+import no.difi.sdp.client.domain.Forsendelse;
+import no.difi.sdp.client.domain.Prioritet;
+import no.difi.sdp.client.domain.exceptions.CircuitBreakerOpenException;
+import no.difi.sdp.client.domain.exceptions.KonfigurasjonException;
+import no.difi.sdp.client.domain.exceptions.RateLimitExceededException;
 import no.difi.sdp.client.domain.exceptions.SendIOException;
+import no.difi.sdp.client.internal.VirtualThreads;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
@@ -23,13 +29,18 @@ import org.apache.http.protocol.HttpContext;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static no.difi.sdp.client.ObjectMother.forsendelse;
 import static no.difi.sdp.client.ObjectMother.tekniskAvsender;
 import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.UKJENT;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.fest.assertions.api.Fail.fail;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
 
 public class SikkerDigitalPostKlientTest {
 
@@ -84,4 +95,207 @@ public class SikkerDigitalPostKlientTest {
         }
     }
 
+    @Test
+    public void send_async_sends_on_klientens_traader() throws Exception {
+        final StringBuffer sendingThread = new StringBuffer();
+
+        KlientKonfigurasjon klientKonfigurasjon = KlientKonfigurasjon.builder()
+                .meldingsformidlerRoot("http://10.255.255.1/")
+                .connectionTimeout(1, TimeUnit.MILLISECONDS)
+                .httpRequestInterceptors(new HttpRequestInterceptor() {
+                    @Override
+                    public void process(HttpRequest request, HttpContext context) {
+                        sendingThread.append(Thread.currentThread().getName());
+                    }
+                })
+                .build();
+
+        SikkerDigitalPostKlient postklient = new SikkerDigitalPostKlient(tekniskAvsender(), klientKonfigurasjon);
+        Future<Void> sendt = postklient.sendAsync(forsendelse());
+
+        try {
+            sendt.get(30, TimeUnit.SECONDS);
+            fail("Should fail");
+        }
+        catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(SendIOException.class);
+            assertThat(sendingThread.toString()).startsWith("sdp-transmission-");
+        }
+    }
+
+    @Test
+    public void send_async_med_virtuelle_traader() throws Exception {
+        assumeTrue(VirtualThreads.isAvailable());
+        final StringBuffer sendingThread = new StringBuffer();
+
+        KlientKonfigurasjon klientKonfigurasjon = KlientKonfigurasjon.builder()
+                .meldingsformidlerRoot("http://10.255.255.1/")
+                .connectionTimeout(1, TimeUnit.MILLISECONDS)
+                .virtualThreads()
+                .httpRequestInterceptors(new HttpRequestInterceptor() {
+                    @Override
+                    public void process(HttpRequest request, HttpContext context) {
+                        sendingThread.append(Thread.currentThread().getName());
+                    }
+                })
+                .build();
+
+        SikkerDigitalPostKlient postklient = new SikkerDigitalPostKlient(tekniskAvsender(), klientKonfigurasjon);
+        Future<Void> sendt = postklient.sendAsync(forsendelse());
+
+        try {
+            sendt.get(30, TimeUnit.SECONDS);
+            fail("Should fail");
+        }
+        catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(SendIOException.class);
+            assertThat(sendingThread.toString()).startsWith("sdp-transmission-");
+        }
+    }
+
+    @Test(expected = KonfigurasjonException.class)
+    public void virtuelle_traader_krever_java_21() {
+        assumeFalse(VirtualThreads.isAvailable());
+        KlientKonfigurasjon.builder().virtualThreads();
+    }
+
+    @Test
+    public void proever_igjen_og_beholder_pakken_ved_nettverksfeil() {
+        final AtomicInteger nyeForsoek = new AtomicInteger();
+        ResendCache resendCache = new ResendCache();
+
+        KlientKonfigurasjon klientKonfigurasjon = KlientKonfigurasjon.builder()
+                .meldingsformidlerRoot("http://localhost:1/")
+                .retryPolicy(new RetryPolicy(3, 1, 5) {
+                    @Override
+                    public long backoffInMillis(int attempt) {
+                        nyeForsoek.incrementAndGet();
+                        return super.backoffInMillis(attempt);
+                    }
+                })
+                .resendCache(resendCache)
+                .build();
+
+        SikkerDigitalPostKlient postklient = new SikkerDigitalPostKlient(tekniskAvsender(), klientKonfigurasjon);
+        Forsendelse forsendelse = forsendelse();
+
+        try {
+            postklient.send(forsendelse);
+            fail("Should fail");
+        }
+        catch (SendIOException e) {
+            assertThat(nyeForsoek.get()).isEqualTo(2);
+            assertThat(resendCache.size()).isEqualTo(1);
+        }
+
+        try {
+            postklient.send(forsendelse);
+            fail("Should fail");
+        }
+        catch (SendIOException e) {
+            assertThat(nyeForsoek.get()).isEqualTo(4);
+            assertThat(resendCache.getHits()).isEqualTo(1);
+            assertThat(resendCache.size()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void stanser_sendingen_foer_pakking_naar_meldingsformidler_feiler() {
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder(2, 1, TimeUnit.MINUTES).build();
+        KlientKonfigurasjon klientKonfigurasjon = KlientKonfigurasjon.builder()
+                .meldingsformidlerRoot("http://localhost:1/")
+                .circuitBreaker(circuitBreaker)
+                .build();
+        SikkerDigitalPostKlient postklient = new SikkerDigitalPostKlient(tekniskAvsender(), klientKonfigurasjon);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                postklient.send(forsendelse());
+                fail("Should fail");
+            }
+            catch (SendIOException e) {
+                assertThat(circuitBreaker.getRejected()).isEqualTo(0);
+            }
+        }
+
+        try {
+            postklient.send(forsendelse());
+            fail("Should fail");
+        }
+        catch (CircuitBreakerOpenException e) {
+            assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+            assertThat(circuitBreaker.getRejected()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void senker_grensen_for_samtidige_forsendelser_ved_nettverksfeil() {
+        ConcurrencyLimiter concurrencyLimiter = ConcurrencyLimiter.builder(10, 1, 10, 1, TimeUnit.MINUTES).backoffRatio(0.5).build();
+        KlientKonfigurasjon klientKonfigurasjon = KlientKonfigurasjon.builder()
+                .meldingsformidlerRoot("http://localhost:1/")
+                .concurrencyLimiter(concurrencyLimiter)
+                .build();
+        SikkerDigitalPostKlient postklient = new SikkerDigitalPostKlient(tekniskAvsender(), klientKonfigurasjon);
+
+        try {
+            postklient.send(forsendelse());
+            fail("Should fail");
+        }
+        catch (SendIOException e) {
+            assertThat(concurrencyLimiter.getLimit()).isEqualTo(5);
+            assertThat(concurrencyLimiter.getInFlight()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void avviser_forsendelser_over_grensen() {
+        RateLimiter rateLimiter = RateLimiter.builder()
+                .send(Prioritet.PRIORITERT, 1, 1, TimeUnit.MINUTES)
+                .failFast()
+                .build();
+        KlientKonfigurasjon klientKonfigurasjon = KlientKonfigurasjon.builder()
+                .meldingsformidlerRoot("http://localhost:1/")
+                .rateLimiter(rateLimiter)
+                .build();
+        SikkerDigitalPostKlient postklient = new SikkerDigitalPostKlient(tekniskAvsender(), klientKonfigurasjon);
+
+        try {
+            postklient.send(forsendelse());
+            fail("Should fail");
+        }
+        catch (SendIOException e) {
+            assertThat(rateLimiter.getRejected()).isEqualTo(0);
+        }
+
+        try {
+            postklient.send(forsendelse());
+            fail("Should fail");
+        }
+        catch (RateLimitExceededException e) {
+            assertThat(rateLimiter.getRejected()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void nye_forsoek_teller_mot_grensen() {
+        RateLimiter rateLimiter = RateLimiter.builder()
+                .send(Prioritet.PRIORITERT, 2, 1, TimeUnit.MINUTES)
+                .failFast()
+                .build();
+        KlientKonfigurasjon klientKonfigurasjon = KlientKonfigurasjon.builder()
+                .meldingsformidlerRoot("http://localhost:1/")
+                .retryPolicy(RetryPolicy.exponentialBackoff(3, 1, 1, TimeUnit.MILLISECONDS))
+                .rateLimiter(rateLimiter)
+                .build();
+        SikkerDigitalPostKlient postklient = new SikkerDigitalPostKlient(tekniskAvsender(), klientKonfigurasjon);
+
+        try {
+            postklient.send(forsendelse());
+            fail("Should fail");
+        }
+        catch (RateLimitExceededException e) {
+            assertThat(rateLimiter.getRejected()).isEqualTo(1);
+        }
+    }
+
 }
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import org.junit.Test;
+
+import static no.difi.sdp.client.ValidationPolicy.Kind.MANIFEST;
+import static no.difi.sdp.client.ValidationPolicy.Kind.SIGNATURE;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ValidationPolicyTest {
+
+    @Test
+    public void always_validates_everything() {
+        ValidationPolicy policy = ValidationPolicy.always();
+
+        assertThat(validations(policy, MANIFEST, 10)).isEqualTo(10);
+        assertThat(policy.getSkipped(MANIFEST)).isEqualTo(0);
+    }
+
+    @Test
+    public void sampled_validates_first_and_then_one_in_n() {
+        ValidationPolicy policy = ValidationPolicy.sampled(4);
+
+        assertThat(policy.shouldValidate(MANIFEST)).isTrue();
+        assertThat(policy.shouldValidate(MANIFEST)).isFalse();
+        assertThat(validations(policy, MANIFEST, 98)).isEqualTo(24);
+        assertThat(policy.getValidations(MANIFEST)).isEqualTo(25);
+        assertThat(policy.getSkipped(MANIFEST)).isEqualTo(75);
+    }
+
+    @Test
+    public void first_n_stops_validating_after_n() {
+        ValidationPolicy policy = ValidationPolicy.firstN(3);
+
+        assertThat(validations(policy, MANIFEST, 10)).isEqualTo(3);
+        assertThat(policy.getSkipped(MANIFEST)).isEqualTo(7);
+    }
+
+    @Test
+    public void off_never_validates() {
+        ValidationPolicy policy = ValidationPolicy.off();
+
+        assertThat(validations(policy, MANIFEST, 10)).isEqualTo(0);
+        assertThat(policy.getSkipped(MANIFEST)).isEqualTo(10);
+    }
+
+    @Test
+    public void counts_each_kind_separately() {
+        ValidationPolicy policy = ValidationPolicy.firstN(2);
+
+        validations(policy, MANIFEST, 5);
+        policy.validationFailed(MANIFEST);
+
+        assertThat(validations(policy, SIGNATURE, 5)).isEqualTo(2);
+        assertThat(policy.getFailures(MANIFEST)).isEqualTo(1);
+        assertThat(policy.getFailures(SIGNATURE)).isEqualTo(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sampled_requires_positive_rate() {
+        ValidationPolicy.sampled(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void first_n_requires_non_negative_count() {
+        ValidationPolicy.firstN(-1);
+    }
+
+    private static int validations(ValidationPolicy policy, ValidationPolicy.Kind kind, int requests) {
+        int validations = 0;
+        for (int i = 0; i < requests; i++) {
+            if (policy.shouldValidate(kind)) {
+                validations++;
+            }
+        }
+        return validations;
+    }
+
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import no.difi.sdp.client.domain.Prioritet;
+import no.difi.sdp.client.domain.exceptions.SoapFaultException;
+import no.difi.sdp.client.domain.kvittering.KvitteringForespoersel;
+import no.difi.sdp.client.internal.VirtualThreads;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static no.difi.sdp.client.ObjectMother.tekniskAvsender;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Henter kvitteringer fra mange tråder samtidig mot en lokal stub av meldingsformidler som svarer etter en fast
+ * forsinkelse, med plattformtråder og med virtuelle tråder. Stubben svarer med SOAP fault, slik at hele kjeden med
+ * WS-Security, HTTP og tolking av svaret kjøres uten gyldig signert kvittering.
+ */
+@Ignore("Benchmark. Virtuelle tråder krever Java 21, kjør f.eks. med -Djvm=<java 21>/bin/java")
+public class VirtualThreadBenchmarkTest {
+
+    private static final int CALLERS = 2000;
+    private static final int CONNECTIONS = 50;
+    private static final int LATENCY_MILLIS = 50;
+
+    private static final byte[] SOAP_FAULT = ("<env:Envelope xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\"><env:Header/><env:Body><env:Fault>" +
+            "<env:Code><env:Value>env:Receiver</env:Value></env:Code><env:Reason><env:Text xml:lang=\"en\">Stub</env:Text></env:Reason>" +
+            "</env:Fault></env:Body></env:Envelope>").getBytes();
+
+    private HttpServer stub;
+    private ExecutorService stubExecutor;
+
+    @Before
+    public void start_stub() throws IOException {
+        stubExecutor = Executors.newCachedThreadPool();
+        stub = HttpServer.create(new InetSocketAddress("localhost", 0), CALLERS);
+        stub.setExecutor(stubExecutor);
+        stub.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(LATENCY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.getRequestBody().close();
+                exchange.getResponseHeaders().set("Content-Type", "application/soap+xml; charset=utf-8");
+                exchange.sendResponseHeaders(500, SOAP_FAULT.length);
+                OutputStream body = exchange.getResponseBody();
+                body.write(SOAP_FAULT);
+                body.close();
+            }
+        });
+        stub.start();
+    }
+
+    @After
+    public void stop_stub() {
+        stub.stop(0);
+        stubExecutor.shutdownNow();
+    }
+
+    @Test
+    public void platform_threads() throws Exception {
+        KlientKonfigurasjon konfigurasjon = konfigurasjon().build();
+        run("platform", konfigurasjon, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable);
+            }
+        });
+    }
+
+    @Test
+    public void virtual_threads() throws Exception {
+        assumeTrue(VirtualThreads.isAvailable());
+        KlientKonfigurasjon konfigurasjon = konfigurasjon().virtualThreads().build();
+        run("virtual", konfigurasjon, VirtualThreads.factory("benchmark"));
+    }
+
+    private KlientKonfigurasjon.Builder konfigurasjon() {
+        return KlientKonfigurasjon.builder()
+                .meldingsformidlerRoot("http://localhost:" + stub.getAddress().getPort() + "/")
+                .maxConnectionPoolSize(CONNECTIONS)
+                .connectionRequestTimeout(5, TimeUnit.MINUTES);
+    }
+
+    private void run(String mode, KlientKonfigurasjon konfigurasjon, ThreadFactory callers) throws InterruptedException {
+        final SikkerDigitalPostKlient klient = new SikkerDigitalPostKlient(tekniskAvsender(), konfigurasjon);
+        final KvitteringForespoersel forespoersel = KvitteringForespoersel.builder(Prioritet.NORMAL).build();
+        final AtomicInteger faults = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        // Varm opp connection pool og JIT
+        for (int i = 0; i < CONNECTIONS; i++) {
+            hentKvittering(klient, forespoersel, new AtomicInteger(), new AtomicInteger());
+        }
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        threadMXBean.resetPeakThreadCount();
+        List<Thread> threads = new ArrayList<Thread>(CALLERS);
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLERS; i++) {
+            Thread thread = callers.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    hentKvittering(klient, forespoersel, faults, failures);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        int peakThreads = threadMXBean.getPeakThreadCount();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("%s: %d callers, %d connections, %d ms latency: %.0f requests/s, peak platform threads %d, failures %d",
+                mode, CALLERS, CONNECTIONS, LATENCY_MILLIS, CALLERS / seconds, peakThreads, failures.get()));
+        assertThat(faults.get()).isEqualTo(CALLERS);
+    }
+
+    private static void hentKvittering(SikkerDigitalPostKlient klient, KvitteringForespoersel forespoersel, AtomicInteger faults, AtomicInteger failures) {
+        try {
+            klient.hentKvittering(forespoersel);
+        } catch (SoapFaultException e) {
+            faults.incrementAndGet();
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice;
+
+import no.difi.sdp.client.ObjectMother;
+import no.difi.sdp.client.asice.manifest.CreateManifest;
+import no.difi.sdp.client.asice.manifest.Manifest;
+import no.difi.sdp.client.asice.signature.CreateSignature;
+import no.difi.sdp.client.domain.Forsendelse;
+import no.difi.sdp.client.domain.Noekkelpar;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class XmlContentionBenchmarkTest {
+
+    private static final long WARMUP_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MEASURE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    @Test
+    @Ignore("Benchmark. Kjør manuelt, før og etter endringer i XML-genereringen, og sammenlign utskriften")
+    public void manifest_and_signature_throughput_per_thread_count() throws Exception {
+        final CreateManifest createManifest = new CreateManifest();
+        final CreateSignature createSignature = new CreateSignature();
+        final Noekkelpar noekkelpar = ObjectMother.noekkelpar();
+        final Forsendelse forsendelse = ObjectMother.forsendelse();
+
+        for (int threads : new int[] { 1, 2, 4, 8, 16, 32, 64 }) {
+            run(createManifest, createSignature, noekkelpar, forsendelse, threads, WARMUP_MILLIS);
+            long operations = run(createManifest, createSignature, noekkelpar, forsendelse, threads, MEASURE_MILLIS);
+            System.out.println(String.format("%2d threads: %8.1f manifest+signature/s", threads, operations * 1000.0 / MEASURE_MILLIS));
+        }
+    }
+
+    private static long run(final CreateManifest createManifest, final CreateSignature createSignature, final Noekkelpar noekkelpar,
+                            final Forsendelse forsendelse, int threads, long millis) throws InterruptedException {
+        final AtomicLong operations = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + millis;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            Manifest manifest = createManifest.createManifest(forsendelse);
+                            List<AsicEAttachable> files = new ArrayList<AsicEAttachable>(forsendelse.getDokumentpakke().getVedlegg());
+                            files.add(forsendelse.getDokumentpakke().getHoveddokument());
+                            files.add(manifest);
+                            createSignature.createSignature(noekkelpar, files);
+                            operations.incrementAndGet();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        return operations.get();
+    }
+
+}
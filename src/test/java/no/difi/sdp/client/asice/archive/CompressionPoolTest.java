@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.archive;
+
+import no.difi.sdp.client.asice.AsicEAttachable;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CompressionPoolTest {
+
+    @Test
+    public void reuses_released_deflaters_and_buffers() {
+        CompressionPool pool = new CompressionPool(2, 1024);
+
+        Deflater deflater = pool.acquireDeflater(Deflater.BEST_SPEED);
+        byte[] buffer = pool.acquireBuffer();
+        pool.release(deflater);
+        pool.release(buffer);
+
+        assertThat(pool.acquireDeflater(Deflater.BEST_COMPRESSION)).isSameAs(deflater);
+        assertThat(pool.acquireBuffer()).isSameAs(buffer);
+        assertThat(pool.getDeflaterHits()).isEqualTo(1);
+        assertThat(pool.getDeflaterMisses()).isEqualTo(1);
+        assertThat(pool.getBufferHits()).isEqualTo(1);
+        assertThat(pool.getBufferMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void does_not_hold_more_than_max_idle() {
+        CompressionPool pool = new CompressionPool(1, 1024);
+
+        Deflater first = pool.acquireDeflater(Deflater.DEFAULT_COMPRESSION);
+        Deflater second = pool.acquireDeflater(Deflater.DEFAULT_COMPRESSION);
+        pool.release(first);
+        pool.release(second);
+
+        assertThat(pool.acquireDeflater(Deflater.DEFAULT_COMPRESSION)).isSameAs(first);
+        assertThat(pool.acquireDeflater(Deflater.DEFAULT_COMPRESSION)).isNotSameAs(second);
+    }
+
+    @Test
+    public void deflaters_are_only_allocated_up_to_concurrency_across_many_archives() throws Exception {
+        int threads = 2;
+        CompressionPool pool = new CompressionPool(threads, CompressionPool.DEFAULT_BUFFER_SIZE);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CreateZip createZip = new CreateZip(CompressionPolicy.DEFLATE_ALL, executor, pool);
+            List<AsicEAttachable> files = new ArrayList<AsicEAttachable>();
+            for (int i = 0; i < 4; i++) {
+                files.add(file("file" + i + ".txt", "innhold " + i));
+            }
+
+            int archives = 50;
+            for (int i = 0; i < archives; i++) {
+                createZip.zipIt(files, new NullOutputStream());
+            }
+
+            assertThat(pool.getDeflaterMisses()).isLessThanOrEqualTo(threads);
+            assertThat(pool.getDeflaterHits() + pool.getDeflaterMisses()).isEqualTo(archives * files.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static AsicEAttachable file(final String fileName, final String contents) {
+        return new AsicEAttachable() {
+            public String getFileName() { return fileName; }
+            public byte[] getBytes() { return contents.getBytes(); }
+            public String getMimeType() { return "text/plain"; }
+        };
+    }
+}
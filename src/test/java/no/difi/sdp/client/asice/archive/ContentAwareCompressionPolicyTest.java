@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.archive;
+
+import no.difi.sdp.client.asice.AsicEAttachable;
+import no.difi.sdp.client.asice.source.ByteArraySource;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ContentAwareCompressionPolicyTest {
+
+    private final byte[] text = repeat("Lorem ipsum dolor sit amet. ", 1000);
+    private final byte[] random = randomBytes(64 * 1024);
+
+    @Test
+    public void stores_known_compressed_mime_types() {
+        ContentAwareCompressionPolicy policy = ContentAwareCompressionPolicy.builder().build();
+
+        assertThat(policy.compressionFor(file("image/jpeg"), new ByteArraySource(text))).isEqualTo(Compression.STORED);
+        assertThat(policy.compressionFor(file("IMAGE/PNG; charset=binary"), new ByteArraySource(text))).isEqualTo(Compression.STORED);
+        assertThat(policy.compressionFor(file("application/pdf"), new ByteArraySource(random))).isEqualTo(Compression.DEFLATED);
+    }
+
+    @Test
+    public void uses_configured_deflate_level_and_minimum_size() {
+        ContentAwareCompressionPolicy policy = ContentAwareCompressionPolicy.builder()
+                .deflateLevel(Deflater.BEST_SPEED)
+                .minimumSizeForCompression(100)
+                .build();
+
+        assertThat(policy.compressionFor(file("text/plain"), new ByteArraySource(text))).isEqualTo(Compression.deflated(Deflater.BEST_SPEED));
+        assertThat(policy.compressionFor(file("text/plain"), new ByteArraySource(new byte[10]))).isEqualTo(Compression.STORED);
+    }
+
+    @Test
+    public void sampling_stores_content_that_does_not_compress() {
+        ContentAwareCompressionPolicy policy = ContentAwareCompressionPolicy.builder()
+                .sampleBeforeCompressing(16 * 1024, 0.9)
+                .build();
+
+        assertThat(policy.compressionFor(file("application/pdf"), new ByteArraySource(random))).isEqualTo(Compression.STORED);
+        assertThat(policy.compressionFor(file("application/pdf"), new ByteArraySource(text))).isEqualTo(Compression.DEFLATED);
+    }
+
+    @Test
+    public void sampling_reuses_deflaters_from_the_pool() {
+        CompressionPool pool = new CompressionPool(1, CompressionPool.DEFAULT_BUFFER_SIZE);
+        ContentAwareCompressionPolicy policy = ContentAwareCompressionPolicy.builder()
+                .sampleBeforeCompressing(16 * 1024, 0.9)
+                .compressionPool(pool)
+                .build();
+
+        policy.compressionFor(file("application/pdf"), new ByteArraySource(random));
+        policy.compressionFor(file("application/pdf"), new ByteArraySource(text));
+
+        assertThat(pool.getDeflaterMisses()).isEqualTo(1);
+        assertThat(pool.getDeflaterHits()).isEqualTo(1);
+    }
+
+    private static AsicEAttachable file(final String mimeType) {
+        return new AsicEAttachable() {
+            public String getFileName() { return "file"; }
+            public byte[] getBytes() { throw new UnsupportedOperationException(); }
+            public String getMimeType() { return mimeType; }
+        };
+    }
+
+    private static byte[] repeat(String value, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(value);
+        }
+        return builder.toString().getBytes();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -17,15 +17,24 @@ package no.difi.sdp.client.asice.archive;
 
 import no.difi.sdp.client.asice.AsicEAttachable;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import static java.util.Arrays.asList;
@@ -50,6 +59,115 @@ public class CreateZipTest {
         verifyZipFile(zipInputStream, "file2.txt", "test2");
     }
 
+    @Test
+    public void test_streaming_zip_equals_in_memory_zip() throws IOException {
+        CreateZip createZip = new CreateZip();
+
+        List<AsicEAttachable> asicEAttachables = asList(
+                file("file.txt", "test"),
+                file("file2.txt", "test2")
+        );
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        createZip.zipIt(asicEAttachables, streamed);
+
+        assertThat(streamed.toByteArray()).isEqualTo(createZip.zipIt(asicEAttachables).getBytes());
+    }
+
+    @Test
+    public void test_streaming_zip_only_holds_one_file_at_a_time() throws IOException {
+        final int documentSize = 1024 * 1024;
+        final CountingOutputStream output = new CountingOutputStream(new NullOutputStream());
+        final List<Long> writtenBeforeRead = new ArrayList<Long>();
+
+        List<AsicEAttachable> asicEAttachables = new ArrayList<AsicEAttachable>();
+        for (int i = 0; i < 5; i++) {
+            final String fileName = "file" + i + ".bin";
+            asicEAttachables.add(new AsicEAttachable() {
+                public String getFileName() { return fileName; }
+                public byte[] getBytes() {
+                    writtenBeforeRead.add(output.getByteCount());
+                    return randomBytes(documentSize);
+                }
+                public String getMimeType() { return "application/octet-stream"; }
+            });
+        }
+
+        new CreateZip().zipIt(asicEAttachables, output);
+
+        // Tilfeldige bytes komprimeres ikke, så hvert ferdige dokument skal være skrevet ut før neste leses inn
+        for (int i = 0; i < writtenBeforeRead.size(); i++) {
+            assertThat(writtenBeforeRead.get(i)).isGreaterThanOrEqualTo((long) i * documentSize);
+        }
+        assertThat(output.getByteCount()).isGreaterThanOrEqualTo(5L * documentSize);
+    }
+
+    @Test
+    public void test_content_aware_policy_stores_compressed_formats_uncompressed() throws IOException {
+        CreateZip createZip = new CreateZip(ContentAwareCompressionPolicy.builder().build());
+        byte[] image = randomBytes(10 * 1024);
+
+        List<AsicEAttachable> asicEAttachables = asList(
+                file("file.txt", "test test test test test test"),
+                file("image.jpg", image, "image/jpeg")
+        );
+
+        Archive archive = createZip.zipIt(asicEAttachables);
+        ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(archive.getBytes()));
+
+        ZipEntry text = zipInputStream.getNextEntry();
+        assertThat(text.getMethod()).isEqualTo(ZipEntry.DEFLATED);
+        assertThat(IOUtils.toByteArray(zipInputStream)).isEqualTo("test test test test test test".getBytes());
+
+        ZipEntry stored = zipInputStream.getNextEntry();
+        assertThat(stored.getMethod()).isEqualTo(ZipEntry.STORED);
+        assertThat(stored.getCompressedSize()).isEqualTo(image.length);
+        assertThat(IOUtils.toByteArray(zipInputStream)).isEqualTo(image);
+    }
+
+    @Test
+    public void test_parallel_zip_has_same_entries_as_sequential_zip() throws IOException {
+        CompressionPolicy policy = ContentAwareCompressionPolicy.builder().build();
+        List<AsicEAttachable> asicEAttachables = asList(
+                file("file.txt", "test test test test test test"),
+                file("image.jpg", randomBytes(100 * 1024), "image/jpeg"),
+                file("random.bin", randomBytes(300 * 1024), "application/octet-stream"),
+                file("empty.txt", ""),
+                file("manifest.xml", "<manifest><dokument/><dokument/></manifest>")
+        );
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        Archive parallel;
+        try {
+            parallel = new CreateZip(policy, executor, new CompressionPool()).zipIt(asicEAttachables);
+        } finally {
+            executor.shutdown();
+        }
+        Archive sequential = new CreateZip(policy).zipIt(asicEAttachables);
+
+        ZipFile parallelZip = zipFile(parallel);
+        ZipFile sequentialZip = zipFile(sequential);
+        try {
+            List<? extends ZipEntry> parallelEntries = Collections.list(parallelZip.entries());
+            List<? extends ZipEntry> sequentialEntries = Collections.list(sequentialZip.entries());
+            assertThat(parallelEntries).hasSize(asicEAttachables.size());
+            for (int i = 0; i < asicEAttachables.size(); i++) {
+                ZipEntry parallelEntry = parallelEntries.get(i);
+                ZipEntry sequentialEntry = sequentialEntries.get(i);
+                assertThat(parallelEntry.getName()).isEqualTo(asicEAttachables.get(i).getFileName());
+                assertThat(parallelEntry.getName()).isEqualTo(sequentialEntry.getName());
+                assertThat(parallelEntry.getMethod()).isEqualTo(sequentialEntry.getMethod());
+                assertThat(parallelEntry.getCrc()).isEqualTo(sequentialEntry.getCrc());
+                assertThat(parallelEntry.getSize()).isEqualTo(sequentialEntry.getSize());
+                assertThat(parallelEntry.getCompressedSize()).isEqualTo(sequentialEntry.getCompressedSize());
+                assertThat(IOUtils.toByteArray(parallelZip.getInputStream(parallelEntry))).isEqualTo(asicEAttachables.get(i).getBytes());
+            }
+        } finally {
+            parallelZip.close();
+            sequentialZip.close();
+        }
+    }
+
     @Test
     @Ignore("Writes files to disk. Can be useful for debugging")
     public void write_file_to_disk() throws IOException {
@@ -73,11 +191,33 @@ public class CreateZipTest {
         assertThat(IOUtils.toByteArray(zipInputStream)).isEqualTo(contents.getBytes());
     }
 
+    private static ZipFile zipFile(Archive archive) throws IOException {
+        File tempFile = File.createTempFile("test", ".zip");
+        tempFile.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            output.write(archive.getBytes());
+        } finally {
+            output.close();
+        }
+        return new ZipFile(tempFile);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+
     private AsicEAttachable file(final String fileName, final String contents) {
+        return file(fileName, contents.getBytes(), "application/txt");
+    }
+
+    private AsicEAttachable file(final String fileName, final byte[] contents, final String mimeType) {
         return new AsicEAttachable() {
             public String getFileName() { return fileName; }
-            public byte[] getBytes() { return contents.getBytes(); }
-            public String getMimeType() { return "application/txt"; }
+            public byte[] getBytes() { return contents; }
+            public String getMimeType() { return mimeType; }
         };
     }
 
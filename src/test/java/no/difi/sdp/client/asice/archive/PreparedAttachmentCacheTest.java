@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.archive;
+
+import no.difi.sdp.client.asice.AsicEAttachable;
+import no.difi.sdp.client.asice.source.ByteArraySource;
+import no.difi.sdp.client.asice.source.ContentDigest;
+import no.difi.sdp.client.domain.Dokument;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static java.util.Arrays.asList;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class PreparedAttachmentCacheTest {
+
+    private final CompressionPool pool = new CompressionPool();
+
+    @Test
+    public void shared_attachment_is_compressed_once_across_archives() throws IOException {
+        PreparedAttachmentCache cache = new PreparedAttachmentCache(1024 * 1024, false);
+        CreateZip createZip = new CreateZip(CompressionPolicy.DEFLATE_ALL, null, pool, cache);
+
+        for (int i = 0; i < 3; i++) {
+            // Ny dokumentinstans for hver mottaker, men med samme innhold
+            Dokument hoveddokument = dokument("brev.pdf", "Personlig brev " + i);
+            Dokument vedlegg = dokument("vilkaar.pdf", "Vilkår som er like for alle mottakere");
+            List<AsicEAttachable> files = asList((AsicEAttachable) hoveddokument, vedlegg);
+
+            ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(zipIt(createZip, files, vedlegg)));
+            verifyEntry(zip, "brev.pdf", "Personlig brev " + i);
+            verifyEntry(zip, "vilkaar.pdf", "Vilkår som er like for alle mottakere");
+        }
+
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getHits()).isEqualTo(2);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void evicts_least_recently_used_when_full() throws IOException {
+        PreparedEntry first = deflated("first", 100);
+        PreparedEntry second = deflated("second", 100);
+        PreparedEntry third = deflated("third", 100);
+        PreparedAttachmentCache cache = new PreparedAttachmentCache(first.getCompressedSize() + second.getCompressedSize() + 1, false);
+
+        cache.put(digest("first", 100), Compression.DEFLATED, first);
+        cache.put(digest("second", 100), Compression.DEFLATED, second);
+        assertThat(cache.get(digest("first", 100), Compression.DEFLATED)).isNotNull();
+        cache.put(digest("third", 100), Compression.DEFLATED, third);
+
+        assertThat(cache.get(digest("second", 100), Compression.DEFLATED)).isNull();
+        assertThat(cache.get(digest("first", 100), Compression.DEFLATED)).isNotNull();
+        assertThat(cache.get(digest("third", 100), Compression.DEFLATED)).isNotNull();
+        assertThat(cache.getEvictions()).isEqualTo(1);
+        assertThat(cache.getBytes()).isEqualTo(first.getCompressedSize() + third.getCompressedSize());
+    }
+
+    @Test
+    public void off_heap_entry_has_same_content() throws IOException {
+        PreparedAttachmentCache cache = new PreparedAttachmentCache(1024 * 1024, true);
+        PreparedEntry entry = deflated("innhold", 1000);
+
+        PreparedEntry stored = cache.put(digest("innhold", 1000), Compression.DEFLATED, entry);
+
+        assertThat(stored.getCrc()).isEqualTo(entry.getCrc());
+        assertThat(stored.getCompressedSize()).isEqualTo(entry.getCompressedSize());
+        assertThat(IOUtils.toByteArray(stored.openRawStream())).isEqualTo(IOUtils.toByteArray(entry.openRawStream()));
+    }
+
+    private byte[] zipIt(CreateZip createZip, List<AsicEAttachable> files, Dokument vedlegg) {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        createZip.zipIt(files, asList(vedlegg), archive);
+        return archive.toByteArray();
+    }
+
+    private static void verifyEntry(ZipInputStream zip, String fileName, String contents) throws IOException {
+        ZipEntry entry = zip.getNextEntry();
+        assertThat(entry.getName()).isEqualTo(fileName);
+        assertThat(IOUtils.toByteArray(zip)).isEqualTo(contents.getBytes("UTF-8"));
+    }
+
+    private static Dokument dokument(String filnavn, String innhold) throws IOException {
+        return Dokument.builder(filnavn, filnavn, new ByteArrayInputStream(innhold.getBytes("UTF-8"))).build();
+    }
+
+    private PreparedEntry deflated(String value, int times) throws IOException {
+        return PreparedEntry.deflated(value, new ByteArraySource(repeat(value, times)), Compression.DEFLATED.getLevel(), pool);
+    }
+
+    private static ContentDigest digest(String value, int times) throws IOException {
+        return ContentDigest.of(new ByteArraySource(repeat(value, times)));
+    }
+
+    private static byte[] repeat(String value, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(value).append(i);
+        }
+        return builder.toString().getBytes();
+    }
+}
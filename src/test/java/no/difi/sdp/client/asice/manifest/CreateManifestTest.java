@@ -16,6 +16,7 @@
 package no.difi.sdp.client.asice.manifest;
 
 import no.difi.sdp.client.ObjectMother;
+import no.difi.sdp.client.ValidationPolicy;
 import no.difi.sdp.client.domain.Behandlingsansvarlig;
 import no.difi.sdp.client.domain.Forsendelse;
 import no.difi.sdp.client.domain.Mottaker;
@@ -25,6 +26,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static no.difi.sdp.client.ObjectMother.mottakerSertifikat;
+import static no.difi.sdp.client.ValidationPolicy.Kind.MANIFEST;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Fail.fail;
 
 public class CreateManifestTest {
 
@@ -44,11 +48,38 @@ public class CreateManifestTest {
 
     @Test(expected = XmlValideringException.class)
     public void should_validate_manifest() {
+        sut.createManifest(ugyldigForsendelse());
+    }
+
+    @Test
+    public void skips_validation_when_policy_says_so() {
+        ValidationPolicy policy = ValidationPolicy.firstN(1);
+        sut = new CreateManifest(policy);
+
+        sut.createManifest(ObjectMother.forsendelse());
+        sut.createManifest(ugyldigForsendelse()); // No Exceptions
+
+        assertThat(policy.getValidations(MANIFEST)).isEqualTo(1);
+        assertThat(policy.getSkipped(MANIFEST)).isEqualTo(1);
+    }
+
+    @Test
+    public void counts_failed_validations() {
+        ValidationPolicy policy = ValidationPolicy.always();
+        sut = new CreateManifest(policy);
+
+        try {
+            sut.createManifest(ugyldigForsendelse());
+            fail("Expected " + XmlValideringException.class.getSimpleName());
+        } catch (XmlValideringException e) {
+            assertThat(policy.getFailures(MANIFEST)).isEqualTo(1);
+        }
+    }
+
+    private static Forsendelse ugyldigForsendelse() {
         Mottaker mottaker = Mottaker.builder("04036125433", null, mottakerSertifikat(), "984661185").build();
         Behandlingsansvarlig behandlingsasnvarlig = Behandlingsansvarlig.builder("991825827").build();
-        Forsendelse ugyldigForsendelse = Forsendelse.digital(behandlingsasnvarlig, DigitalPost.builder(mottaker, "tittel").build(), ObjectMother.dokumentpakke()).build();
-
-        sut.createManifest(ugyldigForsendelse);
+        return Forsendelse.digital(behandlingsasnvarlig, DigitalPost.builder(mottaker, "tittel").build(), ObjectMother.dokumentpakke()).build();
     }
 
 }
\ No newline at end of file
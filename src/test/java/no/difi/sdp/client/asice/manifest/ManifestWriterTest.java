@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.manifest;
+
+import no.difi.begrep.sdp.schema_v10.SDPManifest;
+import no.difi.sdp.client.ObjectMother;
+import no.difi.sdp.client.domain.Behandlingsansvarlig;
+import no.difi.sdp.client.domain.Dokument;
+import no.difi.sdp.client.domain.Dokumentpakke;
+import no.difi.sdp.client.domain.Forsendelse;
+import no.difi.sdp.client.domain.Mottaker;
+import no.difi.sdp.client.domain.digital_post.DigitalPost;
+import no.difi.sdp.client.domain.fysisk_post.FysiskPost;
+import no.difi.sdp.client.internal.SDPBuilder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static no.difi.sdp.client.ObjectMother.mottakerSertifikat;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ManifestWriterTest {
+
+    private static final String[] TEGN = {
+            "a", "Z", "0", " ", "-", "_", ".", "æ", "ø", "å", "Å", "é", "&", "<", ">", "\"", "'", "\t", "\n", "\r",
+            "]]>", "&amp;", " ", " ", "😀", "€", "#", "/", "=", ";"
+    };
+
+    private static Jaxb2Marshaller jaxbMarshaller;
+
+    private final ManifestWriter sut = new ManifestWriter();
+    private final SDPBuilder sdpBuilder = new SDPBuilder();
+
+    @BeforeClass
+    public static void setUpMarshaller() throws Exception {
+        jaxbMarshaller = new Jaxb2Marshaller();
+        jaxbMarshaller.setClassesToBeBound(SDPManifest.class);
+        jaxbMarshaller.afterPropertiesSet();
+    }
+
+    @Test
+    public void writes_same_bytes_as_jaxb_for_default_forsendelse() {
+        Forsendelse forsendelse = ObjectMother.forsendelse();
+
+        assertThat(new String(sut.write(forsendelse))).isEqualTo(new String(jaxb(forsendelse)));
+    }
+
+    @Test
+    public void writes_same_bytes_as_jaxb_for_random_forsendelser() {
+        long seed = new Random().nextLong();
+        Random random = new Random(seed);
+        for (int i = 0; i < 500; i++) {
+            Forsendelse forsendelse = randomForsendelse(random);
+
+            assertThat(sut.write(forsendelse)).as("Manifest " + i + " med seed " + seed).isEqualTo(jaxb(forsendelse));
+        }
+    }
+
+    private byte[] jaxb(Forsendelse forsendelse) {
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        jaxbMarshaller.marshal(sdpBuilder.createManifest(forsendelse), new StreamResult(xml));
+        return xml.toByteArray();
+    }
+
+    private static Forsendelse randomForsendelse(Random random) {
+        Behandlingsansvarlig behandlingsansvarlig = Behandlingsansvarlig.builder(tekst(random))
+                .fakturaReferanse(tekstEllerNull(random))
+                .avsenderIdentifikator(tekstEllerNull(random))
+                .build();
+
+        List<Dokument> vedlegg = new ArrayList<Dokument>();
+        for (int i = random.nextInt(4); i > 0; i--) {
+            vedlegg.add(dokument(random));
+        }
+        Dokumentpakke dokumentpakke = Dokumentpakke.builder(dokument(random)).vedlegg(vedlegg).build();
+
+        Forsendelse.Builder forsendelse;
+        if (random.nextBoolean()) {
+            Mottaker mottaker = Mottaker.builder(tekst(random), tekstEllerNull(random), mottakerSertifikat(), "984661185").build();
+            forsendelse = Forsendelse.digital(behandlingsansvarlig, DigitalPost.builder(mottaker, tekst(random)).build(), dokumentpakke);
+        } else {
+            forsendelse = Forsendelse.fysisk(behandlingsansvarlig, FysiskPost.builder().build(), dokumentpakke);
+        }
+        return forsendelse.spraakkode(random.nextBoolean() ? "NO" : tekst(random)).build();
+    }
+
+    private static Dokument dokument(Random random) {
+        return Dokument.builder(tekstEllerNull(random), tekst(random), new ByteArrayInputStream(new byte[0]))
+                .mimeType(tekstEllerNull(random))
+                .build();
+    }
+
+    private static String tekstEllerNull(Random random) {
+        return random.nextInt(4) == 0 ? null : tekst(random);
+    }
+
+    private static String tekst(Random random) {
+        StringBuilder tekst = new StringBuilder();
+        for (int i = random.nextInt(12); i > 0; i--) {
+            tekst.append(TEGN[random.nextInt(TEGN.length)]);
+        }
+        return tekst.toString();
+    }
+
+}
@@ -22,6 +22,8 @@ import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.math.BigInteger;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -120,6 +122,20 @@ public class CreateSignatureTest {
         assertThat(dSignature.getKeyInfo()).isNotNull();
     }
 
+    @Test
+    public void signing_context_is_reused_until_keystore_certificate_changes() throws Exception {
+        SigningContext first = sut.signingContext(noekkelpar);
+        assertThat(sut.signingContext(noekkelpar)).isSameAs(first);
+
+        // Bytt sertifikat under samme alias, slik som ved fornying av virksomhetssertifikat
+        KeyStore keyStore = noekkelpar.getKeyStore();
+        keyStore.setKeyEntry("avsender", noekkelpar.getPrivateKey(), "password1234".toCharArray(), new Certificate[] { ObjectMother.mottakerSertifikat().getX509Certificate() });
+
+        SigningContext renewed = sut.signingContext(noekkelpar);
+        assertThat(renewed).isNotSameAs(first);
+        assertThat(renewed.getSertifikat().getX509Certificate()).isEqualTo(ObjectMother.mottakerSertifikat().getX509Certificate());
+    }
+
     @Test
     public void multithreaded_signing() throws Exception {
     	List<Thread> threads = new ArrayList<Thread>();
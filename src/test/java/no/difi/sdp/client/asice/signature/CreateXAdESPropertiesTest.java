@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.asice.signature;
+
+import no.difi.sdp.client.ObjectMother;
+import no.difi.sdp.client.asice.AsicEAttachable;
+import no.difi.sdp.client.domain.Sertifikat;
+import org.etsi.uri._01903.v1_3.CertIDType;
+import org.etsi.uri._01903.v1_3.DataObjectFormat;
+import org.etsi.uri._01903.v1_3.DigestAlgAndValueType;
+import org.etsi.uri._01903.v1_3.QualifyingProperties;
+import org.etsi.uri._01903.v1_3.SignedDataObjectProperties;
+import org.etsi.uri._01903.v1_3.SignedProperties;
+import org.etsi.uri._01903.v1_3.SignedSignatureProperties;
+import org.etsi.uri._01903.v1_3.SigningCertificate;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+import org.w3.xmldsig.DigestMethod;
+import org.w3.xmldsig.X509IssuerSerialType;
+import org.w3c.dom.Document;
+
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringWriter;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.apache.commons.codec.digest.DigestUtils.sha1;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CreateXAdESPropertiesTest {
+
+    private final CreateXAdESProperties sut = new CreateXAdESProperties();
+    private final Sertifikat sertifikat = ObjectMother.noekkelpar().getSertifikat();
+
+    @After
+    public void tearDown() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void properties_from_template_are_identical_to_jaxb_marshalled_properties() throws Exception {
+        DateTimeUtils.setCurrentMillisFixed(new DateTime(2014, 5, 21, 17, 7, 15, 756, DateTimeZone.forOffsetHours(2)).getMillis());
+
+        for (List<AsicEAttachable> files : asList(
+                asList(file("application/pdf")),
+                asList(file("application/pdf"), file("image/png"), file(null), file("application/xml")),
+                new ArrayList<AsicEAttachable>())) {
+            assertThat(serialize(sut.createPropertiesToSign(files, sertifikat))).isEqualTo(serialize(jaxbProperties(files)));
+        }
+    }
+
+    @Test
+    public void template_is_filled_with_current_time_and_marks_signed_properties_id() throws Exception {
+        sut.createPropertiesToSign(asList(file("application/pdf")), sertifikat);
+        DateTimeUtils.setCurrentMillisFixed(new DateTime(2015, 1, 2, 3, 4, 5, 6, DateTimeZone.UTC).getMillis());
+
+        Document document = sut.createPropertiesToSign(asList(file("application/pdf"), file("application/xml")), sertifikat);
+
+        assertThat(serialize(document)).contains("<SigningTime>2015-01-02T03:04:05.006Z</SigningTime>");
+        assertThat(document.getElementById("SignedProperties")).isNotNull();
+    }
+
+    /**
+     * Slik XAdES-properties ble laget før maler ble innført.
+     */
+    private Document jaxbProperties(List<AsicEAttachable> files) {
+        X509Certificate certificate = sertifikat.getX509Certificate();
+        DigestAlgAndValueType certificateDigest = new DigestAlgAndValueType(new DigestMethod(emptyList(), javax.xml.crypto.dsig.DigestMethod.SHA1), sha1(sertifikat.getEncoded()));
+        X509IssuerSerialType certificateIssuer = new X509IssuerSerialType(certificate.getIssuerDN().getName(), certificate.getSerialNumber());
+        SigningCertificate signingCertificate = new SigningCertificate(singletonList(new CertIDType(certificateDigest, certificateIssuer, null)));
+
+        List<DataObjectFormat> dataObjectFormats = new ArrayList<DataObjectFormat>();
+        for (int i = 0; i < files.size(); i++) {
+            dataObjectFormats.add(new DataObjectFormat(null, null, files.get(i).getMimeType(), null, "#ID_" + i));
+        }
+
+        SignedSignatureProperties signedSignatureProperties = new SignedSignatureProperties(DateTime.now(DateTimeZone.UTC), signingCertificate, null, null, null, null);
+        SignedDataObjectProperties signedDataObjectProperties = new SignedDataObjectProperties(dataObjectFormats, null, null, null, null);
+        SignedProperties signedProperties = new SignedProperties(signedSignatureProperties, signedDataObjectProperties, "SignedProperties");
+
+        Jaxb2Marshaller marshaller = new Jaxb2Marshaller();
+        marshaller.setClassesToBeBound(QualifyingProperties.class);
+        DOMResult domResult = new DOMResult();
+        marshaller.marshal(new QualifyingProperties(signedProperties, null, "#Signature", null), domResult);
+        return (Document) domResult.getNode();
+    }
+
+    private static String serialize(Document document) throws Exception {
+        StringWriter writer = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document), new StreamResult(writer));
+        return writer.toString();
+    }
+
+    private static AsicEAttachable file(final String mimeType) {
+        return new AsicEAttachable() {
+            public String getFileName() { return "fil"; }
+            public byte[] getBytes() { return new byte[0]; }
+            public String getMimeType() { return mimeType; }
+        };
+    }
+}
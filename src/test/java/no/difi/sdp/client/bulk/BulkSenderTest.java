@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.bulk;
+
+import no.difi.sdp.client.KlientKonfigurasjon;
+import no.difi.sdp.client.SikkerDigitalPostKlient;
+import no.difi.sdp.client.domain.Forsendelse;
+import no.difi.sdp.client.domain.exceptions.SendException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static no.difi.sdp.client.ObjectMother.behandlingsansvarlig;
+import static no.difi.sdp.client.ObjectMother.digitalPost;
+import static no.difi.sdp.client.ObjectMother.forsendelse;
+import static no.difi.sdp.client.ObjectMother.tekniskAvsender;
+import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.SERVER;
+import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.UKJENT;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Fail.fail;
+
+public class BulkSenderTest {
+
+    private File checkpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        checkpoint = File.createTempFile("checkpoint", ".bin");
+        FileUtils.deleteQuietly(checkpoint);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(checkpoint);
+    }
+
+    @Test
+    public void sender_alle_og_rapporterer_feil_og_latency() throws Exception {
+        FakeKlient klient = new FakeKlient("7");
+
+        BulkReport report = BulkSender.builder(klient, checkpoint).parallelism(4).build().run(forsendelser(100));
+
+        assertThat(report.getSent()).isEqualTo(90);
+        assertThat(report.getSkipped()).isEqualTo(0);
+        assertThat(report.getFailed()).isEqualTo(10);
+        assertThat(report.getFailures().get(SERVER)).isEqualTo(10);
+        assertThat(klient.sendt).hasSize(90);
+        assertThat(report.getLatency(50, TimeUnit.NANOSECONDS)).isGreaterThan(0);
+        assertThat(report.getLatency(99, TimeUnit.NANOSECONDS)).isGreaterThanOrEqualTo(report.getLatency(95, TimeUnit.NANOSECONDS));
+        assertThat(report.getLatency(95, TimeUnit.NANOSECONDS)).isGreaterThanOrEqualTo(report.getLatency(50, TimeUnit.NANOSECONDS));
+        assertThat(report.getThroughput()).isGreaterThan(0);
+    }
+
+    @Test
+    public void omstart_hopper_over_aksepterte_forsendelser() throws Exception {
+        FakeKlient foersteKjoering = new FakeKlient("3");
+        BulkSender.builder(foersteKjoering, checkpoint).parallelism(3).build().run(forsendelser(50));
+
+        FakeKlient andreKjoering = new FakeKlient(null);
+        BulkReport report = BulkSender.builder(andreKjoering, checkpoint).parallelism(3).build().run(forsendelser(50));
+
+        assertThat(report.getSkipped()).isEqualTo(foersteKjoering.sendt.size());
+        assertThat(report.getSent()).isEqualTo(5);
+        Set<String> sendtIgjen = new HashSet<String>(andreKjoering.sendt);
+        sendtIgjen.retainAll(foersteKjoering.sendt);
+        assertThat(sendtIgjen).isEmpty();
+    }
+
+    @Test
+    public void feil_som_ikke_er_send_exception_telles_som_ukjent() throws Exception {
+        SikkerDigitalPostKlient klient = new SikkerDigitalPostKlient(tekniskAvsender(), KlientKonfigurasjon.builder().build()) {
+            @Override
+            public void send(Forsendelse forsendelse) {
+                throw new IllegalStateException("Feil");
+            }
+        };
+
+        BulkReport report = BulkSender.builder(klient, checkpoint).build().run(forsendelser(5));
+
+        assertThat(report.getFailures().get(UKJENT)).isEqualTo(5);
+        assertThat(report.getLatency(99, TimeUnit.MILLISECONDS)).isEqualTo(0);
+    }
+
+    @Test
+    public void forsendelser_under_sending_kommer_med_i_checkpointet_naar_jobben_feiler() throws Exception {
+        final CountDownLatch iteratorFeilet = new CountDownLatch(1);
+        final List<Forsendelse> forsendelser = forsendelser(1);
+        Iterator<Forsendelse> iterator = new Iterator<Forsendelse>() {
+            private int kall = 0;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Forsendelse next() {
+                if (kall++ == 0) {
+                    return forsendelser.get(0);
+                }
+                iteratorFeilet.countDown();
+                throw new IllegalStateException("Klarte ikke å lese neste forsendelse");
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        FakeKlient klient = new FakeKlient(null) {
+            @Override
+            public void send(Forsendelse forsendelse) {
+                try {
+                    iteratorFeilet.await();
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("Sendingen ble avbrutt", e);
+                }
+                super.send(forsendelse);
+            }
+        };
+
+        try {
+            BulkSender.builder(klient, checkpoint).parallelism(2).build().run(iterator);
+            fail("Skulle feilet");
+        } catch (IllegalStateException expected) {
+        }
+
+        assertThat(klient.sendt).containsOnly("bulk-0");
+        Checkpoint etterKjoering = new Checkpoint(checkpoint, 1, 1, TimeUnit.SECONDS);
+        try {
+            assertThat(etterKjoering.isCompleted("bulk-0")).isTrue();
+        } finally {
+            etterKjoering.close();
+        }
+    }
+
+    private static List<Forsendelse> forsendelser(int antall) {
+        Forsendelse mal = forsendelse();
+        List<Forsendelse> forsendelser = new ArrayList<Forsendelse>(antall);
+        for (int i = 0; i < antall; i++) {
+            forsendelser.add(Forsendelse.digital(behandlingsansvarlig(), digitalPost(), mal.getDokumentpakke())
+                    .konversasjonsId("bulk-" + i)
+                    .build());
+        }
+        return forsendelser;
+    }
+
+    private static class FakeKlient extends SikkerDigitalPostKlient {
+
+        private final String feilerForSuffiks;
+        private final List<String> sendt = Collections.synchronizedList(new ArrayList<String>());
+
+        FakeKlient(String feilerForSuffiks) {
+            super(tekniskAvsender(), KlientKonfigurasjon.builder().build());
+            this.feilerForSuffiks = feilerForSuffiks;
+        }
+
+        @Override
+        public void send(Forsendelse forsendelse) {
+            if (feilerForSuffiks != null && forsendelse.getKonversasjonsId().endsWith(feilerForSuffiks)) {
+                throw new SendException("Feil fra meldingsformidler", SERVER, null);
+            }
+            sendt.add(forsendelse.getKonversasjonsId());
+        }
+    }
+
+}
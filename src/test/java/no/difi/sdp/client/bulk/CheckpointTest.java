@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.bulk;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CheckpointTest {
+
+    private File fil;
+
+    @Before
+    public void setUp() throws IOException {
+        fil = File.createTempFile("checkpoint", ".bin");
+        FileUtils.deleteQuietly(fil);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(fil);
+    }
+
+    @Test
+    public void fullfoerte_ider_leses_inn_igjen() throws IOException {
+        String uuid = UUID.randomUUID().toString();
+        Checkpoint checkpoint = new Checkpoint(fil, 1000, 1, TimeUnit.HOURS);
+        checkpoint.completed(uuid);
+        checkpoint.completed("konversasjonsId-1");
+        checkpoint.completed("særnorsk-æøå");
+        checkpoint.completed(uuid.toUpperCase());
+        checkpoint.close();
+
+        Checkpoint lest = new Checkpoint(fil, 1000, 1, TimeUnit.HOURS);
+        assertThat(lest.size()).isEqualTo(4);
+        assertThat(lest.isCompleted(uuid)).isTrue();
+        assertThat(lest.isCompleted("konversasjonsId-1")).isTrue();
+        assertThat(lest.isCompleted("særnorsk-æøå")).isTrue();
+        assertThat(lest.isCompleted(uuid.toUpperCase())).isTrue();
+        assertThat(lest.isCompleted("konversasjonsId-2")).isFalse();
+        lest.close();
+    }
+
+    @Test
+    public void uuid_lagres_kompakt() throws IOException {
+        Checkpoint checkpoint = new Checkpoint(fil, 1000, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 100; i++) {
+            checkpoint.completed(UUID.randomUUID().toString());
+        }
+        checkpoint.close();
+
+        assertThat(fil.length()).isEqualTo(100 * 17);
+    }
+
+    @Test
+    public void skriver_til_disk_etter_gitt_antall() throws IOException {
+        Checkpoint checkpoint = new Checkpoint(fil, 2, 1, TimeUnit.HOURS);
+        checkpoint.completed(UUID.randomUUID().toString());
+        assertThat(fil.length()).isEqualTo(0);
+
+        checkpoint.completed(UUID.randomUUID().toString());
+        assertThat(fil.length()).isEqualTo(2 * 17);
+        checkpoint.close();
+    }
+
+    @Test
+    public void ufullstendig_siste_post_ignoreres_og_skrives_over() throws IOException {
+        String uuid = UUID.randomUUID().toString();
+        Checkpoint checkpoint = new Checkpoint(fil, 1000, 1, TimeUnit.HOURS);
+        checkpoint.completed(uuid);
+        checkpoint.close();
+
+        // Krasj midt i skriving av neste post
+        FileOutputStream out = new FileOutputStream(fil, true);
+        out.write(new byte[] { 'U', 1, 2, 3 });
+        out.close();
+
+        Checkpoint gjenopprettet = new Checkpoint(fil, 1000, 1, TimeUnit.HOURS);
+        assertThat(gjenopprettet.size()).isEqualTo(1);
+        gjenopprettet.completed("neste");
+        gjenopprettet.close();
+
+        Checkpoint lest = new Checkpoint(fil, 1000, 1, TimeUnit.HOURS);
+        assertThat(lest.isCompleted(uuid)).isTrue();
+        assertThat(lest.isCompleted("neste")).isTrue();
+        assertThat(lest.size()).isEqualTo(2);
+        lest.close();
+    }
+
+}
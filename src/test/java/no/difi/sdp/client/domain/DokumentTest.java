@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.domain;
+
+import no.difi.sdp.client.ObjectMother;
+import no.difi.sdp.client.asice.AsicEAttachable;
+import no.difi.sdp.client.asice.signature.CreateSignature;
+import no.difi.sdp.client.asice.source.ContentDigest;
+import no.difi.sdp.client.asice.source.DocumentSource;
+import no.difi.sdp.client.asice.source.FileSource;
+import no.difi.sdp.client.asice.source.MappedFileSource;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Fail.fail;
+
+public class DokumentTest {
+
+    private File fil;
+
+    @Before
+    public void setUp() throws IOException {
+        fil = File.createTempFile("dokument", ".pdf");
+        FileUtils.writeByteArrayToFile(fil, "innhold".getBytes());
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(fil);
+    }
+
+    @Test
+    public void dokument_fra_fil_leses_fra_disk_ved_bruk() throws IOException {
+        Dokument dokument = Dokument.builder("Tittel", fil).build();
+        assertThat(dokument.getSource()).isInstanceOf(FileSource.class);
+        assertThat(dokument.getFilnavn()).isEqualTo(fil.getName());
+
+        // Innholdet er ikke lest inn da dokumentet ble bygget
+        FileUtils.writeByteArrayToFile(fil, "endret innhold".getBytes());
+
+        assertThat(dokument.getBytes()).isEqualTo("endret innhold".getBytes());
+        assertThat(dokument.getSource().size()).isEqualTo("endret innhold".length());
+    }
+
+    @Test
+    public void minnemappet_dokument_kan_leses_flere_ganger() throws IOException {
+        Dokument dokument = Dokument.builder("Tittel", "fil.pdf", new MappedFileSource(fil)).build();
+
+        assertThat(read(dokument)).isEqualTo("innhold".getBytes());
+        assertThat(read(dokument)).isEqualTo("innhold".getBytes());
+        assertThat(dokument.getBytes()).isEqualTo("innhold".getBytes());
+    }
+
+    @Test
+    public void store_filer_mappes_ikke_og_mappingen_kan_slippes() throws IOException {
+        MappedFileSource stor = new MappedFileSource(fil, "innhold".length() - 1);
+        assertThat(read(Dokument.builder("Tittel", "fil.pdf", stor).build())).isEqualTo("innhold".getBytes());
+        assertThat(stor.isMapped()).isFalse();
+
+        MappedFileSource liten = new MappedFileSource(fil);
+        Dokument dokument = Dokument.builder("Tittel", "fil.pdf", liten).build();
+        assertThat(read(dokument)).isEqualTo("innhold".getBytes());
+        assertThat(liten.isMapped()).isTrue();
+
+        liten.release();
+        assertThat(liten.isMapped()).isFalse();
+        assertThat(read(dokument)).isEqualTo("innhold".getBytes());
+    }
+
+    @Test
+    public void feiler_for_fil_som_ikke_finnes() {
+        try {
+            Dokument.builder("Tittel", new File(fil.getParentFile(), "finnes-ikke-" + System.nanoTime() + ".pdf"));
+            fail("Should fail");
+        } catch (Dokument.LastDokumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Fant ikke fil");
+        }
+    }
+
+    @Test
+    public void digest_beregnes_mens_dokumentstroem_leses_inn() {
+        Dokument dokument = Dokument.builder("Tittel", "fil.pdf", new ByteArrayInputStream("innhold".getBytes())).build();
+
+        ContentDigest digest = dokument.getDigest();
+        assertThat(digest.getSha256()).isEqualTo(DigestUtils.sha256("innhold".getBytes()));
+        assertThat(digest.getSize()).isEqualTo("innhold".length());
+        CRC32 crc32 = new CRC32();
+        crc32.update("innhold".getBytes());
+        assertThat(digest.getCrc32()).isEqualTo(crc32.getValue());
+    }
+
+    @Test
+    public void digest_for_dokument_fra_kilde_beregnes_kun_en_gang() {
+        final AtomicInteger aapninger = new AtomicInteger();
+        Dokument dokument = Dokument.builder("Tittel", "fil.pdf", new DocumentSource() {
+            public InputStream openStream() {
+                aapninger.incrementAndGet();
+                return new ByteArrayInputStream("innhold".getBytes());
+            }
+            public long size() {
+                return "innhold".length();
+            }
+        }).build();
+        assertThat(aapninger.get()).isEqualTo(0);
+
+        new CreateSignature().createSignature(ObjectMother.noekkelpar(), Collections.<AsicEAttachable>singletonList(dokument));
+        new CreateSignature().createSignature(ObjectMother.noekkelpar(), Collections.<AsicEAttachable>singletonList(dokument));
+
+        assertThat(dokument.getDigest().getSha256()).isEqualTo(DigestUtils.sha256("innhold".getBytes()));
+        assertThat(aapninger.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void digest_for_fil_beregnes_paa_nytt_naar_filen_er_endret() throws IOException {
+        Dokument dokument = Dokument.builder("Tittel", fil).build();
+        assertThat(dokument.getDigest().getSha256()).isEqualTo(DigestUtils.sha256("innhold".getBytes()));
+        dokument.verifyUnchanged();
+
+        FileUtils.writeByteArrayToFile(fil, "endret innhold".getBytes());
+        try {
+            dokument.verifyUnchanged();
+            fail("Should fail");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).contains(fil.getName());
+        }
+
+        assertThat(dokument.getDigest().getSha256()).isEqualTo(DigestUtils.sha256("endret innhold".getBytes()));
+        dokument.verifyUnchanged();
+    }
+
+    private byte[] read(Dokument dokument) throws IOException {
+        InputStream stream = dokument.getSource().openStream();
+        try {
+            return IOUtils.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import no.difi.sdp.client.ObjectMother;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.cert.X509Certificate;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CmsRecipientCacheTest {
+
+    private final X509Certificate avsenderSertifikat = ObjectMother.noekkelpar().getSertifikat().getX509Certificate();
+    private final X509Certificate mottakerSertifikat = ObjectMother.mottakerSertifikat().getX509Certificate();
+
+    @Before
+    public void setUp() {
+        // Testsertifikatene har gått ut, så klokken settes til mens de var gyldige
+        DateTimeUtils.setCurrentMillisFixed(avsenderSertifikat.getNotAfter().getTime() - 1);
+    }
+
+    @After
+    public void tearDown() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void returns_cached_recipient_for_same_certificate() throws Exception {
+        CmsRecipientCache cache = new CmsRecipientCache();
+        JceKeyTransRecipientInfoGenerator recipient = new JceKeyTransRecipientInfoGenerator(mottakerSertifikat);
+
+        assertThat(cache.get(mottakerSertifikat)).isNull();
+        cache.put(mottakerSertifikat, recipient);
+
+        assertThat(cache.get(mottakerSertifikat)).isSameAs(recipient);
+        assertThat(cache.get(avsenderSertifikat)).isNull();
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(2);
+    }
+
+    @Test
+    public void evicts_least_recently_used_certificate() throws Exception {
+        CmsRecipientCache cache = new CmsRecipientCache(1);
+        cache.put(mottakerSertifikat, new JceKeyTransRecipientInfoGenerator(mottakerSertifikat));
+        cache.put(avsenderSertifikat, new JceKeyTransRecipientInfoGenerator(avsenderSertifikat));
+
+        assertThat(cache.get(mottakerSertifikat)).isNull();
+        assertThat(cache.get(avsenderSertifikat)).isNotNull();
+        assertThat(cache.getEvictions()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void removes_recipient_when_certificate_expires() throws Exception {
+        CmsRecipientCache cache = new CmsRecipientCache();
+        cache.put(mottakerSertifikat, new JceKeyTransRecipientInfoGenerator(mottakerSertifikat));
+
+        DateTimeUtils.setCurrentMillisFixed(mottakerSertifikat.getNotAfter().getTime() + 1);
+
+        assertThat(cache.get(mottakerSertifikat)).isNull();
+        assertThat(cache.getExpirations()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(0);
+
+        cache.put(mottakerSertifikat, new JceKeyTransRecipientInfoGenerator(mottakerSertifikat));
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+}
@@ -18,14 +18,26 @@ package no.difi.sdp.client.internal;
 import no.difi.sdp.client.ObjectMother;
 import no.difi.sdp.client.domain.Noekkelpar;
 import no.difi.sdp.client.domain.Sertifikat;
+import org.apache.commons.io.output.NullOutputStream;
+import org.bouncycastle.cms.CMSAlgorithm;
 import org.bouncycastle.cms.CMSEnvelopedDataParser;
 import org.bouncycastle.cms.RecipientInformation;
 import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Random;
 
+import static java.util.Arrays.asList;
 import static org.fest.assertions.api.Assertions.assertThat;
 
 public class CreateCMSDocumentTest {
@@ -43,6 +55,11 @@ public class CreateCMSDocumentTest {
         sut = new CreateCMSDocument();
     }
 
+    @After
+    public void tearDown() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
     @Test
     public void test_can_be_decrypted_by_recipient() throws Exception {
         CMSDocument cms = sut.createCMS("message".getBytes(), sertifikat);
@@ -56,4 +73,104 @@ public class CreateCMSDocumentTest {
         assertThat(decryptedContent).isEqualTo("message".getBytes());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void test_streamed_cms_can_be_decrypted_by_recipient() throws Exception {
+        ByteArrayOutputStream cmsBytes = new ByteArrayOutputStream();
+        OutputStream cms = sut.createCMS(cmsBytes, sertifikat);
+        cms.write("mess".getBytes());
+        cms.write("age".getBytes());
+        cms.close();
+
+        CMSEnvelopedDataParser cmsEnvelopeParser = new CMSEnvelopedDataParser(cmsBytes.toByteArray());
+        JceKeyTransEnvelopedRecipient keyDecoder = new JceKeyTransEnvelopedRecipient(privateKey);
+
+        RecipientInformation recInfo = (RecipientInformation) cmsEnvelopeParser.getRecipientInfos().getRecipients().iterator().next();
+        byte[] decryptedContent = recInfo.getContent(keyDecoder);
+
+        assertThat(decryptedContent).isEqualTo("message".getBytes());
+    }
+
+    @Test
+    public void reuses_recipient_for_same_certificate() throws Exception {
+        CmsRecipientCache recipientCache = new CmsRecipientCache();
+        sut = new CreateCMSDocument(recipientCache);
+        DateTimeUtils.setCurrentMillisFixed(sertifikat.getX509Certificate().getNotAfter().getTime() - 1);
+
+        for (String message : new String[] { "first", "second" }) {
+            CMSDocument cms = sut.createCMS(message.getBytes(), sertifikat);
+
+            RecipientInformation recInfo = (RecipientInformation) new CMSEnvelopedDataParser(cms.getBytes()).getRecipientInfos().getRecipients().iterator().next();
+            assertThat(recInfo.getContent(new JceKeyTransEnvelopedRecipient(privateKey))).isEqualTo(message.getBytes());
+        }
+        assertThat(recipientCache.getMisses()).isEqualTo(1);
+        assertThat(recipientCache.getHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void prefers_sunjce_for_content_encryption() {
+        assertThat(sut.getContentEncryptionProvider().getName()).isEqualTo("SunJCE");
+    }
+
+    @Test
+    public void content_encrypted_by_any_provider_can_be_decrypted_by_recipient() throws Exception {
+        byte[] message = new byte[100 * 1024 + 7];
+        new Random(42).nextBytes(message);
+
+        for (Provider provider : new Provider[] { Security.getProvider("SunJCE"), Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) }) {
+            sut = new CreateCMSDocument(new CmsRecipientCache(), provider);
+
+            CMSDocument cms = sut.createCMS(message, sertifikat);
+            ByteArrayOutputStream streamedCmsBytes = new ByteArrayOutputStream();
+            OutputStream streamedCms = sut.createCMS(streamedCmsBytes, sertifikat);
+            streamedCms.write(message);
+            streamedCms.close();
+
+            for (byte[] cmsBytes : asList(cms.getBytes(), streamedCmsBytes.toByteArray())) {
+                CMSEnvelopedDataParser cmsEnvelopeParser = new CMSEnvelopedDataParser(cmsBytes);
+                assertThat(cmsEnvelopeParser.getEncryptionAlgOID()).as(provider.getName()).isEqualTo(CMSAlgorithm.AES256_CBC.getId());
+
+                RecipientInformation recInfo = (RecipientInformation) cmsEnvelopeParser.getRecipientInfos().getRecipients().iterator().next();
+                assertThat(recInfo.getContent(new JceKeyTransEnvelopedRecipient(privateKey).setProvider(BouncyCastleProvider.PROVIDER_NAME)))
+                        .as(provider.getName()).isEqualTo(message);
+            }
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark. Kjør manuelt for å sammenligne MB/s for AES-kryptering av innholdet med ulike providere")
+    public void content_encryption_provider_benchmark() throws Exception {
+        for (int size : new int[] { 64 * 1024, 1024 * 1024, 16 * 1024 * 1024 }) {
+            byte[] dokumentpakke = new byte[size];
+            for (Provider provider : new Provider[] { Security.getProvider("SunJCE"), Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) }) {
+                sut = new CreateCMSDocument(new CmsRecipientCache(), provider);
+                int iterations = Math.max(5, 256 * 1024 * 1024 / size);
+                for (int round = 0; round < 3; round++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        OutputStream cms = sut.createCMS(new NullOutputStream(), sertifikat);
+                        cms.write(dokumentpakke);
+                        cms.close();
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.println(String.format("%-8s %6d KB: %7.1f MB/s", provider.getName(), size / 1024, (double) size * iterations / (1024 * 1024) / seconds));
+                }
+            }
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark. Kjør manuelt for å sammenligne kryptering med og uten hurtigbuffer for mottakere")
+    public void recipient_cache_benchmark() {
+        byte[] dokumentpakke = new byte[4 * 1024];
+        for (CreateCMSDocument createCMS : new CreateCMSDocument[] { new CreateCMSDocument(null), new CreateCMSDocument(new CmsRecipientCache()) }) {
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < 2000; i++) {
+                    createCMS.createCMS(dokumentpakke, sertifikat);
+                }
+                System.out.println(String.format("%s: %.1f us/melding", createCMS.getRecipientCache() != null ? "Med buffer" : "Uten buffer", (System.nanoTime() - start) / 2000 / 1000.0));
+            }
+        }
+    }
+
+}
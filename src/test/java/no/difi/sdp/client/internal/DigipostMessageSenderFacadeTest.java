@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import no.difi.sdp.client.domain.exceptions.RequestPermitTimeoutException;
+import no.difi.sdp.client.domain.exceptions.SendException;
+import no.difi.sdp.client.domain.exceptions.SendIOException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static no.difi.sdp.client.domain.exceptions.SendException.AntattSkyldig.UKJENT;
+import static no.difi.sdp.client.internal.DigipostMessageSenderFacade.isLocalAdmissionFailure;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DigipostMessageSenderFacadeTest {
+
+    @Test
+    public void tidsavbrudd_i_lokal_port_eller_connection_pool_er_ikke_feil_hos_meldingsformidler() {
+        assertThat(isLocalAdmissionFailure(new RequestPermitTimeoutException("Timeout waiting for connection from pool"))).isTrue();
+        assertThat(isLocalAdmissionFailure(new SendIOException(new IOException(new ConnectionPoolTimeoutException("Timeout waiting for connection from pool"))))).isTrue();
+    }
+
+    @Test
+    public void avbrutt_venting_paa_plass_er_ikke_et_utfall_hos_meldingsformidler() {
+        assertThat(isLocalAdmissionFailure(new SendException("Interrupted while waiting for connection from pool", UKJENT, new InterruptedException()))).isTrue();
+    }
+
+    @Test
+    public void nettverksfeil_er_feil_hos_meldingsformidler() {
+        assertThat(isLocalAdmissionFailure(new SendIOException(new IOException("Connection reset")))).isFalse();
+    }
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ObjectPoolTest {
+
+    @Test
+    public void reuses_released_objects_across_threads() throws InterruptedException {
+        final ObjectPool<Object> pool = pool(2);
+        final Object[] released = new Object[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                released[0] = pool.acquire();
+                pool.release(released[0]);
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertThat(pool.acquire()).isSameAs(released[0]);
+        assertThat(pool.getHits()).isEqualTo(1);
+        assertThat(pool.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void does_not_hold_more_than_max_idle() {
+        ObjectPool<Object> pool = pool(1);
+
+        Object first = pool.acquire();
+        Object second = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+
+        assertThat(pool.acquire()).isSameAs(first);
+        assertThat(pool.acquire()).isNotSameAs(second);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void max_idle_must_be_positive() {
+        pool(0);
+    }
+
+    private static ObjectPool<Object> pool(int maxIdle) {
+        return new ObjectPool<Object>(maxIdle) {
+            @Override
+            protected Object create() {
+                return new Object();
+            }
+        };
+    }
+}
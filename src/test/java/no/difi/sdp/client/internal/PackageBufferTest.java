@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class PackageBufferTest {
+
+    @Test
+    public void liten_pakke_holdes_i_minnet() throws IOException {
+        byte[] innhold = randomBytes(1000);
+        PackageBuffer buffer = new PackageBuffer(1024, null);
+        buffer.write(innhold);
+        buffer.close();
+
+        assertThat(buffer.isInMemory()).isTrue();
+        assertThat(IOUtils.toByteArray(buffer.openStream())).isEqualTo(innhold);
+        assertThat(buffer.getSha256()).isEqualTo(DigestUtils.sha256(innhold));
+    }
+
+    @Test
+    public void stor_pakke_skrives_til_midlertidig_fil_som_slettes() throws IOException {
+        byte[] innhold = randomBytes(10 * 1024);
+        PackageBuffer buffer = new PackageBuffer(1024, null);
+        for (int i = 0; i < innhold.length; i += 1000) {
+            buffer.write(innhold, i, Math.min(1000, innhold.length - i));
+        }
+        buffer.close();
+
+        File fil = buffer.getFile();
+        assertThat(buffer.isInMemory()).isFalse();
+        assertThat(fil.length()).isEqualTo(innhold.length);
+
+        BufferedDokumentpakke dokumentpakke = new BufferedDokumentpakke(buffer);
+        assertThat(IOUtils.toByteArray(dokumentpakke.getInputStream())).isEqualTo(innhold);
+        assertThat(IOUtils.toByteArray(dokumentpakke.getInputStream())).isEqualTo(innhold);
+        assertThat(dokumentpakke.getSHA256()).isEqualTo(DigestUtils.sha256(innhold));
+
+        dokumentpakke.close();
+        assertThat(fil.exists()).isFalse();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+}
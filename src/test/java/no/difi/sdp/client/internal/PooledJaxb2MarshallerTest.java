@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import no.difi.begrep.sdp.schema_v10.SDPManifest;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class PooledJaxb2MarshallerTest {
+
+    private PooledJaxb2Marshaller sut;
+
+    @Before
+    public void setUp() throws Exception {
+        sut = new PooledJaxb2Marshaller();
+        sut.setClassesToBeBound(SDPManifest.class);
+        sut.afterPropertiesSet();
+    }
+
+    @Test
+    public void gjenbruker_marshaller_mellom_kall() {
+        marshal();
+        marshal();
+
+        assertThat(sut.getPool().getMisses()).isEqualTo(1);
+        assertThat(sut.getPool().getHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void gjenbruker_marshaller_fra_andre_traader() throws InterruptedException {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                marshal();
+            }
+        };
+        thread.start();
+        thread.join();
+
+        marshal();
+
+        assertThat(sut.getPool().getMisses()).isEqualTo(1);
+        assertThat(sut.getPool().getHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void lager_ny_marshaller_utenfor_marshal() {
+        assertThat(sut.createMarshaller()).isNotSameAs(sut.createMarshaller());
+    }
+
+    private void marshal() {
+        sut.marshal(new SDPManifest(), new StreamResult(new ByteArrayOutputStream()));
+    }
+
+}
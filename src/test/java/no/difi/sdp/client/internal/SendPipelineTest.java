@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import no.difi.sdp.client.StageMetrics;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Fail.fail;
+
+public class SendPipelineTest {
+
+    @Test
+    public void packages_and_transmits_on_separate_stages() throws Exception {
+        SendPipeline pipeline = pipeline(2, 10, 1, 1);
+        final List<String> transmitted = new ArrayList<String>();
+
+        Future<Void> result = pipeline.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return Thread.currentThread().getName();
+            }
+        }, new RecordingTransmission(transmitted));
+        result.get(10, TimeUnit.SECONDS);
+
+        assertThat(transmitted).hasSize(1);
+        assertThat(transmitted.get(0)).isEqualTo("packaging-1 -> transmission-1");
+    }
+
+    @Test
+    public void packaging_failure_fails_result_without_transmitting() throws Exception {
+        SendPipeline pipeline = pipeline(1, 10, 1, 1);
+        List<String> transmitted = new ArrayList<String>();
+
+        Future<Void> result = pipeline.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalStateException("pakking feilet");
+            }
+        }, new RecordingTransmission(transmitted));
+
+        try {
+            result.get(10, TimeUnit.SECONDS);
+            fail("Should fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalStateException.class).hasMessage("pakking feilet");
+        }
+        assertThat(transmitted).isEmpty();
+    }
+
+    @Test
+    public void packaging_waits_when_transmission_queue_is_full() throws Exception {
+        SendPipeline pipeline = pipeline(2, 10, 1, 1);
+        final CountDownLatch transmissionBlocked = new CountDownLatch(1);
+        final AtomicInteger packaged = new AtomicInteger();
+
+        SendPipeline.Transmission<String> blockingTransmission = new SendPipeline.Transmission<String>() {
+            @Override
+            public void transmit(String packaged) {
+                try {
+                    transmissionBlocked.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void discard(String packaged) {
+            }
+        };
+        Callable<String> packaging = new Callable<String>() {
+            @Override
+            public String call() {
+                packaged.incrementAndGet();
+                return "pakke";
+            }
+        };
+
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 6; i++) {
+            results.add(pipeline.submit(packaging, blockingTransmission));
+        }
+        waitUntil(packaged, 4);
+        Thread.sleep(100);
+
+        // Én pakke overføres, én venter i køen til overføringen, og begge pakketrådene venter på plass i køen
+        List<StageMetrics> metrics = pipeline.getMetrics();
+        assertThat(packaged.get()).isEqualTo(4);
+        assertThat(metrics.get(0).getActiveThreads()).isEqualTo(2);
+        assertThat(metrics.get(0).getQueueDepth()).isEqualTo(2);
+        assertThat(metrics.get(1).getActiveThreads()).isEqualTo(1);
+        assertThat(metrics.get(1).getQueueDepth()).isEqualTo(1);
+
+        transmissionBlocked.countDown();
+        for (Future<Void> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        assertThat(packaged.get()).isEqualTo(6);
+        assertThat(pipeline.getMetrics().get(1).getUtilization()).isGreaterThan(0);
+    }
+
+    @Test
+    public void cancelled_result_discards_package_that_was_never_transmitted() throws Exception {
+        SendPipeline pipeline = pipeline(1, 10, 1, 1);
+        final CountDownLatch transmissionBlocked = new CountDownLatch(1);
+        final CountDownLatch discarded = new CountDownLatch(2);
+        final List<String> discardedPackages = Collections.synchronizedList(new ArrayList<String>());
+        SendPipeline.Transmission<String> transmission = new SendPipeline.Transmission<String>() {
+            @Override
+            public void transmit(String packaged) {
+                try {
+                    transmissionBlocked.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void discard(String packaged) {
+                discardedPackages.add(packaged);
+                discarded.countDown();
+            }
+        };
+
+        // Første pakke holder overføringen opptatt, andre venter i køen til overføringen, tredje holder pakkingen opptatt
+        // og fjerde venter i køen til pakkingen
+        Future<Void> first = pipeline.submit(packaging("første"), transmission);
+        Future<Void> second = pipeline.submit(packaging("andre"), transmission);
+        final CountDownLatch packagingStarted = new CountDownLatch(1);
+        final CountDownLatch packagingBlocked = new CountDownLatch(1);
+        Future<Void> third = pipeline.submit(new Callable<String>() {
+            @Override
+            public String call() throws InterruptedException {
+                packagingStarted.countDown();
+                packagingBlocked.await();
+                return "tredje";
+            }
+        }, transmission);
+        final AtomicInteger fourthPackaged = new AtomicInteger();
+        Future<Void> fourth = pipeline.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                fourthPackaged.incrementAndGet();
+                return "fjerde";
+            }
+        }, transmission);
+        assertThat(packagingStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(second.cancel(false)).isTrue();
+        assertThat(third.cancel(false)).isTrue();
+        assertThat(fourth.cancel(false)).isTrue();
+        packagingBlocked.countDown();
+        transmissionBlocked.countDown();
+
+        first.get(10, TimeUnit.SECONDS);
+        assertThat(discarded.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(discardedPackages).containsOnly("andre", "tredje");
+        assertThat(fourthPackaged.get()).isEqualTo(0);
+    }
+
+    private static Callable<String> packaging(final String pakke) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return pakke;
+            }
+        };
+    }
+
+    private static SendPipeline pipeline(int packagingThreads, int packagingQueue, int transmissionThreads, int transmissionQueue) {
+        return new SendPipeline(
+                new PipelineStage("packaging", packagingThreads, packagingQueue, new ThreadPoolExecutor.CallerRunsPolicy()),
+                new PipelineStage("transmission", transmissionThreads, transmissionQueue, PipelineStage.BLOCK));
+    }
+
+    private static void waitUntil(AtomicInteger counter, int value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (counter.get() < value && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static class RecordingTransmission implements SendPipeline.Transmission<String> {
+
+        private final List<String> transmitted;
+
+        private RecordingTransmission(List<String> transmitted) {
+            this.transmitted = transmitted;
+        }
+
+        @Override
+        public void transmit(String packagingThread) {
+            transmitted.add(packagingThread + " -> " + Thread.currentThread().getName());
+        }
+
+        @Override
+        public void discard(String packaged) {
+        }
+    }
+
+}
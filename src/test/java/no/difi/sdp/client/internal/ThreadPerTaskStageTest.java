@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import no.difi.sdp.client.StageMetrics;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ThreadPerTaskStageTest {
+
+    private final AtomicInteger threadsCreated = new AtomicInteger();
+    private final ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "stage-" + threadsCreated.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    @Test
+    public void kjoerer_hver_oppgave_paa_en_ny_traad() throws Exception {
+        ThreadPerTaskStage stage = new ThreadPerTaskStage("stage", 10, threadFactory);
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch done = new CountDownLatch(5);
+
+        for (int i = 0; i < 5; i++) {
+            stage.execute(new Runnable() {
+                @Override
+                public void run() {
+                    threads.add(Thread.currentThread().getName());
+                    done.countDown();
+                }
+            });
+        }
+
+        assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(threads).hasSize(5);
+        assertThat(threadsCreated.get()).isEqualTo(5);
+    }
+
+    @Test
+    public void venter_naar_grensen_for_oppgaver_under_arbeid_er_naadd() throws Exception {
+        final ThreadPerTaskStage stage = new ThreadPerTaskStage("stage", 2, threadFactory);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        stage.execute(blocking);
+        stage.execute(blocking);
+
+        final AtomicBoolean thirdStarted = new AtomicBoolean();
+        Thread submitter = new Thread() {
+            @Override
+            public void run() {
+                stage.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        thirdStarted.set(true);
+                    }
+                });
+            }
+        };
+        submitter.start();
+        Thread.sleep(100);
+
+        StageMetrics metrics = stage.getMetrics();
+        assertThat(metrics.getActiveThreads()).isEqualTo(2);
+        assertThat(metrics.getThreads()).isEqualTo(2);
+        assertThat(thirdStarted.get()).isFalse();
+
+        blocked.countDown();
+        submitter.join(10000);
+        waitUntilCompleted(stage, 3);
+        assertThat(thirdStarted.get()).isTrue();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void krever_minst_en_oppgave_under_arbeid() {
+        new ThreadPerTaskStage("stage", 0, threadFactory);
+    }
+
+    private static void waitUntilCompleted(ThreadPerTaskStage stage, int completed) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (stage.getMetrics().getCompleted() < completed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) Posten Norge AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.difi.sdp.client.internal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TokenBucketTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    @Test
+    public void tar_imot_hele_boetta_paa_en_gang_og_fylles_opp_over_tid() {
+        TokenBucket bucket = bucket(5, 1, SECONDS);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(bucket.tryAcquire()).isTrue();
+        }
+        assertThat(bucket.tryAcquire()).isFalse();
+
+        now.addAndGet(MILLISECONDS.toNanos(200));
+        assertThat(bucket.tryAcquire()).isTrue();
+        assertThat(bucket.tryAcquire()).isFalse();
+
+        now.addAndGet(SECONDS.toNanos(10));
+        for (int i = 0; i < 5; i++) {
+            assertThat(bucket.tryAcquire()).isTrue();
+        }
+        assertThat(bucket.tryAcquire()).isFalse();
+    }
+
+    @Test
+    public void reserverer_med_ventetid_innenfor_grensen() {
+        TokenBucket bucket = bucket(2, 1, SECONDS);
+
+        assertThat(bucket.reserve(0)).isEqualTo(0);
+        assertThat(bucket.reserve(0)).isEqualTo(0);
+        assertThat(bucket.reserve(MILLISECONDS.toNanos(100))).isEqualTo(-1);
+        assertThat(bucket.reserve(SECONDS.toNanos(1))).isEqualTo(MILLISECONDS.toNanos(500));
+        assertThat(bucket.reserve(SECONDS.toNanos(1))).isEqualTo(MILLISECONDS.toNanos(1000));
+    }
+
+    @Test
+    public void refusjon_gir_tokenen_tilbake() {
+        TokenBucket bucket = bucket(1, 1, SECONDS);
+
+        assertThat(bucket.tryAcquire()).isTrue();
+        bucket.refund();
+        assertThat(bucket.tryAcquire()).isTrue();
+        assertThat(bucket.tryAcquire()).isFalse();
+    }
+
+    @Test
+    public void gir_ikke_ut_flere_tokens_enn_boetta_har_fra_mange_traader_samtidig() throws InterruptedException {
+        final TokenBucket bucket = bucket(100, 1, TimeUnit.MINUTES);
+        final AtomicInteger acquired = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 1000; i++) {
+                        if (bucket.tryAcquire()) {
+                            acquired.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(acquired.get()).isEqualTo(100);
+    }
+
+    @Test
+    public void venter_paa_neste_token() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1, 50, MILLISECONDS);
+        bucket.acquire();
+
+        long start = System.nanoTime();
+        bucket.acquire();
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(MILLISECONDS.toNanos(40));
+        assertThat(bucket.tryAcquire(1, MILLISECONDS)).isFalse();
+    }
+
+    private TokenBucket bucket(int permits, long period, TimeUnit timeUnit) {
+        return new TokenBucket(permits, period, timeUnit) {
+            @Override
+            protected long nanoTime() {
+                return now.get();
+            }
+        };
+    }
+
+}